@@ -0,0 +1,88 @@
+package com.github.gquintana.metrics.elasticsearch.benchmark;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.github.gquintana.metrics.elasticsearch.ContentFormat;
+import com.github.gquintana.metrics.elasticsearch.MetricNameCache;
+import com.github.gquintana.metrics.elasticsearch.MetricSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding a {@link MetricSet} in each {@link ContentFormat}, document sizes are printed during setup
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentFormatBenchmark {
+    @Param({"100", "10000"})
+    public int metricCount;
+    @Param({"JSON", "SMILE", "CBOR"})
+    public ContentFormat contentFormat;
+
+    private MetricSet metricSet;
+    private JsonFactory jsonFactory;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(1024 * 1024);
+
+    @Setup
+    public void setUp() throws IOException {
+        MetricRegistry registry = SyntheticRegistry.create(metricCount, 4);
+        metricSet = new MetricSet(System.currentTimeMillis(), "localhost", new MetricNameCache(metricCount));
+        for (Map.Entry<String, Gauge> gauge : registry.getGauges().entrySet()) {
+            metricSet.addGauge(gauge.getKey(), gauge.getValue());
+        }
+        for (Map.Entry<String, Counter> counter : registry.getCounters().entrySet()) {
+            metricSet.addCounter(counter.getKey(), counter.getValue());
+        }
+        for (Map.Entry<String, Histogram> histogram : registry.getHistograms().entrySet()) {
+            metricSet.addHistogram(histogram.getKey(), histogram.getValue());
+        }
+        for (Map.Entry<String, Meter> meter : registry.getMeters().entrySet()) {
+            metricSet.addMeter(meter.getKey(), meter.getValue(), MetricSetBenchmark.RATE_CONVERTER);
+        }
+        for (Map.Entry<String, Timer> timer : registry.getTimers().entrySet()) {
+            metricSet.addTimer(timer.getKey(), timer.getValue(), MetricSetBenchmark.DURATION_CONVERTER, MetricSetBenchmark.RATE_CONVERTER);
+        }
+        jsonFactory = contentFormat.createFactory();
+        int size = encode();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutput = new GZIPOutputStream(compressed)) {
+            output.writeTo(gzipOutput);
+        }
+        System.out.printf("%n%s document with %d metrics: %d bytes, %d bytes gzipped%n", contentFormat, metricCount, size, compressed.size());
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        output.reset();
+        try (JsonGenerator jsonGenerator = jsonFactory.createGenerator(output, JsonEncoding.UTF8)) {
+            metricSet.write(jsonGenerator);
+        }
+        return output.size();
+    }
+}
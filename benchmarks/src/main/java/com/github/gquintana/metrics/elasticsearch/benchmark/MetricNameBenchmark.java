@@ -0,0 +1,79 @@
+package com.github.gquintana.metrics.elasticsearch.benchmark;
+
+import com.github.gquintana.metrics.elasticsearch.MetricNameCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizing and splitting every metric name of a registry
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricNameBenchmark {
+    private static final Pattern REPLACED_CHARS = Pattern.compile("[^\\w.]+");
+
+    @Param({"50000"})
+    public int metricCount;
+    @Param({"6"})
+    public int depth;
+
+    private String[] names;
+    private MetricNameCache nameCache;
+
+    @Setup
+    public void setUp() {
+        names = new String[metricCount];
+        for (int i = 0; i < metricCount; i++) {
+            names[i] = SyntheticRegistry.name(i, depth);
+        }
+        nameCache = new MetricNameCache(metricCount);
+        for (String name : names) {
+            nameCache.getPath(name);
+        }
+    }
+
+    /**
+     * Former regex based implementation
+     */
+    @Benchmark
+    public void regex(Blackhole blackhole) {
+        for (String name : names) {
+            String[] path = name.split("\\.");
+            for (int i = 0; i < path.length; i++) {
+                path[i] = REPLACED_CHARS.matcher(path[i]).replaceAll("_").toLowerCase();
+            }
+            blackhole.consume(path);
+        }
+    }
+
+    @Benchmark
+    public void normalize(Blackhole blackhole) {
+        for (String name : names) {
+            blackhole.consume(MetricNameCache.normalizePath(name));
+        }
+    }
+
+    @Benchmark
+    public void cache(Blackhole blackhole) {
+        for (String name : names) {
+            blackhole.consume(nameCache.getPath(name));
+        }
+    }
+}
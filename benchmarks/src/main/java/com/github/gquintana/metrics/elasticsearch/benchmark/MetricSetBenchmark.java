@@ -0,0 +1,158 @@
+package com.github.gquintana.metrics.elasticsearch.benchmark;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.github.gquintana.metrics.elasticsearch.DurationConverter;
+import com.github.gquintana.metrics.elasticsearch.MetricNameCache;
+import com.github.gquintana.metrics.elasticsearch.MetricSet;
+import com.github.gquintana.metrics.elasticsearch.RateConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and serializing a {@link MetricSet}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricSetBenchmark {
+    static final DurationConverter DURATION_CONVERTER = new DurationConverter() {
+        @Override
+        public long convert(long duration) {
+            return duration / 1000000L;
+        }
+
+        @Override
+        public double convert(double duration) {
+            return duration / 1000000.0D;
+        }
+    };
+    static final RateConverter RATE_CONVERTER = new RateConverter() {
+        @Override
+        public double convert(double rate) {
+            return rate;
+        }
+    };
+    static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int metricCount;
+    @Param({"2", "6"})
+    public int depth;
+
+    private SortedMap<String, Histogram> histograms;
+    private SortedMap<String, Meter> meters;
+    private SortedMap<String, Timer> timers;
+    private MetricNameCache nameCache;
+    private MetricSet metricSet;
+    private MetricSet uncachedMetricSet;
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    @Setup
+    public void setUp() throws IOException {
+        MetricRegistry registry = SyntheticRegistry.create(metricCount, depth);
+        histograms = registry.getHistograms();
+        meters = registry.getMeters();
+        timers = registry.getTimers();
+        nameCache = new MetricNameCache(metricCount);
+        metricSet = newMetricSet();
+        for (Map.Entry<String, com.codahale.metrics.Gauge> gauge : registry.getGauges().entrySet()) {
+            metricSet.addGauge(gauge.getKey(), gauge.getValue());
+        }
+        for (Map.Entry<String, com.codahale.metrics.Counter> counter : registry.getCounters().entrySet()) {
+            metricSet.addCounter(counter.getKey(), counter.getValue());
+        }
+        addHistograms();
+        addMeters();
+        addTimers();
+        // Fill name cache
+        writeMetricSet(metricSet);
+        uncachedMetricSet = new MetricSet(metricSet.getTimestamp(), metricSet.getHostname());
+        uncachedMetricSet.addAll(metricSet);
+    }
+
+    private MetricSet newMetricSet() {
+        return new MetricSet(System.currentTimeMillis(), "localhost", nameCache);
+    }
+
+    @Benchmark
+    public MetricSet addHistograms() {
+        MetricSet metricSet = newMetricSet();
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            metricSet.addHistogram(histogram.getKey(), histogram.getValue());
+        }
+        return metricSet;
+    }
+
+    @Benchmark
+    public MetricSet addMeters() {
+        MetricSet metricSet = newMetricSet();
+        for (Map.Entry<String, Meter> meter : meters.entrySet()) {
+            metricSet.addMeter(meter.getKey(), meter.getValue(), RATE_CONVERTER);
+        }
+        return metricSet;
+    }
+
+    @Benchmark
+    public MetricSet addTimers() {
+        MetricSet metricSet = newMetricSet();
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            metricSet.addTimer(timer.getKey(), timer.getValue(), DURATION_CONVERTER, RATE_CONVERTER);
+        }
+        return metricSet;
+    }
+
+    /**
+     * Steady state: metric names are already normalized and encoded
+     */
+    @Benchmark
+    public int write() throws IOException {
+        return writeMetricSet(metricSet);
+    }
+
+    /**
+     * No name cache: metric names are normalized and encoded on each write
+     */
+    @Benchmark
+    public int writeUncached() throws IOException {
+        return writeMetricSet(uncachedMetricSet);
+    }
+
+    private int writeMetricSet(MetricSet metricSet) throws IOException {
+        try (JsonGenerator jsonGenerator = jsonFactory.createGenerator(NULL_OUTPUT, JsonEncoding.UTF8)) {
+            metricSet.write(jsonGenerator);
+            return jsonGenerator.getOutputBuffered();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.gquintana.metrics.elasticsearch.benchmark;
+
+import com.github.gquintana.metrics.elasticsearch.HttpRequest;
+import com.github.gquintana.metrics.elasticsearch.HttpResponse;
+import com.github.gquintana.metrics.elasticsearch.HttpTransport;
+
+/**
+ * Transport discarding requests, to measure the reporter without network
+ */
+public class NullTransport implements HttpTransport {
+    private static final byte[] RESPONSE = "{\"result\":\"created\"}".getBytes();
+    private long bytes;
+
+    @Override
+    public HttpResponse execute(HttpRequest request) {
+        bytes += request.getBodyLength();
+        return new HttpResponse(201, "Created", RESPONSE);
+    }
+
+    /**
+     * Total number of request body bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.gquintana.metrics.elasticsearch.benchmark;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.gquintana.metrics.elasticsearch.ElasticsearchReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole {@link ElasticsearchReporter#report()} path: snapshot, serialization and send, without network
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReporterBenchmark {
+    @Param({"100", "1000", "10000", "100000"})
+    public int metricCount;
+    @Param({"2", "6"})
+    public int depth;
+    /**
+     * Snapshot pool size, 0 to snapshot in the reporter thread
+     */
+    @Param({"0", "4"})
+    public int parallelism;
+
+    private ElasticsearchReporter reporter;
+    private ForkJoinPool snapshotPool;
+
+    @Setup
+    public void setUp() {
+        MetricRegistry registry = SyntheticRegistry.create(metricCount, depth);
+        ElasticsearchReporter.Builder builder = ElasticsearchReporter.forRegistry(registry)
+                .hostname("localhost")
+                .transport(new NullTransport());
+        if (parallelism > 0) {
+            snapshotPool = new ForkJoinPool(parallelism);
+            builder.parallelSnapshot(snapshotPool, 256);
+        }
+        reporter = builder.build();
+    }
+
+    @Benchmark
+    public void report() {
+        reporter.report();
+    }
+
+    @TearDown
+    public void tearDown() {
+        reporter.close();
+        if (snapshotPool != null) {
+            snapshotPool.shutdown();
+        }
+    }
+}
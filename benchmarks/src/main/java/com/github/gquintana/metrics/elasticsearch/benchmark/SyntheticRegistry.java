@@ -0,0 +1,72 @@
+package com.github.gquintana.metrics.elasticsearch.benchmark;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry filled with gauges, counters, histograms, meters and timers in equal proportions
+ */
+public final class SyntheticRegistry {
+    private SyntheticRegistry() {
+    }
+
+    /**
+     * Metric name made of depth parts, each level fans out to 10 children,
+     * upper case letters and dashes are kept so that names need to be normalized
+     * ex: Level0_3.Level1_2.metric-123 for index 123 and depth 3
+     */
+    public static String name(int index, int depth) {
+        StringBuilder name = new StringBuilder();
+        int remaining = index;
+        for (int level = 0; level < depth - 1; level++) {
+            name.append("Level").append(level).append('_').append(remaining % 10).append('.');
+            remaining /= 10;
+        }
+        return name.append("metric-").append(index).toString();
+    }
+
+    public static MetricRegistry create(int metricCount, int depth) {
+        MetricRegistry registry = new MetricRegistry();
+        Random random = new Random(metricCount);
+        for (int i = 0; i < metricCount; i++) {
+            String name = name(i, depth);
+            switch (i % 5) {
+                case 0:
+                    final long value = random.nextInt(1000);
+                    registry.register(name, new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return value;
+                        }
+                    });
+                    break;
+                case 1:
+                    registry.counter(name).inc(random.nextInt(1000));
+                    break;
+                case 2:
+                    Histogram histogram = registry.histogram(name);
+                    for (int j = 0; j < 100; j++) {
+                        histogram.update(random.nextInt(1000));
+                    }
+                    break;
+                case 3:
+                    Meter meter = registry.meter(name);
+                    meter.mark(random.nextInt(1000));
+                    break;
+                default:
+                    Timer timer = registry.timer(name);
+                    for (int j = 0; j < 100; j++) {
+                        timer.update(random.nextInt(1000), TimeUnit.MILLISECONDS);
+                    }
+                    break;
+            }
+        }
+        return registry;
+    }
+}
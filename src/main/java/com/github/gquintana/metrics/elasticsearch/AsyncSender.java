@@ -0,0 +1,205 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands documents over to a dedicated sender thread through a bounded queue,
+ * so that the reporter thread never waits for Elasticsearch
+ */
+public class AsyncSender implements MetricSetSender {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncSender.class);
+    private static final long POLL_TIMEOUT_MS = 100L;
+    /**
+     * Maximum time to wait for pending documents to be sent on close
+     */
+    private static final long CLOSE_TIMEOUT_MS = 5000L;
+    /**
+     * Maximum time to wait for the sender thread to stop once interrupted
+     */
+    private static final long INTERRUPT_TIMEOUT_MS = 1000L;
+
+    private final MetricSetSender delegate;
+    private final BlockingQueue<MetricSet> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    /**
+     * Self instrumentation, null when disabled
+     */
+    private final ReporterMetrics metrics;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param delegate      Sender used by the background thread
+     * @param queueCapacity Maximum number of pending documents
+     * @param overflowPolicy What to do when the queue is full
+     * @param blockTimeout  How long to wait for room in the queue with {@link OverflowPolicy#BLOCK}
+     */
+    public AsyncSender(MetricSetSender delegate, int queueCapacity, OverflowPolicy overflowPolicy, long blockTimeout, TimeUnit blockTimeoutUnit) {
+        this(delegate, queueCapacity, overflowPolicy, blockTimeout, blockTimeoutUnit, null);
+    }
+
+    /**
+     * @param metrics Self instrumentation, dropped and failed documents are counted as dropped reports (null allowed)
+     */
+    public AsyncSender(MetricSetSender delegate, int queueCapacity, OverflowPolicy overflowPolicy, long blockTimeout, TimeUnit blockTimeoutUnit, ReporterMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = blockTimeoutUnit.toNanos(blockTimeout);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSender();
+            }
+        }, "elasticsearch-reporter-sender");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void send(MetricSet metricSet) {
+        if (!running) {
+            recordDropped(1L);
+            return;
+        }
+        boolean queued;
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(metricSet)) {
+                    if (queue.poll() != null) {
+                        recordDropped(1L);
+                    }
+                }
+                queued = true;
+                break;
+            case BLOCK:
+                try {
+                    queued = queue.offer(metricSet, blockTimeoutNanos, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    queued = false;
+                }
+                break;
+            default:
+                queued = queue.offer(metricSet);
+                break;
+        }
+        if (queued) {
+            queuedCount.incrementAndGet();
+        } else {
+            recordDropped(1L);
+        }
+    }
+
+    private void recordDropped(long count) {
+        droppedCount.addAndGet(count);
+        if (metrics != null) {
+            metrics.recordDroppedReports(count);
+        }
+    }
+
+    private void runSender() {
+        while (running || !queue.isEmpty()) {
+            MetricSet metricSet;
+            try {
+                metricSet = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (metricSet == null) {
+                continue;
+            }
+            try {
+                delegate.send(metricSet);
+                sentCount.incrementAndGet();
+            } catch (RuntimeException e) {
+                failedCount.incrementAndGet();
+                LOGGER.warn("Failed to write metrics in Elasticsearch", e);
+                if (metrics != null) {
+                    metrics.recordDroppedReport();
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of documents accepted in the queue
+     */
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    /**
+     * Number of documents successfully sent
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Number of documents discarded because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Number of documents which could not be sent
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Number of documents currently waiting in the queue
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Stop accepting documents, try to send pending ones and close delegate sender.
+     * The delegate is not closed when the sender thread doesn't stop.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        join(CLOSE_TIMEOUT_MS);
+        if (thread.isAlive()) {
+            thread.interrupt();
+            join(INTERRUPT_TIMEOUT_MS);
+        }
+        if (thread.isAlive()) {
+            // Closing the delegate while the sender thread uses it would be unsafe
+            LOGGER.warn("Sender thread didn't stop, {} pending documents left in queue", queue.size());
+            return;
+        }
+        recordDropped(queue.size());
+        queue.clear();
+        delegate.close();
+    }
+
+    private void join(long timeoutMs) {
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
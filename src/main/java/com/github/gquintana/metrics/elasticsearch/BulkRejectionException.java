@@ -0,0 +1,26 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.util.List;
+
+/**
+ * Documents of a bulk request rejected with a retryable status, once retries are exhausted.
+ * Other documents of the request were indexed, or dropped.
+ */
+public class BulkRejectionException extends ElasticsearchException {
+    private final List<Document> documents;
+
+    /**
+     * @param statusCode Status of the first rejected document
+     */
+    public BulkRejectionException(String message, int statusCode, List<Document> documents) {
+        super(message, statusCode);
+        this.documents = documents;
+    }
+
+    /**
+     * Rejected documents, worth sending again later
+     */
+    public List<Document> getDocuments() {
+        return documents;
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per item outcome of a bulk request, in the same order as the request documents
+ */
+public class BulkResult {
+    private final int[] statuses;
+    private final String[] errors;
+
+    public BulkResult(int[] statuses, String[] errors) {
+        this.statuses = statuses;
+        this.errors = errors;
+    }
+
+    public int size() {
+        return statuses.length;
+    }
+
+    /**
+     * HTTP status of an item, ex: 201
+     */
+    public int getStatus(int index) {
+        return statuses[index];
+    }
+
+    /**
+     * Error description of an item, null when item succeeded
+     */
+    public String getError(int index) {
+        return errors[index];
+    }
+
+    public boolean isSuccess(int index) {
+        return statuses[index] < 300;
+    }
+
+    /**
+     * Whether a failed item is worth sending again:
+     * too many requests or server side failure
+     */
+    public boolean isRetryable(int index) {
+        int status = statuses[index];
+        return status == 429 || status >= 500;
+    }
+
+    public boolean hasErrors() {
+        for (int i = 0; i < statuses.length; i++) {
+            if (!isSuccess(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse bulk response body
+     *
+     * @param itemCount Number of items sent in the request
+     */
+    public static BulkResult parse(JsonParser parser, int itemCount) throws IOException {
+        int[] statuses = new int[itemCount];
+        String[] errors = new String[itemCount];
+        // Items missing in the response are considered as failed
+        Arrays.fill(statuses, 500);
+        Arrays.fill(errors, "Missing item in bulk response");
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Invalid bulk response");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if ("items".equals(fieldName) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                int index = 0;
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    // Action object: {"index":{...}}
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        parser.nextToken();
+                        if (index < itemCount) {
+                            parseItem(parser, index, statuses, errors);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    index++;
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new BulkResult(statuses, errors);
+    }
+
+    private static void parseItem(JsonParser parser, int index, int[] statuses, String[] errors) throws IOException {
+        errors[index] = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("status".equals(fieldName)) {
+                statuses[index] = parser.getIntValue();
+            } else if ("error".equals(fieldName)) {
+                errors[index] = token == JsonToken.START_OBJECT ? parseError(parser) : parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static String parseError(JsonParser parser) throws IOException {
+        String type = null;
+        String reason = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            parser.nextToken();
+            if ("type".equals(fieldName)) {
+                type = parser.getText();
+            } else if ("reason".equals(fieldName)) {
+                reason = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return type + ": " + reason;
+    }
+}
@@ -0,0 +1,306 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates documents and sends them in batches using the bulk API.
+ * A batch is sent when it reaches the maximum number of documents, the maximum size,
+ * or when its oldest document has waited longer than the linger time.
+ * Items rejected with a retryable status are put back in a batch after a backoff,
+ * once retries are exhausted they are written to the spool, if any.
+ * Requests rejected for good, like a 400 or 413 response, are not retried.
+ */
+public class BulkSender implements MetricSetSender {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkSender.class);
+    /**
+     * Maximum time to send pending documents and retries on close
+     */
+    private static final long CLOSE_TIMEOUT_MS = 5000L;
+
+    private final ElasticsearchClient client;
+    private final int maxActions;
+    private final long maxBytes;
+    private final long lingerMs;
+    private final RetryPolicy retryPolicy;
+    private final DiskSpool spool;
+    /**
+     * Self instrumentation, null when disabled
+     */
+    private final ReporterMetrics metrics;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Object batchLock = new Object();
+    private final Object flushLock = new Object();
+    private List<PendingDocument> batch = new ArrayList<>();
+    private long batchBytes;
+    private ScheduledFuture<?> lingerFuture;
+    /**
+     * Documents waiting for their backoff before being put back in a batch, guarded by batch lock
+     */
+    private final List<List<PendingDocument>> retryGroups = new ArrayList<>();
+
+    private static class PendingDocument {
+        private final Document document;
+        private final int attempts;
+
+        private PendingDocument(Document document, int attempts) {
+            this.document = document;
+            this.attempts = attempts;
+        }
+    }
+
+    /**
+     * @param maxActions Maximum number of documents in a bulk request
+     * @param maxBytes   Maximum size in bytes of documents in a bulk request
+     * @param linger     Maximum time a document waits before being sent
+     * @param maxRetries Maximum number of times a rejected document is sent again
+     */
+    public BulkSender(ElasticsearchClient client, int maxActions, long maxBytes, long linger, TimeUnit lingerUnit, int maxRetries) {
+        this(client, maxActions, maxBytes, linger, lingerUnit, maxRetries, null);
+    }
+
+    /**
+     * @param spool Where documents are written when retries are exhausted (null allowed)
+     */
+    public BulkSender(ElasticsearchClient client, int maxActions, long maxBytes, long linger, TimeUnit lingerUnit, int maxRetries, DiskSpool spool) {
+        this(client, maxActions, maxBytes, linger, lingerUnit, new RetryPolicy(maxRetries, 1L, 30L, TimeUnit.SECONDS), spool);
+    }
+
+    /**
+     * @param retryPolicy Maximum number of times a rejected document is sent again, and backoff between attempts
+     * @param spool       Where documents are written when retries are exhausted (null allowed)
+     */
+    public BulkSender(ElasticsearchClient client, int maxActions, long maxBytes, long linger, TimeUnit lingerUnit, RetryPolicy retryPolicy, DiskSpool spool) {
+        this(client, maxActions, maxBytes, linger, lingerUnit, retryPolicy, spool, null);
+    }
+
+    /**
+     * @param metrics Self instrumentation, documents neither indexed nor spooled are counted as dropped reports (null allowed)
+     */
+    public BulkSender(ElasticsearchClient client, int maxActions, long maxBytes, long linger, TimeUnit lingerUnit, RetryPolicy retryPolicy, DiskSpool spool, ReporterMetrics metrics) {
+        this.client = client;
+        this.metrics = metrics;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.lingerMs = lingerUnit.toMillis(linger);
+        this.retryPolicy = retryPolicy;
+        this.spool = spool;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "elasticsearch-reporter-bulk");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Retries waiting for their backoff are sent by close
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    @Override
+    public void send(MetricSet metricSet) {
+        for (Document document : client.encodeDocuments(metricSet)) {
+            List<PendingDocument> fullBatch = null;
+            synchronized (batchLock) {
+                addToBatch(new PendingDocument(document, 0));
+                if (batch.size() >= maxActions || batchBytes >= maxBytes) {
+                    fullBatch = takeBatch();
+                }
+            }
+            if (fullBatch != null) {
+                post(fullBatch);
+            }
+        }
+    }
+
+    private void addToBatch(PendingDocument pendingDocument) {
+        batch.add(pendingDocument);
+        batchBytes += pendingDocument.document.getSize();
+        if (lingerFuture == null && !scheduler.isShutdown()) {
+            lingerFuture = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, lingerMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private List<PendingDocument> takeBatch() {
+        if (lingerFuture != null) {
+            lingerFuture.cancel(false);
+            lingerFuture = null;
+        }
+        List<PendingDocument> fullBatch = batch;
+        batch = new ArrayList<>();
+        batchBytes = 0L;
+        return fullBatch;
+    }
+
+    /**
+     * Send pending documents now
+     */
+    public void flush() {
+        List<PendingDocument> fullBatch;
+        synchronized (batchLock) {
+            fullBatch = takeBatch();
+        }
+        if (!fullBatch.isEmpty()) {
+            post(fullBatch);
+        }
+    }
+
+    private void post(List<PendingDocument> pendingDocuments) {
+        synchronized (flushLock) {
+            List<Document> documents = new ArrayList<>(pendingDocuments.size());
+            for (PendingDocument pendingDocument : pendingDocuments) {
+                documents.add(pendingDocument.document);
+            }
+            List<PendingDocument> retried = new ArrayList<>();
+            BulkResult result;
+            try {
+                result = client.postBulk(documents);
+            } catch (ElasticsearchException e) {
+                if (e.isPermanent()) {
+                    LOGGER.warn("Failed to write metrics in Elasticsearch, {} documents dropped", pendingDocuments.size(), e);
+                    recordDropped(pendingDocuments.size());
+                    return;
+                }
+                LOGGER.warn("Failed to write metrics in Elasticsearch", e);
+                for (PendingDocument pendingDocument : pendingDocuments) {
+                    retry(pendingDocument, "connection failed", retried);
+                }
+                scheduleRetries(retried);
+                return;
+            }
+            for (int i = 0; i < result.size(); i++) {
+                PendingDocument pendingDocument = pendingDocuments.get(i);
+                if (result.isSuccess(i)) {
+                    continue;
+                }
+                String error = result.getStatus(i) + " " + result.getError(i);
+                if (result.isRetryable(i)) {
+                    retry(pendingDocument, error, retried);
+                } else {
+                    LOGGER.warn("Failed to index metrics in {}: {}", pendingDocument.document.getIndex(), error);
+                    recordDropped(1);
+                }
+            }
+            scheduleRetries(retried);
+        }
+    }
+
+    /**
+     * Put documents back in a batch once their backoff elapsed
+     */
+    private void scheduleRetries(final List<PendingDocument> retried) {
+        if (retried.isEmpty()) {
+            return;
+        }
+        // Documents of a group may have been sent a different number of times, the most retried one sets the backoff
+        int attempts = 0;
+        for (PendingDocument pendingDocument : retried) {
+            attempts = Math.max(attempts, pendingDocument.attempts);
+        }
+        long backoffMs = retryPolicy.getBackoffMs(attempts - 1);
+        synchronized (batchLock) {
+            retryGroups.add(retried);
+            if (scheduler.isShutdown()) {
+                return;
+            }
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (batchLock) {
+                            // Unless already taken by close
+                            if (!retryGroups.remove(retried)) {
+                                return;
+                            }
+                            for (PendingDocument pendingDocument : retried) {
+                                addToBatch(pendingDocument);
+                            }
+                        }
+                        flush();
+                    }
+                }, backoffMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closing, retries are sent by close
+            }
+        }
+    }
+
+    /**
+     * Add document to the retries, or spool it when retries are exhausted
+     */
+    private void retry(PendingDocument pendingDocument, String error, List<PendingDocument> retried) {
+        if (pendingDocument.attempts >= retryPolicy.getMaxRetries()) {
+            giveUp(pendingDocument, "after " + pendingDocument.attempts + " retries: " + error);
+            return;
+        }
+        retried.add(new PendingDocument(pendingDocument.document, pendingDocument.attempts + 1));
+    }
+
+    /**
+     * Spool a document which won't be sent again, or drop it when there is no spool
+     */
+    private void giveUp(PendingDocument pendingDocument, String reason) {
+        if (spool != null) {
+            try {
+                spool.append(pendingDocument.document);
+                return;
+            } catch (IOException e) {
+                LOGGER.warn("Failed to spool metrics for {}", pendingDocument.document.getIndex(), e);
+            }
+        }
+        LOGGER.warn("Failed to index metrics in {} {}", pendingDocument.document.getIndex(), reason);
+        recordDropped(1);
+    }
+
+    private void recordDropped(int count) {
+        if (metrics != null) {
+            metrics.recordDroppedReports(count);
+        }
+    }
+
+    /**
+     * Stop linger timer, send pending documents and retries without waiting for backoff,
+     * until they are sent, or spooled once their retries are exhausted.
+     * Documents still pending after {@link #CLOSE_TIMEOUT_MS} are spooled, or dropped.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+        List<PendingDocument> leftovers = null;
+        while (leftovers == null) {
+            synchronized (batchLock) {
+                for (List<PendingDocument> retryGroup : retryGroups) {
+                    for (PendingDocument pendingDocument : retryGroup) {
+                        addToBatch(pendingDocument);
+                    }
+                }
+                retryGroups.clear();
+                if (batch.isEmpty() || System.nanoTime() - deadlineNanos >= 0L) {
+                    leftovers = takeBatch();
+                }
+            }
+            if (leftovers == null) {
+                flush();
+            }
+        }
+        for (PendingDocument pendingDocument : leftovers) {
+            giveUp(pendingDocument, "before close timeout");
+        }
+        client.close();
+    }
+}
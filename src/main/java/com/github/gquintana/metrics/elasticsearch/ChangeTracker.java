@@ -0,0 +1,47 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+/**
+ * Remembers a fingerprint of the last reported value of each metric, to detect idle metrics.
+ * Fingerprints are stored in a {@link MetricHashTable}, so that tracking a large registry costs a few bytes per metric.
+ * Not thread-safe.
+ */
+public class ChangeTracker {
+    private static final int FINGERPRINT = 0;
+    private final MetricHashTable table = new MetricHashTable(1);
+
+    /**
+     * Store metric fingerprint
+     *
+     * @return true when the metric is new or its fingerprint changed
+     */
+    public boolean update(String name, long fingerprint) {
+        int slot = table.findOrAdd(name);
+        boolean changed = table.isAdded() || table.get(FINGERPRINT, slot) != fingerprint;
+        table.set(FINGERPRINT, slot, fingerprint);
+        return changed;
+    }
+
+    /**
+     * Forget all metrics, removed metrics are not kept forever
+     */
+    public void clear() {
+        table.clear();
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    /**
+     * Fingerprint of a gauge value
+     */
+    public static long fingerprint(Object value) {
+        if (value instanceof Float || value instanceof Double) {
+            return Double.doubleToLongBits(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else {
+            return value == null ? 0L : value.hashCode();
+        }
+    }
+}
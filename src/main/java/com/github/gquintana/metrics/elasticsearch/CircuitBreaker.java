@@ -0,0 +1,76 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests to Elasticsearch after many consecutive failures.
+ * Once the open duration has elapsed, a single probe request is let through:
+ * if it succeeds the breaker is closed again, otherwise it stays open for another period.
+ */
+public class CircuitBreaker {
+    public enum State {
+        /**
+         * Requests are sent
+         */
+        CLOSED,
+        /**
+         * Requests fail fast
+         */
+        OPEN,
+        /**
+         * A probe request is in progress
+         */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openDurationNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedNanos;
+
+    /**
+     * @param failureThreshold Number of consecutive failures opening the breaker
+     * @param openDuration     Time during which requests fail fast before a probe is tried
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration, TimeUnit openDurationUnit) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = openDurationUnit.toNanos(openDuration);
+    }
+
+    /**
+     * @return false when the request must fail fast
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedNanos >= openDurationNanos) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // Probe already in progress
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedNanos = System.nanoTime();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+/**
+ * Always the same index name, like a rollover write alias
+ */
+public class ConstantIndexNameResolver implements IndexNameResolver {
+    private final String indexName;
+
+    public ConstantIndexNameResolver(String indexName) {
+        this.indexName = indexName;
+    }
+
+    @Override
+    public String getIndexName(MetricSet metricSet) {
+        return indexName;
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+/**
+ * Encoding of documents sent to Elasticsearch.
+ * Binary formats require the matching optional Jackson data format library in the class path.
+ */
+public enum ContentFormat {
+    /**
+     * Text JSON, default
+     */
+    JSON("application/json;charset=UTF-8", "application/x-ndjson;charset=UTF-8", '\n', null),
+    /**
+     * Binary JSON, requires jackson-dataformat-smile
+     */
+    SMILE("application/smile", "application/smile", 0xFF, "com.fasterxml.jackson.dataformat.smile.SmileFactory"),
+    /**
+     * Concise Binary Object Representation, requires jackson-dataformat-cbor.
+     * Elasticsearch doesn't accept it in the bulk API, so documents can only be sent one by one.
+     */
+    CBOR("application/cbor", null, -1, "com.fasterxml.jackson.dataformat.cbor.CBORFactory");
+
+    private final String contentType;
+    private final String bulkContentType;
+    private final int bulkSeparator;
+    private final String factoryClassName;
+
+    ContentFormat(String contentType, String bulkContentType, int bulkSeparator, String factoryClassName) {
+        this.contentType = contentType;
+        this.bulkContentType = bulkContentType;
+        this.bulkSeparator = bulkSeparator;
+        this.factoryClassName = factoryClassName;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Content type of bulk requests, null when the bulk API doesn't support this format
+     */
+    public String getBulkContentType() {
+        return bulkContentType;
+    }
+
+    /**
+     * Byte written after each line of a bulk request
+     */
+    public int getBulkSeparator() {
+        return bulkSeparator;
+    }
+
+    public boolean isBulkSupported() {
+        return bulkContentType != null;
+    }
+
+    /**
+     * Binary factories are loaded by name, so that their library is only needed when used
+     */
+    public JsonFactory createFactory() {
+        if (factoryClassName == null) {
+            return new JsonFactory();
+        }
+        try {
+            return (JsonFactory) Class.forName(factoryClassName).newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(name() + " content format requires " + factoryClassName + " in the class path", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create " + factoryClassName, e);
+        }
+    }
+}
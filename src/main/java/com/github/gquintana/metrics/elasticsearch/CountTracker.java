@@ -0,0 +1,59 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+/**
+ * Remembers the last reported count of each metric and when it was reported,
+ * to compute the increase of counts between two reports.
+ * Counts and times are stored in a {@link MetricHashTable}.
+ * Not thread-safe.
+ */
+public class CountTracker {
+    private static final int COUNT = 0;
+    private static final int TIMESTAMP = 1;
+    private final MetricHashTable table = new MetricHashTable(2);
+    private long delta;
+    private long intervalMs;
+
+    /**
+     * Store metric count, the increase since previous update is then available from {@link #getDelta()}
+     *
+     * @param monotonic Whether count never decreases, a lower count means the metric was reset and counts from 0
+     * @return false when the metric is new or was updated at the same time, there is no delta
+     */
+    public boolean update(String name, long count, long timestampMs, boolean monotonic) {
+        int slot = table.findOrAdd(name);
+        boolean added = table.isAdded();
+        if (!added) {
+            long previousCount = table.get(COUNT, slot);
+            intervalMs = timestampMs - table.get(TIMESTAMP, slot);
+            delta = monotonic && count < previousCount ? count : count - previousCount;
+        }
+        table.set(COUNT, slot, count);
+        table.set(TIMESTAMP, slot, timestampMs);
+        return !added && intervalMs > 0L;
+    }
+
+    /**
+     * Increase of the count given to last successful {@link #update(String, long, long, boolean)}
+     */
+    public long getDelta() {
+        return delta;
+    }
+
+    /**
+     * Time elapsed between the last two updates of the metric given to last successful {@link #update(String, long, long, boolean)}
+     */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * Forget metrics not updated since some time, removed metrics are not kept forever
+     */
+    public void expire(long minTimestampMs) {
+        table.retain(TIMESTAMP, minTimestampMs);
+    }
+
+    public int size() {
+        return table.size();
+    }
+}
@@ -0,0 +1,174 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Index name made of a prefix and the formatted timestamp, ex: metrics-2018.01.31.
+ * The name is computed once per period, the period being deduced from the smallest unit
+ * of the date pattern, and reused until the timestamp crosses the next boundary.
+ */
+public class DateIndexNameResolver implements IndexNameResolver {
+    private static final int YEAR = 0;
+    private static final int MONTH = 1;
+    private static final int WEEK = 2;
+    private static final int DAY = 3;
+    private static final int HOUR = 4;
+    private static final int MINUTE = 5;
+    private static final int SECOND = 6;
+    private static final int MILLISECOND = 7;
+
+    private final String prefix;
+    /**
+     * Not thread-safe, guarded by this
+     */
+    private final DateFormat dateFormat;
+    private final int granularity;
+    private volatile Period period;
+
+    /**
+     * Index name valid from start (inclusive) to end (exclusive)
+     */
+    private static class Period {
+        private final long start;
+        private final long end;
+        private final String indexName;
+
+        private Period(long start, long end, String indexName) {
+            this.start = start;
+            this.end = end;
+            this.indexName = indexName;
+        }
+    }
+
+    /**
+     * @param prefix     Index name prefix, ex: metrics-
+     * @param dateFormat Index name date suffix format, it is copied
+     */
+    public DateIndexNameResolver(String prefix, DateFormat dateFormat) {
+        this.prefix = prefix;
+        this.dateFormat = (DateFormat) dateFormat.clone();
+        this.granularity = dateFormat instanceof SimpleDateFormat ? getGranularity(((SimpleDateFormat) dateFormat).toPattern()) : MILLISECOND;
+    }
+
+    @Override
+    public String getIndexName(MetricSet metricSet) {
+        return getIndexName(metricSet.getTimestamp());
+    }
+
+    public String getIndexName(long timestamp) {
+        Period current = period;
+        if (current == null || timestamp < current.start || timestamp >= current.end) {
+            current = computePeriod(timestamp);
+            period = current;
+        }
+        return current.indexName;
+    }
+
+    private synchronized Period computePeriod(long timestamp) {
+        String indexName = prefix + dateFormat.format(new Date(timestamp));
+        if (granularity == MILLISECOND) {
+            return new Period(timestamp, timestamp + 1L, indexName);
+        }
+        Calendar calendar = (Calendar) dateFormat.getCalendar().clone();
+        calendar.setTimeInMillis(timestamp);
+        calendar.set(Calendar.MILLISECOND, 0);
+        if (granularity == SECOND) {
+            return newPeriod(calendar, Calendar.SECOND, indexName);
+        }
+        calendar.set(Calendar.SECOND, 0);
+        if (granularity == MINUTE) {
+            return newPeriod(calendar, Calendar.MINUTE, indexName);
+        }
+        calendar.set(Calendar.MINUTE, 0);
+        if (granularity == HOUR) {
+            return newPeriod(calendar, Calendar.HOUR_OF_DAY, indexName);
+        }
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        if (granularity == DAY) {
+            return newPeriod(calendar, Calendar.DAY_OF_MONTH, indexName);
+        }
+        if (granularity == WEEK) {
+            // A week may span two months or two years, the name changes on both boundaries
+            Calendar monthStart = (Calendar) calendar.clone();
+            monthStart.set(Calendar.DAY_OF_MONTH, 1);
+            int daysFromWeekStart = (calendar.get(Calendar.DAY_OF_WEEK) - calendar.getFirstDayOfWeek() + 7) % 7;
+            calendar.add(Calendar.DAY_OF_MONTH, -daysFromWeekStart);
+            long start = Math.max(calendar.getTimeInMillis(), monthStart.getTimeInMillis());
+            calendar.add(Calendar.WEEK_OF_YEAR, 1);
+            monthStart.add(Calendar.MONTH, 1);
+            long end = Math.min(calendar.getTimeInMillis(), monthStart.getTimeInMillis());
+            return new Period(start, end, indexName);
+        }
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        if (granularity == MONTH) {
+            return newPeriod(calendar, Calendar.MONTH, indexName);
+        }
+        calendar.set(Calendar.MONTH, Calendar.JANUARY);
+        return newPeriod(calendar, Calendar.YEAR, indexName);
+    }
+
+    private static Period newPeriod(Calendar calendar, int field, String indexName) {
+        long start = calendar.getTimeInMillis();
+        calendar.add(field, 1);
+        return new Period(start, calendar.getTimeInMillis(), indexName);
+    }
+
+    /**
+     * Smallest unit found in {@link SimpleDateFormat} pattern
+     */
+    static int getGranularity(String pattern) {
+        int granularity = YEAR;
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))) {
+                granularity = Math.max(granularity, getGranularity(c));
+            }
+        }
+        return granularity;
+    }
+
+    private static int getGranularity(char letter) {
+        switch (letter) {
+            case 'G':
+            case 'y':
+                return YEAR;
+            case 'M':
+            case 'L':
+                return MONTH;
+            case 'w':
+            case 'W':
+            case 'Y':
+                // Week year changes on a week boundary
+                return WEEK;
+            case 'd':
+            case 'D':
+            case 'E':
+            case 'u':
+            case 'F':
+                return DAY;
+            case 'a':
+            case 'H':
+            case 'k':
+            case 'K':
+            case 'h':
+                return HOUR;
+            case 'm':
+                return MINUTE;
+            case 's':
+                return SECOND;
+            case 'z':
+            case 'Z':
+            case 'X':
+                // Time zone offset changes on daylight saving time transitions
+                return HOUR;
+            default:
+                return MILLISECOND;
+        }
+    }
+}
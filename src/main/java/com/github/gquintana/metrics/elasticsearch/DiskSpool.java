@@ -0,0 +1,295 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append only store of documents which could not be sent.
+ * Documents are written in segment files of bounded size, when the total size exceeds the limit
+ * the oldest segment is deleted.
+ * Each record is made of: length, CRC32 checksum, index name length, index name, source.
+ */
+public class DiskSpool implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiskSpool.class);
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int RECORD_HEADER_SIZE = 8;
+    /**
+     * Maximum size of a segment, replay reads a whole segment in memory
+     */
+    public static final long MAX_SEGMENT_BYTES = 64L * 1024L * 1024L;
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final long maxTotalBytes;
+    /**
+     * Segment files by id, the last one is being written
+     */
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private long totalBytes;
+    private long currentSegmentId;
+    private FileChannel currentChannel;
+    private long currentBytes;
+    private long evictedSegmentCount;
+    /**
+     * Self instrumentation, null when disabled
+     */
+    private final ReporterMetrics metrics;
+
+    /**
+     * @param directory       Directory containing segment files, segments left by a previous run are kept
+     * @param maxSegmentBytes Size of a segment file, at most {@link #MAX_SEGMENT_BYTES}
+     * @param maxTotalBytes   Maximum disk usage
+     */
+    public DiskSpool(File directory, long maxSegmentBytes, long maxTotalBytes) throws IOException {
+        this(directory, maxSegmentBytes, maxTotalBytes, null);
+    }
+
+    /**
+     * @param metrics Self instrumentation, documents of evicted segments are counted as dropped reports (null allowed)
+     */
+    public DiskSpool(File directory, long maxSegmentBytes, long maxTotalBytes, ReporterMetrics metrics) throws IOException {
+        if (maxSegmentBytes <= 0L || maxSegmentBytes > MAX_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("Spool segment size must be positive and at most " + MAX_SEGMENT_BYTES);
+        }
+        this.directory = directory;
+        this.metrics = metrics;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create spool directory " + directory);
+        }
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    long segmentId = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(segmentId, file);
+                    totalBytes += file.length();
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Ignoring spool file {}", file);
+                }
+            }
+        }
+        currentSegmentId = segments.isEmpty() ? 0L : segments.lastKey() + 1L;
+    }
+
+    private File getSegmentFile(long segmentId) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Write a document at the end of the spool
+     */
+    public synchronized void append(Document document) throws IOException {
+        byte[] index = document.getIndex().getBytes(StandardCharsets.UTF_8);
+        byte[] source = document.getSource();
+        int recordLength = 2 + index.length + source.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + recordLength);
+        record.putInt(recordLength);
+        record.putInt(0);
+        record.putShort((short) index.length);
+        record.put(index);
+        record.put(source);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, recordLength);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        if (currentChannel != null && currentBytes + record.remaining() > maxSegmentBytes) {
+            rollSegment();
+        }
+        if (currentChannel == null) {
+            File file = getSegmentFile(currentSegmentId);
+            currentChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segments.put(currentSegmentId, file);
+            currentBytes = 0L;
+        }
+        int written = 0;
+        while (record.hasRemaining()) {
+            written += currentChannel.write(record);
+        }
+        currentBytes += written;
+        totalBytes += written;
+        evictOldSegments();
+    }
+
+    /**
+     * Close current segment so that it can be replayed, following documents go to a new segment
+     */
+    private void rollSegment() throws IOException {
+        if (currentChannel != null) {
+            currentChannel.close();
+            currentChannel = null;
+            currentSegmentId++;
+        }
+    }
+
+    private void evictOldSegments() {
+        Iterator<Long> segmentIds = segments.keySet().iterator();
+        while (totalBytes > maxTotalBytes && segmentIds.hasNext()) {
+            long segmentId = segmentIds.next();
+            if (segmentId == currentSegmentId && currentChannel != null) {
+                break;
+            }
+            File file = segments.get(segmentId);
+            totalBytes -= file.length();
+            segmentIds.remove();
+            if (metrics != null) {
+                metrics.recordDroppedReports(countRecords(file));
+            }
+            if (!file.delete()) {
+                LOGGER.warn("Failed to delete spool segment {}", file);
+            }
+            evictedSegmentCount++;
+            LOGGER.warn("Spool is full, metrics in segment {} were discarded", file);
+        }
+    }
+
+    /**
+     * Number of records in a segment, read from their headers only
+     */
+    private static long countRecords(File file) {
+        long count = 0L;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0L;
+            long size = channel.size();
+            while (position + RECORD_HEADER_SIZE <= size) {
+                header.clear();
+                while (header.hasRemaining() && channel.read(header, position + header.position()) >= 0) {
+                }
+                int recordLength = header.getInt(0);
+                if (recordLength < 2) {
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + recordLength;
+                if (position > size) {
+                    break;
+                }
+                count++;
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Failed to count records of spool segment {}", file, e);
+        }
+        return count;
+    }
+
+    /**
+     * Id of the oldest segment, or -1 when spool is empty.
+     * When the oldest segment is being written, it is closed first.
+     */
+    public synchronized long getOldestSegmentId() throws IOException {
+        if (segments.isEmpty()) {
+            return -1L;
+        }
+        long segmentId = segments.firstKey();
+        if (segmentId == currentSegmentId && currentChannel != null) {
+            rollSegment();
+        }
+        return segmentId;
+    }
+
+    /**
+     * Read documents of a closed segment, reading stops at the first corrupted record
+     */
+    public List<Document> readSegment(long segmentId) throws IOException {
+        File file;
+        synchronized (this) {
+            file = segments.get(segmentId);
+        }
+        List<Document> documents = new ArrayList<>();
+        if (file == null || !file.exists()) {
+            return documents;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Spool segment " + file + " is too large: " + size);
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+        }
+        buffer.flip();
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int recordStart = buffer.position();
+            int recordLength = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (recordLength < 2 || recordLength > buffer.remaining()) {
+                LOGGER.warn("Truncated record in spool segment {}", file);
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.array(), recordStart + RECORD_HEADER_SIZE, recordLength);
+            if ((int) crc.getValue() != checksum) {
+                LOGGER.warn("Corrupted record in spool segment {}", file);
+                break;
+            }
+            int indexLength = buffer.getShort() & 0xFFFF;
+            byte[] index = new byte[indexLength];
+            buffer.get(index);
+            byte[] source = new byte[recordLength - 2 - indexLength];
+            buffer.get(source);
+            documents.add(new Document(new String(index, StandardCharsets.UTF_8), source));
+        }
+        return documents;
+    }
+
+    /**
+     * Delete a replayed segment
+     */
+    public synchronized void deleteSegment(long segmentId) {
+        File file = segments.remove(segmentId);
+        if (file != null) {
+            totalBytes -= file.length();
+            if (!file.delete()) {
+                LOGGER.warn("Failed to delete spool segment {}", file);
+            }
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * Disk usage in bytes
+     */
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    /**
+     * Number of segments discarded because the spool was full
+     */
+    public synchronized long getEvictedSegmentCount() {
+        return evictedSegmentCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        rollSegment();
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+/**
+ * Encoded {@link MetricSet} ready to be indexed
+ */
+public class Document {
+    private final String index;
+    private final byte[] source;
+
+    /**
+     * @param index  Index name, ex: metricbeat-dropwizard-2018.01.01
+     * @param source Encoded document
+     */
+    public Document(String index, byte[] source) {
+        this.index = index;
+        this.source = source;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public byte[] getSource() {
+        return source;
+    }
+
+    /**
+     * Encoded document size in bytes
+     */
+    public int getSize() {
+        return source.length;
+    }
+}
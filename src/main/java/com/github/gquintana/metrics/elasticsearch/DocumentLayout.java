@@ -0,0 +1,19 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+/**
+ * How metrics of a report are spread across Elasticsearch documents
+ */
+public enum DocumentLayout {
+    /**
+     * One document containing all metrics, nested by name, like Metricbeat
+     */
+    METRIC_SET,
+    /**
+     * One document per group of metrics sharing a name prefix, nested by name
+     */
+    PREFIX,
+    /**
+     * One document per metric, the metric name is stored in the dropwizard.name field
+     */
+    METRIC
+}
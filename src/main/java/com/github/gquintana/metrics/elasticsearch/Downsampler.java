@@ -0,0 +1,167 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Aggregates metrics sampled at a short interval into a single metric set per window.
+ * Each field gets its min, max, average and last value,
+ * count fields, added with {@link MetricSet#addCountField(String, long)}, get their last value and increase over the window,
+ * like count and count_delta. Count deltas of the reporter are not sampled, the builder doesn't allow both.
+ * Histogram fields are not sampled. Not thread safe.
+ */
+class Downsampler {
+    private final Map<String, Series> series = new HashMap<>();
+
+    /**
+     * Fields of a metric, aggregates are stored in flat primitive arrays indexed by field
+     */
+    private static class Series {
+        private SerializableString[] fieldNames = new SerializableString[0];
+        private SerializableString[][] aggregateNames = new SerializableString[0][];
+        private boolean[] counts = new boolean[0];
+        private int[] samples = new int[0];
+        private double[] mins = new double[0];
+        private double[] maxs = new double[0];
+        private double[] sums = new double[0];
+        private double[] lasts = new double[0];
+        /**
+         * Count fields only: increase since window start, and whether last value is kept from previous window
+         */
+        private double[] deltas = new double[0];
+        private boolean[] hasLast = new boolean[0];
+        private int fieldCount;
+
+        /**
+         * Index of a field, fields usually come in the same order at each sample
+         */
+        private int indexOf(SerializableString fieldName, boolean count, int hint) {
+            if (hint < fieldCount && fieldNames[hint].getValue().equals(fieldName.getValue())) {
+                return hint;
+            }
+            for (int i = 0; i < fieldCount; i++) {
+                if (fieldNames[i].getValue().equals(fieldName.getValue())) {
+                    return i;
+                }
+            }
+            return addField(fieldName, count);
+        }
+
+        private int addField(SerializableString fieldName, boolean count) {
+            int capacity = fieldCount + 1;
+            fieldNames = Arrays.copyOf(fieldNames, capacity);
+            aggregateNames = Arrays.copyOf(aggregateNames, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            samples = Arrays.copyOf(samples, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            lasts = Arrays.copyOf(lasts, capacity);
+            deltas = Arrays.copyOf(deltas, capacity);
+            hasLast = Arrays.copyOf(hasLast, capacity);
+            String name = fieldName.getValue();
+            fieldNames[fieldCount] = fieldName;
+            counts[fieldCount] = count;
+            aggregateNames[fieldCount] = count ? new SerializableString[]{new SerializedString(name + "_delta")}
+                    : new SerializableString[]{new SerializedString(name + "_min"), new SerializedString(name + "_max"), new SerializedString(name + "_avg")};
+            return fieldCount++;
+        }
+
+        private void add(int field, double value) {
+            if (samples[field] == 0) {
+                mins[field] = value;
+                maxs[field] = value;
+                sums[field] = 0D;
+            } else {
+                mins[field] = Math.min(mins[field], value);
+                maxs[field] = Math.max(maxs[field], value);
+            }
+            sums[field] += value;
+            samples[field]++;
+            if (counts[field] && hasLast[field]) {
+                // A decreasing count was reset, like after a restart
+                deltas[field] += value >= lasts[field] ? value - lasts[field] : value;
+            }
+            lasts[field] = value;
+            hasLast[field] = true;
+        }
+
+        private boolean isEmpty() {
+            for (int f = 0; f < fieldCount; f++) {
+                if (samples[f] > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Start a new window, last values are kept to compute deltas
+         */
+        private void reset() {
+            Arrays.fill(samples, 0);
+            Arrays.fill(deltas, 0D);
+        }
+    }
+
+    /**
+     * Add a sample of metrics
+     */
+    public void add(MetricSet metricSet) {
+        for (int m = 0; m < metricSet.getMetricCount(); m++) {
+            String name = metricSet.getMetricName(m);
+            Series metricSeries = series.get(name);
+            if (metricSeries == null) {
+                metricSeries = new Series();
+                series.put(name, metricSeries);
+            }
+            int start = metricSet.getFieldStart(m);
+            for (int f = start; f < metricSet.getFieldEnd(m); f++) {
+                if (metricSet.isNumberField(f)) {
+                    int field = metricSeries.indexOf(metricSet.getFieldName(f), metricSet.isCountField(f), f - start);
+                    metricSeries.add(field, metricSet.getFieldDouble(f));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write aggregates of current window and start a new one, metrics not sampled during the window are forgotten
+     */
+    public void flush(MetricSet metricSet) {
+        for (Iterator<Map.Entry<String, Series>> iterator = series.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Series> entry = iterator.next();
+            Series metricSeries = entry.getValue();
+            if (metricSeries.isEmpty()) {
+                iterator.remove();
+                continue;
+            }
+            metricSet.startMetric(entry.getKey());
+            for (int f = 0; f < metricSeries.fieldCount; f++) {
+                if (metricSeries.samples[f] == 0) {
+                    continue;
+                }
+                SerializableString[] aggregateNames = metricSeries.aggregateNames[f];
+                if (metricSeries.counts[f]) {
+                    metricSet.addCountField(metricSeries.fieldNames[f], (long) metricSeries.lasts[f]);
+                    metricSet.addField(aggregateNames[0], (long) metricSeries.deltas[f]);
+                } else {
+                    metricSet.addField(metricSeries.fieldNames[f], metricSeries.lasts[f]);
+                    metricSet.addField(aggregateNames[0], metricSeries.mins[f]);
+                    metricSet.addField(aggregateNames[1], metricSeries.maxs[f]);
+                    metricSet.addField(aggregateNames[2], metricSeries.sums[f] / metricSeries.samples[f]);
+                }
+            }
+            metricSeries.reset();
+        }
+    }
+
+    int size() {
+        return series.size();
+    }
+}
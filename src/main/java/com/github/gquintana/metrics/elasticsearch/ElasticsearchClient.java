@@ -3,22 +3,72 @@ package com.github.gquintana.metrics.elasticsearch;
 import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.Date;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
-public class ElasticsearchClient {
-    private final String baseUrl;
+public class ElasticsearchClient implements MetricSetSender {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchClient.class);
+    private final NodePool nodePool;
+    private final String sniffScheme;
+    private final ScheduledExecutorService sniffer;
     private final String authorization;
-    private final String indexPrefix;
-    private final DateFormat indexDateFormat;
+    private final IndexNameResolver indexNameResolver;
+    /**
+     * Pattern matching indices named by default index name resolver, null with a custom one
+     */
+    private final String indexPattern;
     private final String docType;
+    /**
+     * Last index name and its document path, to avoid building the same path for each document
+     */
+    private volatile String[] documentPath;
+    private final HttpTransport transport;
+    private final RequestBodyPool bodyPool;
+    /**
+     * Buffer where each thread encodes documents, they are then copied at their exact size
+     */
+    private final ThreadLocal<ByteArrayOutputStream> encodingBuffers = new ThreadLocal<>();
+    private final int maxEncodingBufferBytes;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final DocumentLayout documentLayout;
+    private final int documentPrefixDepth;
+    private final int maxDocumentBytes;
+    private final ContentFormat contentFormat;
+    /**
+     * Self instrumentation, null when disabled
+     */
+    private final ReporterMetrics metrics;
+    /**
+     * Encodes documents
+     */
+    private final JsonFactory contentFactory;
+    /**
+     * Encodes administration requests and parses responses
+     */
     private final JsonFactory jsonFactory = new JsonFactory();
 
     /**
@@ -28,11 +78,62 @@ public class ElasticsearchClient {
      * @param docType         Document type (null allowed), ex: doc
      */
     public ElasticsearchClient(String baseUrl, String username, String password, String indexPrefix, DateFormat indexDateFormat, String docType) {
-        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
-        this.authorization = buildAuthorization(username, password);
-        this.indexPrefix = indexPrefix.endsWith("-") ? indexPrefix : indexPrefix + "-";
-        this.indexDateFormat = indexDateFormat;
-        this.docType = docType;
+        this(new Builder()
+                .url(baseUrl)
+                .basicAuth(username, password)
+                .indexPrefix(indexPrefix)
+                .indexDateFormat(indexDateFormat)
+                .docType(docType));
+    }
+
+    private ElasticsearchClient(Builder builder) {
+        this.nodePool = new NodePool(builder.urls, builder.nodeSelection, builder.initialDeadBackoffMs, builder.maxDeadBackoffMs, TimeUnit.MILLISECONDS);
+        this.sniffScheme = builder.urls.get(0).substring(0, builder.urls.get(0).indexOf(':'));
+        this.authorization = buildAuthorization(builder.username, builder.password);
+        if (builder.indexNameResolver == null) {
+            String indexPrefix = builder.indexPrefix.endsWith("-") ? builder.indexPrefix : builder.indexPrefix + "-";
+            this.indexNameResolver = new DateIndexNameResolver(indexPrefix, builder.indexDateFormat);
+            this.indexPattern = indexPrefix + "*";
+        } else {
+            this.indexNameResolver = builder.indexNameResolver;
+            this.indexPattern = null;
+        }
+        this.docType = builder.docType;
+        this.transport = builder.transport == null ? new UrlConnectionTransport() : builder.transport;
+        this.bodyPool = new RequestBodyPool(builder.compressionLevel, builder.compressionThreshold, builder.bodyPoolSize, builder.maxPooledBodyBytes);
+        this.maxEncodingBufferBytes = builder.maxPooledBodyBytes;
+        this.connectTimeoutMs = builder.connectTimeoutMs;
+        this.readTimeoutMs = builder.readTimeoutMs;
+        this.retryPolicy = builder.retryPolicy;
+        this.circuitBreaker = builder.circuitBreaker;
+        this.documentLayout = builder.documentLayout;
+        this.documentPrefixDepth = builder.documentPrefixDepth;
+        this.maxDocumentBytes = builder.maxDocumentBytes;
+        this.contentFormat = builder.contentFormat;
+        this.metrics = builder.metrics;
+        this.contentFactory = builder.contentFormat.createFactory();
+        if (builder.sniffIntervalMs > 0L) {
+            this.sniffer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "elasticsearch-reporter-sniffer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.sniffer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sniffNodes();
+                    } catch (ElasticsearchException e) {
+                        LOGGER.warn("Failed to sniff Elasticsearch nodes", e);
+                    }
+                }
+            }, 0L, builder.sniffIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.sniffer = null;
+        }
     }
 
     private static String buildAuthorization(String username, String password) {
@@ -43,38 +144,736 @@ public class ElasticsearchClient {
         return "Basic " + new String(base64.encode((username + ":" + password).getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
     }
 
+    /**
+     * Send metric set as a single document, or as many documents using the bulk API
+     * depending on document layout and maximum document size.
+     * Documents rejected with a retryable status are sent again according to the retry policy.
+     *
+     * @throws BulkRejectionException when documents are still rejected once retries are exhausted
+     */
+    @Override
+    public void send(MetricSet metricSet) {
+        if (documentLayout == DocumentLayout.METRIC_SET && maxDocumentBytes <= 0) {
+            postDocument(metricSet);
+            return;
+        }
+        List<Document> documents = encodeDocuments(metricSet);
+        if (documents.isEmpty()) {
+            return;
+        }
+        if (!contentFormat.isBulkSupported()) {
+            for (Document document : documents) {
+                RequestBody body = bodyPool.acquire();
+                try {
+                    body.write(document.getSource());
+                    body.close();
+                } catch (IOException e) {
+                    bodyPool.release(body);
+                    throw new ElasticsearchException("Metric serialization failed", e);
+                }
+                call("POST", getDocumentPath(document.getIndex()), contentFormat.getContentType(), body);
+            }
+            return;
+        }
+        for (int retry = 0; ; retry++) {
+            BulkResult result = postBulk(documents);
+            List<Document> rejected = new ArrayList<>();
+            int rejectedStatus = 0;
+            for (int i = 0; i < result.size(); i++) {
+                if (result.isSuccess(i)) {
+                    continue;
+                }
+                if (result.isRetryable(i)) {
+                    if (rejected.isEmpty()) {
+                        rejectedStatus = result.getStatus(i);
+                    }
+                    rejected.add(documents.get(i));
+                } else {
+                    LOGGER.warn("Failed to index metrics in {}: {} {}", documents.get(i).getIndex(), result.getStatus(i), result.getError(i));
+                    if (metrics != null) {
+                        metrics.recordDroppedReport();
+                    }
+                }
+            }
+            if (rejected.isEmpty()) {
+                return;
+            }
+            if (retry >= retryPolicy.getMaxRetries()) {
+                throw new BulkRejectionException(rejected.size() + " documents rejected by Elasticsearch", rejectedStatus, rejected);
+            }
+            LOGGER.debug("{} documents rejected by Elasticsearch, retrying", rejected.size());
+            try {
+                Thread.sleep(retryPolicy.getBackoffMs(retry));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BulkRejectionException("Interrupted while waiting to retry", rejectedStatus, rejected);
+            }
+            documents = rejected;
+        }
+    }
+
     public void postDocument(MetricSet metricSet) {
-        HttpURLConnection connection = null;
+        String path = getDocumentPath(indexNameResolver.getIndexName(metricSet));
+        RequestBody body = bodyPool.acquire();
+        long start = System.nanoTime();
+        try (JsonGenerator jsonGenerator = contentFactory.createGenerator(body, JsonEncoding.UTF8)) {
+            metricSet.write(jsonGenerator);
+        } catch (IOException e) {
+            bodyPool.release(body);
+            throw new ElasticsearchException("Metric serialization failed", e);
+        }
+        if (metrics != null) {
+            metrics.recordSerialize(System.nanoTime() - start);
+        }
+        call("POST", path, contentFormat.getContentType(), body);
+    }
+
+    /**
+     * Install index lifecycle policy, index template and, when indices are rolled over, initial index with its write alias
+     */
+    public void installIndexTemplate(IndexTemplate indexTemplate) {
         try {
-            connection = openConnection(metricSet.getTimestamp());
-            connection.setRequestMethod("POST");
-            if (authorization != null) {
-                connection.setRequestProperty("Authorization", authorization);
+            if (indexTemplate.hasLifecycle()) {
+                RequestBody body = bodyPool.acquire();
+                try (JsonGenerator jsonGenerator = jsonFactory.createGenerator(body, JsonEncoding.UTF8)) {
+                    indexTemplate.writePolicy(jsonGenerator);
+                }
+                call("PUT", "_ilm/policy/" + indexTemplate.getName(), "application/json;charset=UTF-8", body);
             }
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setRequestProperty("Content-Type", "application/json;charset=UTF-8");
-            connection.setDoOutput(true);
-            try (OutputStream output = connection.getOutputStream();
-                 JsonGenerator jsonGenerator = jsonFactory.createGenerator(output, JsonEncoding.UTF8)) {
-                metricSet.write(jsonGenerator);
+            RequestBody body = bodyPool.acquire();
+            try (JsonGenerator jsonGenerator = jsonFactory.createGenerator(body, JsonEncoding.UTF8)) {
+                indexTemplate.writeTemplate(jsonGenerator, indexPattern);
             }
-            if (connection.getResponseCode() >= 300) {
-                throw new ElasticsearchException(String.format("Elasticsearch reponse failed,  code %d, message %s", connection.getResponseCode(), connection.getResponseMessage()));
+            call("PUT", "_index_template/" + indexTemplate.getName(), "application/json;charset=UTF-8", body);
+            if (indexTemplate.getRolloverAlias() != null
+                    && execute("GET", "_alias/" + indexTemplate.getRolloverAlias(), null, null).getStatusCode() == 404) {
+                body = bodyPool.acquire();
+                try (JsonGenerator jsonGenerator = jsonFactory.createGenerator(body, JsonEncoding.UTF8)) {
+                    indexTemplate.writeInitialIndex(jsonGenerator);
+                }
+                call("PUT", indexTemplate.getInitialIndexName(), "application/json;charset=UTF-8", body);
             }
         } catch (IOException e) {
-            throw new ElasticsearchException("Elasticsearch connection failed", e);
+            throw new ElasticsearchException("Index template serialization failed", e);
+        }
+    }
+
+    /**
+     * Serialize a metric set so that it can be sent later using {@link #postBulk(List)}
+     */
+    public Document encode(MetricSet metricSet) {
+        ByteArrayOutputStream output = acquireEncodingBuffer();
+        try (JsonGenerator jsonGenerator = contentFactory.createGenerator(output, JsonEncoding.UTF8)) {
+            metricSet.write(jsonGenerator);
+        } catch (IOException e) {
+            throw new ElasticsearchException("Metric serialization failed", e);
+        }
+        return new Document(indexNameResolver.getIndexName(metricSet), releaseEncodingBuffer(output));
+    }
+
+    /**
+     * Empty encoding buffer of current thread, it keeps the capacity reached by previous documents
+     */
+    private ByteArrayOutputStream acquireEncodingBuffer() {
+        ByteArrayOutputStream output = encodingBuffers.get();
+        if (output == null) {
+            output = new ByteArrayOutputStream(4096);
+            encodingBuffers.set(output);
+        } else {
+            output.reset();
+        }
+        return output;
+    }
+
+    /**
+     * Copy encoded document, the buffer is dropped when it grew too large to be retained
+     */
+    private byte[] releaseEncodingBuffer(ByteArrayOutputStream output) {
+        byte[] source = output.toByteArray();
+        if (source.length > maxEncodingBufferBytes) {
+            encodingBuffers.remove();
+        }
+        return source;
+    }
+
+    /**
+     * Serialize a metric set according to document layout, documents larger than the maximum size are split
+     */
+    public List<Document> encodeDocuments(MetricSet metricSet) {
+        long start = System.nanoTime();
+        List<Document> documents = new ArrayList<>();
+        switch (documentLayout) {
+            case METRIC:
+                String indexName = indexNameResolver.getIndexName(metricSet);
+                for (int m = 0; m < metricSet.getMetricCount(); m++) {
+                    documents.add(encodeMetric(metricSet, m, indexName));
+                }
+                break;
+            case PREFIX:
+                for (MetricSet group : metricSet.groupByPrefix(documentPrefixDepth)) {
+                    encodeDocuments(group, encode(group), documents);
+                }
+                break;
+            default:
+                encodeDocuments(metricSet, encode(metricSet), documents);
+                break;
+        }
+        if (metrics != null) {
+            metrics.recordSerialize(System.nanoTime() - start);
+        }
+        return documents;
+    }
+
+    /**
+     * Split metric set in as many chunks as needed to fit maximum document size
+     */
+    private void encodeDocuments(MetricSet metricSet, Document document, List<Document> documents) {
+        if (maxDocumentBytes <= 0 || document.getSize() <= maxDocumentBytes || metricSet.getMetricCount() <= 1) {
+            documents.add(document);
+            return;
+        }
+        int chunkCount = Math.min(metricSet.getMetricCount(), Math.max(2, (document.getSize() + maxDocumentBytes - 1) / maxDocumentBytes));
+        for (MetricSet chunk : metricSet.split(chunkCount)) {
+            encodeDocuments(chunk, encode(chunk), documents);
+        }
+    }
+
+    private Document encodeMetric(MetricSet metricSet, int metricIndex, String indexName) {
+        ByteArrayOutputStream output = acquireEncodingBuffer();
+        try (JsonGenerator jsonGenerator = contentFactory.createGenerator(output, JsonEncoding.UTF8)) {
+            metricSet.writeMetric(jsonGenerator, metricIndex);
+        } catch (IOException e) {
+            throw new ElasticsearchException("Metric serialization failed", e);
+        }
+        return new Document(indexName, releaseEncodingBuffer(output));
+    }
+
+    /**
+     * Index many documents with a single request to the bulk API
+     *
+     * @return Outcome of each document
+     */
+    public BulkResult postBulk(List<Document> documents) {
+        if (!contentFormat.isBulkSupported()) {
+            throw new IllegalStateException("Bulk API doesn't support " + contentFormat + " content format");
+        }
+        RequestBody body = bodyPool.acquire();
+        long start = System.nanoTime();
+        try {
+            writeBulk(body, documents);
+            body.close();
+        } catch (IOException e) {
+            bodyPool.release(body);
+            throw new ElasticsearchException("Metric serialization failed", e);
+        }
+        if (metrics != null) {
+            metrics.recordSerialize(System.nanoTime() - start);
+        }
+        HttpResponse response = call("POST", "_bulk", contentFormat.getBulkContentType(), body);
+        try (JsonParser jsonParser = jsonFactory.createParser(response.getBody())) {
+            return BulkResult.parse(jsonParser, documents.size());
+        } catch (IOException e) {
+            throw new ElasticsearchException("Elasticsearch bulk response parsing failed", e);
+        }
+    }
+
+    private void writeBulk(OutputStream output, List<Document> documents) throws IOException {
+        for (Document document : documents) {
+            try (JsonGenerator jsonGenerator = contentFactory.createGenerator(output, JsonEncoding.UTF8)) {
+                jsonGenerator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+                jsonGenerator.writeStartObject();
+                jsonGenerator.writeObjectFieldStart("index");
+                jsonGenerator.writeStringField("_index", document.getIndex());
+                if (docType != null) {
+                    jsonGenerator.writeStringField("_type", docType);
+                }
+                jsonGenerator.writeEndObject();
+                jsonGenerator.writeEndObject();
+            }
+            output.write(contentFormat.getBulkSeparator());
+            output.write(document.getSource());
+            output.write(contentFormat.getBulkSeparator());
+        }
+    }
+
+    /**
+     * @param body Request body, given back to the pool once the response is received
+     */
+    private HttpResponse call(String method, String path, String contentType, RequestBody body) {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            bodyPool.release(body);
+            throw new ElasticsearchException("Elasticsearch circuit breaker is open");
+        }
+        boolean healthy = false;
+        long start = System.nanoTime();
+        try {
+            HttpResponse response = execute(method, path, contentType, body);
+            healthy = !isServerFailure(response.getStatusCode());
+            if (response.getStatusCode() >= 300) {
+                throw new ElasticsearchException(String.format("Elasticsearch reponse failed,  code %d, message %s", response.getStatusCode(), response.getStatusMessage()), response.getStatusCode());
+            }
+            return response;
         } finally {
-            if (connection != null) {
-                connection.disconnect();
+            if (metrics != null) {
+                metrics.recordSend(System.nanoTime() - start, body.size());
+            }
+            bodyPool.release(body);
+            if (circuitBreaker != null) {
+                if (healthy) {
+                    circuitBreaker.recordSuccess();
+                } else {
+                    circuitBreaker.recordFailure();
+                }
+            }
+        }
+    }
+
+    private static boolean isServerFailure(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Node may be down, or not reachable through a proxy
+     */
+    private static boolean isNodeUnavailable(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Send request, fail over to another node or send it again on connection failure or retryable status
+     *
+     * @param path Path relative to node URL
+     * @param body Request body (null allowed)
+     */
+    private HttpResponse execute(String method, String path, String contentType, RequestBody body) {
+        int failovers = 0;
+        for (int retry = 0; ; ) {
+            NodePool.Node node = nodePool.next();
+            HttpRequest request = newRequest(method, node.getUrl() + path, contentType, body);
+            long start = System.nanoTime();
+            HttpResponse response = null;
+            IOException exception = null;
+            try {
+                response = transport.execute(request);
+            } catch (IOException e) {
+                exception = e;
+            }
+            if (metrics != null) {
+                if (response == null) {
+                    metrics.recordConnectionError();
+                } else {
+                    metrics.recordStatus(response.getStatusCode());
+                }
             }
+            if (response == null || isNodeUnavailable(response.getStatusCode())) {
+                nodePool.markDead(node);
+                if (failovers < nodePool.size() - 1) {
+                    failovers++;
+                    LOGGER.debug("Elasticsearch node {} failed, trying another one", node, exception);
+                    continue;
+                }
+            } else {
+                nodePool.markAlive(node, System.nanoTime() - start);
+            }
+            if (response != null && (retry >= retryPolicy.getMaxRetries() || !retryPolicy.isRetryable(response.getStatusCode()))) {
+                return response;
+            }
+            if (response == null && retry >= retryPolicy.getMaxRetries()) {
+                throw new ElasticsearchException("Elasticsearch connection failed", exception);
+            }
+            LOGGER.debug("Elasticsearch request failed, retrying", exception);
+            try {
+                Thread.sleep(retryPolicy.getBackoffMs(retry));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ElasticsearchException("Interrupted while waiting to retry", e);
+            }
+            retry++;
+            failovers = 0;
+        }
+    }
+
+    private HttpRequest newRequest(String method, String url, String contentType, RequestBody body) {
+        HttpRequest request;
+        try {
+            request = body == null ? new HttpRequest(method, new URL(url), null) : new HttpRequest(method, new URL(url), body.array(), body.size());
+        } catch (MalformedURLException e) {
+            throw new ElasticsearchException("Elasticsearch connection failed", e);
+        }
+        if (authorization != null) {
+            request.setHeader("Authorization", authorization);
+        }
+        request.setHeader("Accept", "application/json");
+        if (contentType != null) {
+            request.setHeader("Content-Type", contentType);
+        }
+        if (body != null && body.isCompressed()) {
+            request.setHeader("Content-Encoding", "gzip");
+        }
+        request.setTimeouts(connectTimeoutMs, readTimeoutMs);
+        return request;
+    }
+
+    /**
+     * Replace node list with HTTP addresses published by cluster nodes
+     */
+    public void sniffNodes() {
+        HttpResponse response = execute("GET", "_nodes/http", null, null);
+        if (response.getStatusCode() >= 300) {
+            throw new ElasticsearchException(String.format("Elasticsearch reponse failed,  code %d, message %s", response.getStatusCode(), response.getStatusMessage()));
+        }
+        List<String> urls;
+        try (JsonParser jsonParser = jsonFactory.createParser(response.getBody())) {
+            urls = parseNodes(jsonParser, sniffScheme);
+        } catch (IOException e) {
+            throw new ElasticsearchException("Elasticsearch nodes response parsing failed", e);
+        }
+        if (!urls.isEmpty()) {
+            nodePool.setNodes(urls);
+        }
+    }
+
+    /**
+     * Read nodes.*.http.publish_address from nodes info API response
+     */
+    static List<String> parseNodes(JsonParser parser, String scheme) throws IOException {
+        List<String> urls = new ArrayList<>();
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return urls;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (fieldName.equals("nodes") && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    String address = parseNodeAddress(parser);
+                    if (address != null) {
+                        urls.add(scheme + "://" + address + "/");
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return urls;
+    }
+
+    private static String parseNodeAddress(JsonParser parser) throws IOException {
+        String address = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (fieldName.equals("http") && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String httpFieldName = parser.getCurrentName();
+                    parser.nextToken();
+                    if (httpFieldName.equals("publish_address")) {
+                        address = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (address == null) {
+            return null;
+        }
+        // Address is either ip:port or hostname/ip:port
+        int slash = address.indexOf('/');
+        if (slash > 0) {
+            return address.substring(0, slash) + address.substring(address.lastIndexOf(':'));
+        }
+        return address.substring(slash + 1);
+    }
+
+    private String getDocumentPath(String indexName) {
+        String[] lastDocumentPath = documentPath;
+        if (lastDocumentPath != null && lastDocumentPath[0] == indexName) {
+            return lastDocumentPath[1];
+        }
+        String path = docType == null ? indexName : indexName + "/" + docType;
+        documentPath = new String[]{indexName, path};
+        return path;
+    }
+
+    /**
+     * Pattern matching names of written indices, ex: metricbeat-dropwizard-*, null when it is unknown
+     */
+    String getIndexPattern() {
+        return indexPattern;
+    }
+
+    public NodePool getNodePool() {
+        return nodePool;
+    }
+
+    /**
+     * Circuit breaker state, null when disabled
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    @Override
+    public void close() {
+        if (sniffer != null) {
+            sniffer.shutdownNow();
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close Elasticsearch transport", e);
         }
     }
 
-    public HttpURLConnection openConnection(long timestamp) throws IOException {
-        String url = baseUrl + indexPrefix + indexDateFormat.format(new Date(timestamp));
-        if (docType != null) {
-            url += "/" + docType;
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder of {@link ElasticsearchClient}
+     */
+    public static class Builder {
+        private List<String> urls = Collections.singletonList("http://localhost:9200/");
+        private NodeSelection nodeSelection = NodeSelection.ROUND_ROBIN;
+        private long initialDeadBackoffMs = 5000L;
+        private long maxDeadBackoffMs = 300000L;
+        private long sniffIntervalMs;
+        private String username;
+        private String password;
+        private String indexPrefix = "metricbeat-dropwizard-";
+        private DateFormat indexDateFormat = new SimpleDateFormat("yyyy.MM.dd");
+        private IndexNameResolver indexNameResolver;
+        private String docType;
+        private HttpTransport transport;
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        private int compressionThreshold = -1;
+        private int bodyPoolSize = 2;
+        private int maxPooledBodyBytes = 4 * 1024 * 1024;
+        private int connectTimeoutMs = 10000;
+        private int readTimeoutMs = 30000;
+        private RetryPolicy retryPolicy = RetryPolicy.NONE;
+        private CircuitBreaker circuitBreaker;
+        private DocumentLayout documentLayout = DocumentLayout.METRIC_SET;
+        private int documentPrefixDepth = 1;
+        private int maxDocumentBytes;
+        private ContentFormat contentFormat = ContentFormat.JSON;
+        private ReporterMetrics metrics;
+
+        private Builder() {
+        }
+
+        /**
+         * Elasticsearch URL, ex: https://elasticsearch:9200, default: http://localhost:9200
+         */
+        public Builder url(String url) {
+            this.urls = Collections.singletonList(url);
+            return this;
+        }
+
+        /**
+         * Elasticsearch node URLs, requests are spread across them
+         */
+        public Builder urls(String... urls) {
+            if (urls.length == 0) {
+                throw new IllegalArgumentException("At least one node URL is required");
+            }
+            this.urls = Arrays.asList(urls);
+            return this;
+        }
+
+        /**
+         * How the node receiving a request is chosen, default: round robin
+         */
+        public Builder nodeSelection(NodeSelection nodeSelection) {
+            this.nodeSelection = nodeSelection;
+            return this;
+        }
+
+        /**
+         * How long a failed node is skipped, doubled at each consecutive failure, default: 5s to 5min
+         */
+        public Builder deadNodeBackoff(long initialBackoff, long maxBackoff, TimeUnit backoffUnit) {
+            this.initialDeadBackoffMs = backoffUnit.toMillis(initialBackoff);
+            this.maxDeadBackoffMs = backoffUnit.toMillis(maxBackoff);
+            return this;
+        }
+
+        /**
+         * Periodically replace node list with the one published by the cluster, default: disabled
+         */
+        public Builder sniff(long interval, TimeUnit intervalUnit) {
+            this.sniffIntervalMs = intervalUnit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Elasticsearch username and password
+         */
+        public Builder basicAuth(String username, String password) {
+            this.username = username;
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * Index name prefix, ex: metrics-, default: metricbeat-dropwizard-
+         */
+        public Builder indexPrefix(String indexPrefix) {
+            this.indexPrefix = indexPrefix;
+            return this;
+        }
+
+        /**
+         * Index name date suffix format, default: yyyy.MM.dd
+         */
+        public Builder indexDateFormat(DateFormat indexDateFormat) {
+            this.indexDateFormat = indexDateFormat;
+            return this;
+        }
+
+        /**
+         * Index name computation, replaces index prefix and date format, default: {@link DateIndexNameResolver}
+         */
+        public Builder indexNameResolver(IndexNameResolver indexNameResolver) {
+            this.indexNameResolver = indexNameResolver;
+            return this;
+        }
+
+        /**
+         * Document type, ex: doc
+         */
+        public Builder docType(String docType) {
+            this.docType = docType;
+            return this;
+        }
+
+        /**
+         * HTTP transport, default: {@link UrlConnectionTransport}
+         */
+        public Builder transport(HttpTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * Compress request bodies with gzip, default: no compression
+         *
+         * @param level     Deflate level, from 1 (fast) to 9 (small)
+         * @param threshold Size in bytes below which bodies are sent uncompressed
+         */
+        public Builder compression(int level, int threshold) {
+            if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Invalid compression level " + level);
+            }
+            this.compressionLevel = level;
+            this.compressionThreshold = Math.max(threshold, 0);
+            return this;
+        }
+
+        /**
+         * Reuse request body buffers between requests, default: 2 bodies up to 4MB
+         *
+         * @param size         Maximum number of idle bodies, 0 to allocate a new body for each request
+         * @param maxBodyBytes Bodies retaining more memory are not reused
+         */
+        public Builder bodyPool(int size, int maxBodyBytes) {
+            this.bodyPoolSize = size;
+            this.maxPooledBodyBytes = maxBodyBytes;
+            return this;
+        }
+
+        /**
+         * Maximum time to connect and to wait for response data, 0 means infinite, default: 10s and 30s
+         */
+        public Builder timeouts(long connectTimeout, long readTimeout, TimeUnit timeoutUnit) {
+            this.connectTimeoutMs = (int) timeoutUnit.toMillis(connectTimeout);
+            this.readTimeoutMs = (int) timeoutUnit.toMillis(readTimeout);
+            return this;
+        }
+
+        /**
+         * Send requests again on connection failure or 429, 502, 503, 504 status, default: no retry
+         *
+         * @param maxRetries     Maximum number of times a request is sent again
+         * @param initialBackoff Wait before the first retry, doubled for each following retry
+         * @param maxBackoff     Maximum wait between two attempts
+         */
+        public Builder retry(int maxRetries, long initialBackoff, long maxBackoff, TimeUnit backoffUnit) {
+            this.retryPolicy = new RetryPolicy(maxRetries, initialBackoff, maxBackoff, backoffUnit);
+            return this;
+        }
+
+        /**
+         * Fail fast after many consecutive failures, until a probe request succeeds, default: disabled
+         *
+         * @param failureThreshold Number of consecutive failures opening the breaker
+         * @param openDuration     Time during which requests fail fast before a probe is tried
+         */
+        public Builder circuitBreaker(int failureThreshold, long openDuration, TimeUnit openDurationUnit) {
+            this.circuitBreaker = new CircuitBreaker(failureThreshold, openDuration, openDurationUnit);
+            return this;
+        }
+
+        /**
+         * How metrics are spread across documents, default: a single document containing all metrics
+         */
+        public Builder documentLayout(DocumentLayout documentLayout) {
+            this.documentLayout = documentLayout;
+            return this;
+        }
+
+        /**
+         * Number of metric name parts shared by metrics in a document with {@link DocumentLayout#PREFIX} layout, default: 1
+         */
+        public Builder documentPrefixDepth(int documentPrefixDepth) {
+            if (documentPrefixDepth <= 0) {
+                throw new IllegalArgumentException("Document prefix depth must be positive");
+            }
+            this.documentPrefixDepth = documentPrefixDepth;
+            return this;
+        }
+
+        /**
+         * Documents larger than this size are split in many documents, 0 to disable, default: disabled
+         */
+        public Builder maxDocumentSize(int maxDocumentBytes) {
+            this.maxDocumentBytes = maxDocumentBytes;
+            return this;
+        }
+
+        /**
+         * Document encoding, default: JSON
+         */
+        public Builder contentFormat(ContentFormat contentFormat) {
+            this.contentFormat = contentFormat;
+            return this;
+        }
+
+        /**
+         * Record serialization and HTTP metrics, default: disabled
+         */
+        public Builder metrics(ReporterMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public ElasticsearchClient build() {
+            for (String url : urls) {
+                try {
+                    // Check URL is valid
+                    new URL(url);
+                } catch (MalformedURLException e) {
+                    throw new IllegalArgumentException("Invalid Elasticsearch URL " + url, e);
+                }
+            }
+            return new ElasticsearchClient(this);
         }
-        return (HttpURLConnection) new URL(url).openConnection();
     }
 }
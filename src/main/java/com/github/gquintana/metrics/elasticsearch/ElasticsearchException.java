@@ -1,11 +1,36 @@
 package com.github.gquintana.metrics.elasticsearch;
 
 public class ElasticsearchException extends RuntimeException {
+    private final int statusCode;
+
     public ElasticsearchException(String message) {
+        this(message, 0);
+    }
+
+    /**
+     * @param statusCode HTTP status of the failed response
+     */
+    public ElasticsearchException(String message, int statusCode) {
         super(message);
+        this.statusCode = statusCode;
     }
 
     public ElasticsearchException(String message, Throwable cause) {
         super(message, cause);
+        this.statusCode = 0;
+    }
+
+    /**
+     * HTTP status of the failed response, 0 when no response was received
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Whether the request was rejected and sending it again would fail the same way: client errors except timeout and too many requests
+     */
+    public boolean isPermanent() {
+        return statusCode >= 400 && statusCode < 500 && statusCode != 408 && statusCode != 429;
     }
 }
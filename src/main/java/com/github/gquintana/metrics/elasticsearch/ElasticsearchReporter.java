@@ -1,9 +1,11 @@
 package com.github.gquintana.metrics.elasticsearch;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
@@ -11,26 +13,97 @@ import com.codahale.metrics.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
 
 public class ElasticsearchReporter extends ScheduledReporter {
     private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchReporter.class);
 
     private static final String NAME = "elasticsearch-reporter";
+    /**
+     * Minimum time after which counts of removed metrics are forgotten
+     */
+    private static final long COUNT_EXPIRY_MS = TimeUnit.HOURS.toMillis(1L);
+    /**
+     * Maximum number of wake-ups between two reports of the most frequent tier
+     */
+    private static final long MAX_TICKS_PER_INTERVAL = 10L;
+    /**
+     * Wait between index template installation attempts
+     */
+    private static final RetryPolicy INDEX_TEMPLATE_RETRY_POLICY = new RetryPolicy(Integer.MAX_VALUE, 10L, 600L, TimeUnit.SECONDS);
     /**
      * Current host name
      */
     private final String hostname;
-    private final ElasticsearchClient elasticsearchClient;
+    private final MetricSetSender sender;
+    private final MetricNameCache nameCache;
+    /**
+     * Last reported values, null when all metrics are always reported
+     */
+    private final ChangeTracker changeTracker;
+    private final long fullSnapshotIntervalMs;
+    private long lastFullSnapshotMs;
+    /**
+     * Last reported counts, null when count deltas are not reported
+     */
+    private final CountTracker countTracker;
+    private long lastCountExpiryMs;
+    /**
+     * Pool used to snapshot metrics in parallel, null when metrics are snapshotted by reporter thread
+     */
+    private final ForkJoinPool snapshotPool;
+    private final int snapshotBatchSize;
+    private final SamplingExportResolver samplingExports;
+    /**
+     * Metrics reported at their own interval, other metrics are reported at each period
+     */
+    private final Tier[] tiers;
+    /**
+     * Last report time of each tier, the last one being the default tier
+     */
+    private final long[] tierLastReportMs;
+    private final boolean[] tierDue;
+    private volatile long periodMs;
+    private volatile long tickMs;
+    private final ElasticsearchClient client;
+    /**
+     * Self instrumentation, null when disabled
+     */
+    private final ReporterMetrics metrics;
+    /**
+     * Concurrent gauge evaluation, null when gauges are evaluated by reporter thread
+     */
+    private final GaugeEvaluator gaugeEvaluator;
+    /**
+     * Aggregates samples taken at each period into a document per window, null when each sample is sent
+     */
+    private final Downsampler downsampler;
+    private final long downsampleWindowMs;
+    private long lastDownsampleFlushMs;
+    /**
+     * Index template installed before first report, null when not managed
+     */
+    private final IndexTemplate indexTemplate;
+    /**
+     * Index template was installed, or rejected for good
+     */
+    private volatile boolean indexTemplateInstalled;
+    private int indexTemplateFailures;
+    private long indexTemplateRetryMs;
 
     private final RateConverter rateConverter = new RateConverter() {
         @Override
@@ -51,44 +124,472 @@ public class ElasticsearchReporter extends ScheduledReporter {
         }
     };
 
-    private ElasticsearchReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit, String hostname, ElasticsearchClient elasticsearchClient) {
-        super(registry, NAME, filter, rateUnit, durationUnit);
-        this.hostname = hostname;
-        this.elasticsearchClient = elasticsearchClient;
+    private ElasticsearchReporter(Builder builder, ElasticsearchClient client, MetricSetSender sender, ReporterMetrics metrics) {
+        super(builder.registry, NAME, builder.filter, builder.rateUnit, builder.durationUnit);
+        this.hostname = builder.hostname;
+        this.sender = sender;
+        this.nameCache = builder.nameCacheSize > 0 ? new MetricNameCache(builder.nameCacheSize) : null;
+        this.changeTracker = builder.fullSnapshotIntervalMs >= 0L ? new ChangeTracker() : null;
+        this.fullSnapshotIntervalMs = builder.fullSnapshotIntervalMs;
+        this.countTracker = builder.countDeltas ? new CountTracker() : null;
+        this.snapshotPool = builder.snapshotPool;
+        this.snapshotBatchSize = builder.snapshotBatchSize;
+        this.samplingExports = builder.samplingExports;
+        this.tiers = builder.tiers.toArray(new Tier[builder.tiers.size()]);
+        this.tierLastReportMs = new long[tiers.length + 1];
+        this.tierDue = new boolean[tiers.length + 1];
+        this.client = client;
+        this.indexTemplate = builder.indexTemplate;
+        this.metrics = metrics;
+        this.gaugeEvaluator = builder.gaugeThreads > 0 ? new GaugeEvaluator(builder.gaugeThreads, builder.gaugeTimeoutMs, TimeUnit.MILLISECONDS, metrics) : null;
+        this.downsampler = builder.downsampleWindowMs > 0L ? new Downsampler() : null;
+        this.downsampleWindowMs = builder.downsampleWindowMs;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Install index template, then start reporting.
+     * With tiers, the reporter wakes up at the greatest common divisor of the period and tier intervals,
+     * intervals which are not multiples of each other, like 1001ms and 1min, are rejected as it would wake up too often.
+     *
+     * @param period Interval of metrics not belonging to any tier, or sampling interval when downsampling
+     */
+    @Override
+    public void start(long period, TimeUnit unit) {
+        if (downsampler != null && downsampleWindowMs < unit.toMillis(period)) {
+            throw new IllegalArgumentException("Downsampling window must be longer than period");
+        }
+        installIndexTemplate();
+        long tick = unit.toMillis(period);
+        long minIntervalMs = tick;
+        for (Tier tier : tiers) {
+            tick = gcd(tick, tier.intervalMs);
+            minIntervalMs = Math.min(minIntervalMs, tier.intervalMs);
+        }
+        if (tick * MAX_TICKS_PER_INTERVAL < minIntervalMs) {
+            throw new IllegalArgumentException("Period and tier intervals would wake up reporter every " + tick + "ms, use multiples of a common interval");
+        }
+        this.periodMs = unit.toMillis(period);
+        this.tickMs = tick;
+        super.start(tick, TimeUnit.MILLISECONDS);
     }
 
-    private ElasticsearchReporter(MetricRegistry registry, MetricFilter filter, TimeUnit rateUnit, TimeUnit durationUnit, ScheduledExecutorService executor, String hostname, ElasticsearchClient elasticsearchClient) {
-        super(registry, NAME, filter, rateUnit, durationUnit, executor);
-        this.hostname = hostname;
-        this.elasticsearchClient = elasticsearchClient;
+    private static long gcd(long a, long b) {
+        while (b != 0L) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
     }
 
-    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Metrics matching a filter and reported at a given interval
+     */
+    private static class Tier {
+        private final MetricFilter filter;
+        private final long intervalMs;
+
+        private Tier(MetricFilter filter, long intervalMs) {
+            this.filter = filter;
+            this.intervalMs = intervalMs;
+        }
+    }
+
+    /**
+     * Compute which tiers should be reported, half a tick of tolerance absorbs scheduling jitter
+     *
+     * @return Whether any tier is due
+     */
+    private boolean computeDueTiers(long timestamp) {
+        long tolerance = tickMs / 2L;
+        boolean anyDue = false;
+        for (int t = 0; t <= tiers.length; t++) {
+            long intervalMs = t < tiers.length ? tiers[t].intervalMs : periodMs;
+            tierDue[t] = tierLastReportMs[t] == 0L || timestamp - tierLastReportMs[t] >= intervalMs - tolerance;
+            anyDue |= tierDue[t];
+        }
+        return anyDue;
+    }
+
+    private void markTiersReported(long timestamp) {
+        for (int t = 0; t <= tiers.length; t++) {
+            if (tierDue[t]) {
+                tierLastReportMs[t] = timestamp;
+            }
+        }
+    }
+
+    /**
+     * Whether the tier of a metric is due, a metric belongs to the first tier whose filter matches
+     */
+    private boolean isDue(String name, Metric metric) {
+        for (int t = 0; t < tiers.length; t++) {
+            if (tiers[t].filter.matches(name, metric)) {
+                return tierDue[t];
+            }
+        }
+        return tierDue[tiers.length];
+    }
+
+    /**
+     * Install index template once.
+     * A failed installation is attempted again on a later report, after a growing backoff,
+     * unless Elasticsearch rejected the template, then metrics are written without it.
+     */
+    private synchronized void installIndexTemplate() {
+        if (indexTemplate == null || indexTemplateInstalled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < indexTemplateRetryMs) {
+            return;
+        }
+        try {
+            client.installIndexTemplate(indexTemplate);
+            indexTemplateInstalled = true;
+        } catch (ElasticsearchException e) {
+            if (e.isPermanent()) {
+                LOGGER.error("Index template {} rejected, it won't be installed", indexTemplate.getName(), e);
+                indexTemplateInstalled = true;
+                return;
+            }
+            long backoffMs = INDEX_TEMPLATE_RETRY_POLICY.getBackoffMs(indexTemplateFailures);
+            indexTemplateRetryMs = now + backoffMs;
+            if (indexTemplateFailures == 0) {
+                LOGGER.warn("Failed to install index template {}, trying again in {}ms", indexTemplate.getName(), backoffMs, e);
+            } else {
+                LOGGER.debug("Failed to install index template {}, trying again in {}ms: {}", indexTemplate.getName(), backoffMs, e.getMessage());
+            }
+            indexTemplateFailures++;
+        }
+    }
 
     @Override
     public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
-        MetricSet metricSet = new MetricSet(System.currentTimeMillis(), hostname);
+        long timestamp = System.currentTimeMillis();
+        long start = System.nanoTime();
+        if (!computeDueTiers(timestamp)) {
+            return;
+        }
+        markTiersReported(timestamp);
+        boolean full = changeTracker == null || timestamp - lastFullSnapshotMs >= fullSnapshotIntervalMs;
+        if (full && changeTracker != null) {
+            // Forget removed metrics
+            changeTracker.clear();
+            lastFullSnapshotMs = timestamp;
+        }
 
-        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
-            metricSet.addGauge(gauge.getKey(), gauge.getValue());
+        List<MetricEntry> entries = new ArrayList<>(gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size());
+        if (gaugeEvaluator == null) {
+            for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+                if (!isDue(gauge.getKey(), gauge.getValue())) {
+                    continue;
+                }
+                Object value = gauge.getValue().getValue();
+                if (isChanged(gauge.getKey(), ChangeTracker.fingerprint(value), full)) {
+                    entries.add(new MetricEntry(MetricEntry.GAUGE, gauge.getKey(), value));
+                }
+            }
+        } else {
+            addGauges(gauges, full, entries);
         }
-        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
-            metricSet.addCounter(counter.getKey(), counter.getValue());
+        addCountEntries(MetricEntry.COUNTER, counters, full, timestamp, entries);
+        addCountEntries(MetricEntry.HISTOGRAM, histograms, full, timestamp, entries);
+        addCountEntries(MetricEntry.METER, meters, full, timestamp, entries);
+        addCountEntries(MetricEntry.TIMER, timers, full, timestamp, entries);
+        expireCounts(timestamp);
+        if (entries.isEmpty() && !full) {
+            return;
         }
-        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
-            metricSet.addHistogram(histogram.getKey(), histogram.getValue());
+        MetricSet metricSet;
+        if (snapshotPool == null || entries.size() <= snapshotBatchSize) {
+            metricSet = snapshot(timestamp, entries, 0, entries.size());
+        } else {
+            Collections.sort(entries);
+            metricSet = snapshotPool.invoke(new SnapshotTask(timestamp, entries, 0, entries.size()));
         }
-        for (Map.Entry<String, Meter> meter : meters.entrySet()) {
-            metricSet.addMeter(meter.getKey(), meter.getValue(), rateConverter);
+        if (metrics != null) {
+            metrics.recordSnapshot(System.nanoTime() - start, metricSet.getMetricCount());
         }
-        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
-            metricSet.addTimer(timer.getKey(), timer.getValue(), durationConverter, rateConverter);
+        if (downsampler != null) {
+            metricSet = downsample(timestamp, metricSet);
+            if (metricSet == null) {
+                return;
+            }
         }
+        installIndexTemplate();
         try {
-            elasticsearchClient.postDocument(metricSet);
+            sender.send(metricSet);
         } catch (ElasticsearchException e) {
             LOGGER.warn("Failed to write metrics in Elasticsearch", e);
+            if (metrics != null) {
+                metrics.recordDroppedReport();
+            }
+        }
+        if (metrics != null) {
+            metrics.recordReport(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Add a sample to current window
+     *
+     * @return Aggregated metrics when the window is over, null otherwise
+     */
+    private MetricSet downsample(long timestamp, MetricSet sample) {
+        downsampler.add(sample);
+        if (lastDownsampleFlushMs == 0L) {
+            lastDownsampleFlushMs = timestamp;
+        }
+        if (timestamp - lastDownsampleFlushMs < downsampleWindowMs - tickMs / 2L) {
+            return null;
+        }
+        lastDownsampleFlushMs = timestamp;
+        MetricSet metricSet = new MetricSet(timestamp, hostname, nameCache);
+        downsampler.flush(metricSet);
+        return metricSet;
+    }
+
+    /**
+     * Add due and changed metrics having a count, the count is read once so that change detection, delta and document agree
+     */
+    private <T extends Metric & Counting> void addCountEntries(int type, SortedMap<String, T> metrics, boolean full, long timestamp, List<MetricEntry> entries) {
+        for (Map.Entry<String, T> metric : metrics.entrySet()) {
+            if (!isDue(metric.getKey(), metric.getValue())) {
+                continue;
+            }
+            long count = metric.getValue().getCount();
+            if (isChanged(metric.getKey(), count, full)) {
+                entries.add(countEntry(type, metric.getKey(), metric.getValue(), count, timestamp));
+            }
+        }
+    }
+
+    /**
+     * Metric with a count, and its increase since previous report
+     */
+    private MetricEntry countEntry(int type, String name, Metric metric, long count, long timestamp) {
+        MetricEntry entry = new MetricEntry(type, name, metric);
+        entry.count = count;
+        // Only counters may decrease, other counts decrease when the metric is reset
+        if (countTracker != null && countTracker.update(name, count, timestamp, type != MetricEntry.COUNTER)) {
+            entry.countDelta = countTracker.getDelta();
+            entry.countIntervalMs = countTracker.getIntervalMs();
         }
+        return entry;
+    }
+
+    /**
+     * Forget counts of metrics not reported for a while, long enough not to forget metrics reported less often
+     */
+    private void expireCounts(long timestamp) {
+        if (countTracker == null) {
+            return;
+        }
+        long expiryMs = Math.max(COUNT_EXPIRY_MS, 2L * Math.max(periodMs, fullSnapshotIntervalMs));
+        for (Tier tier : tiers) {
+            expiryMs = Math.max(expiryMs, 2L * tier.intervalMs);
+        }
+        if (timestamp - lastCountExpiryMs >= expiryMs) {
+            countTracker.expire(timestamp - expiryMs);
+            lastCountExpiryMs = timestamp;
+        }
+    }
+
+    /**
+     * Evaluate due gauges concurrently
+     */
+    private void addGauges(SortedMap<String, Gauge> gauges, boolean full, List<MetricEntry> entries) {
+        List<String> names = new ArrayList<>(gauges.size());
+        List<Gauge> dueGauges = new ArrayList<>(gauges.size());
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            if (isDue(gauge.getKey(), gauge.getValue())) {
+                names.add(gauge.getKey());
+                dueGauges.add(gauge.getValue());
+            }
+        }
+        Object[] values = new Object[names.size()];
+        long[] agesMs = new long[names.size()];
+        gaugeEvaluator.evaluate(names, dueGauges, values, agesMs);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && isChanged(names.get(i), ChangeTracker.fingerprint(values[i]), full)) {
+                entries.add(new MetricEntry(MetricEntry.GAUGE, names.get(i), values[i], agesMs[i]));
+            }
+        }
+    }
+
+    /**
+     * Read metric values and snapshots
+     */
+    private MetricSet snapshot(long timestamp, List<MetricEntry> entries, int from, int to) {
+        MetricSet metricSet = new MetricSet(timestamp, hostname, nameCache);
+        for (int i = from; i < to; i++) {
+            MetricEntry entry = entries.get(i);
+            switch (entry.type) {
+                case MetricEntry.GAUGE:
+                    metricSet.addGaugeValue(entry.name, entry.metric);
+                    if (entry.ageMs > 0L) {
+                        // Last value of a slow or failing gauge
+                        metricSet.addField("age", entry.ageMs);
+                    }
+                    break;
+                case MetricEntry.COUNTER:
+                    metricSet.addCounter(entry.name, entry.count);
+                    break;
+                case MetricEntry.HISTOGRAM:
+                    metricSet.addHistogram(entry.name, entry.count, (Histogram) entry.metric, samplingExports.get(entry.name));
+                    break;
+                case MetricEntry.METER:
+                    metricSet.addMeter(entry.name, entry.count, (Meter) entry.metric, rateConverter);
+                    break;
+                default:
+                    metricSet.addTimer(entry.name, entry.count, (Timer) entry.metric, durationConverter, rateConverter, samplingExports.get(entry.name));
+                    break;
+            }
+            if (entry.countIntervalMs > 0L) {
+                metricSet.addCountDelta(entry.countDelta, convertRate(entry.countDelta * 1000D / entry.countIntervalMs));
+            }
+        }
+        return metricSet;
+    }
+
+    /**
+     * Metric to be reported, gauges are already evaluated
+     */
+    private static class MetricEntry implements Comparable<MetricEntry> {
+        private static final int GAUGE = 0;
+        private static final int COUNTER = 1;
+        private static final int HISTOGRAM = 2;
+        private static final int METER = 3;
+        private static final int TIMER = 4;
+        private final int type;
+        private final String name;
+        private final Object metric;
+        /**
+         * Age of gauge value, 0 when fresh
+         */
+        private final long ageMs;
+        /**
+         * Count read when the metric was selected, written instead of reading it again
+         */
+        private long count;
+        /**
+         * Count increase since previous report, when interval is not 0
+         */
+        private long countDelta;
+        private long countIntervalMs;
+
+        private MetricEntry(int type, String name, Object metric) {
+            this(type, name, metric, 0L);
+        }
+
+        private MetricEntry(int type, String name, Object metric, long ageMs) {
+            this.type = type;
+            this.name = name;
+            this.metric = metric;
+            this.ageMs = ageMs;
+        }
+
+        @Override
+        public int compareTo(MetricEntry other) {
+            return name.compareTo(other.name);
+        }
+
+        /**
+         * Whether both metrics belong to the same top level name subtree
+         */
+        private boolean isSameSubtree(MetricEntry other) {
+            int dot = name.indexOf('.');
+            int length = dot < 0 ? name.length() : dot;
+            return other.name.length() >= length && other.name.regionMatches(0, name, 0, length)
+                    && (other.name.length() == length || other.name.charAt(length) == '.');
+        }
+    }
+
+    /**
+     * Snapshot a range of metrics sorted by name, the range is split in two halves preferably
+     * on a name subtree boundary, halves are snapshotted in parallel and merged in order.
+     */
+    private class SnapshotTask extends RecursiveTask<MetricSet> {
+        private final long timestamp;
+        private final List<MetricEntry> entries;
+        private final int from;
+        private final int to;
+
+        private SnapshotTask(long timestamp, List<MetricEntry> entries, int from, int to) {
+            this.timestamp = timestamp;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected MetricSet compute() {
+            if (to - from <= snapshotBatchSize) {
+                return snapshot(timestamp, entries, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            int split = middle;
+            while (split < to && entries.get(split - 1).isSameSubtree(entries.get(split))) {
+                split++;
+            }
+            if (split == to) {
+                split = middle;
+                while (split > from + 1 && entries.get(split - 1).isSameSubtree(entries.get(split))) {
+                    split--;
+                }
+                if (entries.get(split - 1).isSameSubtree(entries.get(split))) {
+                    // Single subtree
+                    split = middle;
+                }
+            }
+            SnapshotTask left = new SnapshotTask(timestamp, entries, from, split);
+            left.fork();
+            MetricSet right = new SnapshotTask(timestamp, entries, split, to).compute();
+            MetricSet metricSet = left.join();
+            metricSet.addAll(right);
+            return metricSet;
+        }
+    }
+
+    /**
+     * Metrics whose count or value didn't change since last report are skipped, unless a full snapshot is due
+     */
+    private boolean isChanged(String name, long fingerprint, boolean full) {
+        if (changeTracker == null) {
+            return true;
+        }
+        boolean changed = changeTracker.update(name, fingerprint);
+        return changed || full;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (gaugeEvaluator != null) {
+            gaugeEvaluator.close();
+        }
+        try {
+            sender.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close Elasticsearch sender", e);
+        }
+    }
+
+    /**
+     * Gauge evaluation times, null when gauges are evaluated by reporter thread
+     */
+    public GaugeEvaluator getGaugeEvaluator() {
+        return gaugeEvaluator;
+    }
+
+    /**
+     * Asynchronous sender statistics, null when documents are sent synchronously
+     */
+    public AsyncSender getAsyncSender() {
+        return sender instanceof AsyncSender ? (AsyncSender) sender : null;
     }
 
     // -----------------------------------------------------------------------------------------------------------------
@@ -102,12 +603,34 @@ public class ElasticsearchReporter extends ScheduledReporter {
         private TimeUnit durationUnit = TimeUnit.MILLISECONDS;
         private MetricFilter filter = MetricFilter.ALL;
         private String hostname;
-        private String url = "http://localhost:9200/";
-        private String username;
-        private String password;
-        private String indexPrefix = "metricbeat-dropwizard-";
-        private DateFormat indexDateFormat = new SimpleDateFormat("yyyy.MM.dd");
-        private String docType;
+        private final ElasticsearchClient.Builder clientBuilder = ElasticsearchClient.builder();
+        private int asyncQueueCapacity;
+        private OverflowPolicy asyncOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+        private long asyncBlockTimeoutMs = 1000L;
+        private int bulkMaxActions;
+        private long bulkMaxBytes;
+        private long bulkLingerMs;
+        private int bulkMaxRetries = 3;
+        private long bulkInitialBackoffMs = 1000L;
+        private long bulkMaxBackoffMs = 30000L;
+        private int nameCacheSize = 100000;
+        private long fullSnapshotIntervalMs = -1L;
+        private ForkJoinPool snapshotPool;
+        private int snapshotBatchSize;
+        private final SamplingExportResolver samplingExports = new SamplingExportResolver();
+        private final List<Tier> tiers = new ArrayList<>();
+        private MetricRegistry metricsRegistry;
+        private String metricsPrefix;
+        private int gaugeThreads;
+        private long gaugeTimeoutMs;
+        private long downsampleWindowMs;
+        private boolean countDeltas;
+        private File spoolDirectory;
+        private long spoolSegmentBytes;
+        private long spoolMaxBytes;
+        private long spoolReplayIntervalMs = 30000L;
+        private IndexTemplate indexTemplate;
+        private ContentFormat contentFormat = ContentFormat.JSON;
 
         private Builder(MetricRegistry registry) {
             this.registry = registry;
@@ -155,8 +678,7 @@ public class ElasticsearchReporter extends ScheduledReporter {
          * Elasticsearch username and password
          */
         public ElasticsearchReporter.Builder basicAuth(String username, String password) {
-            this.username = username;
-            this.password = password;
+            clientBuilder.basicAuth(username, password);
             return this;
         }
 
@@ -166,7 +688,43 @@ public class ElasticsearchReporter extends ScheduledReporter {
         public ElasticsearchReporter.Builder url(String url) throws MalformedURLException {
             // Check URL is valid
             new URL(url);
-            this.url = url;
+            clientBuilder.url(url);
+            return this;
+        }
+
+        /**
+         * Elasticsearch node URLs, requests are spread across them
+         */
+        public ElasticsearchReporter.Builder urls(String... urls) throws MalformedURLException {
+            for (String url : urls) {
+                // Check URL is valid
+                new URL(url);
+            }
+            clientBuilder.urls(urls);
+            return this;
+        }
+
+        /**
+         * How the node receiving a request is chosen, default: round robin
+         */
+        public ElasticsearchReporter.Builder nodeSelection(NodeSelection nodeSelection) {
+            clientBuilder.nodeSelection(nodeSelection);
+            return this;
+        }
+
+        /**
+         * How long a failed node is skipped, doubled at each consecutive failure, default: 5s to 5min
+         */
+        public ElasticsearchReporter.Builder deadNodeBackoff(long initialBackoff, long maxBackoff, TimeUnit backoffUnit) {
+            clientBuilder.deadNodeBackoff(initialBackoff, maxBackoff, backoffUnit);
+            return this;
+        }
+
+        /**
+         * Periodically replace node list with the one published by the cluster, default: disabled
+         */
+        public ElasticsearchReporter.Builder sniff(long interval, TimeUnit intervalUnit) {
+            clientBuilder.sniff(interval, intervalUnit);
             return this;
         }
 
@@ -174,7 +732,7 @@ public class ElasticsearchReporter extends ScheduledReporter {
          * Index name prefix, ex: metrics-, default: metricbeat-dropwizard-
          */
         public ElasticsearchReporter.Builder indexPrefix(String indexPrefix) {
-            this.indexPrefix = indexPrefix;
+            clientBuilder.indexPrefix(indexPrefix);
             return this;
         }
 
@@ -182,7 +740,36 @@ public class ElasticsearchReporter extends ScheduledReporter {
          * Index name date suffix format, ex: yyyy.MM, default: yyyy.MM.dd
          */
         public ElasticsearchReporter.Builder indexDateFormat(String indexDateFormat) {
-            this.indexDateFormat = new SimpleDateFormat(indexDateFormat);
+            clientBuilder.indexDateFormat(new SimpleDateFormat(indexDateFormat));
+            return this;
+        }
+
+        /**
+         * Index name computation, replaces index prefix and date format, default: {@link DateIndexNameResolver}
+         */
+        public ElasticsearchReporter.Builder indexNameResolver(IndexNameResolver indexNameResolver) {
+            clientBuilder.indexNameResolver(indexNameResolver);
+            return this;
+        }
+
+        /**
+         * Install index template and lifecycle policy when the reporter starts, default: not managed.
+         * When the template rolls indices over, metrics are written in its alias, unless an index name resolver is set afterwards.
+         */
+        public ElasticsearchReporter.Builder indexTemplate(IndexTemplate indexTemplate) {
+            this.indexTemplate = indexTemplate;
+            if (indexTemplate.getRolloverAlias() != null) {
+                clientBuilder.indexNameResolver(new ConstantIndexNameResolver(indexTemplate.getRolloverAlias()));
+            }
+            return this;
+        }
+
+        /**
+         * Document encoding, default: JSON
+         */
+        public ElasticsearchReporter.Builder contentFormat(ContentFormat contentFormat) {
+            clientBuilder.contentFormat(contentFormat);
+            this.contentFormat = contentFormat;
             return this;
         }
 
@@ -190,13 +777,352 @@ public class ElasticsearchReporter extends ScheduledReporter {
          * Document type, ex: doc
          */
         public ElasticsearchReporter.Builder docType(String docType) {
-            this.docType = docType;
+            clientBuilder.docType(docType);
+            return this;
+        }
+
+        /**
+         * HTTP transport, default: {@link UrlConnectionTransport}
+         */
+        public ElasticsearchReporter.Builder transport(HttpTransport transport) {
+            clientBuilder.transport(transport);
+            return this;
+        }
+
+        /**
+         * Keep sockets open between reports using a {@link PooledHttpTransport}
+         *
+         * @param maxIdleConnections Maximum number of open sockets kept in pool
+         * @param idleTimeout        Time after which an unused socket is closed
+         */
+        public ElasticsearchReporter.Builder connectionPool(int maxIdleConnections, long idleTimeout, TimeUnit idleTimeoutUnit) {
+            return transport(new PooledHttpTransport(maxIdleConnections, idleTimeout, idleTimeoutUnit));
+        }
+
+        /**
+         * Compress request bodies with gzip, default: no compression
+         *
+         * @param level     Deflate level, from 1 (fast) to 9 (small)
+         * @param threshold Size in bytes below which bodies are sent uncompressed
+         */
+        public ElasticsearchReporter.Builder compression(int level, int threshold) {
+            clientBuilder.compression(level, threshold);
+            return this;
+        }
+
+        /**
+         * Reuse request body buffers between requests, default: 2 bodies up to 4MB
+         *
+         * @param size         Maximum number of idle bodies, 0 to allocate a new body for each request
+         * @param maxBodyBytes Bodies retaining more memory are not reused
+         */
+        public ElasticsearchReporter.Builder bodyPool(int size, int maxBodyBytes) {
+            clientBuilder.bodyPool(size, maxBodyBytes);
+            return this;
+        }
+
+        /**
+         * Maximum time to connect and to wait for response data, 0 means infinite, default: 10s and 30s
+         */
+        public ElasticsearchReporter.Builder timeouts(long connectTimeout, long readTimeout, TimeUnit timeoutUnit) {
+            clientBuilder.timeouts(connectTimeout, readTimeout, timeoutUnit);
+            return this;
+        }
+
+        /**
+         * Send requests again on connection failure or 429, 502, 503, 504 status, default: no retry
+         *
+         * @param maxRetries     Maximum number of times a request is sent again
+         * @param initialBackoff Wait before the first retry, doubled for each following retry
+         * @param maxBackoff     Maximum wait between two attempts
+         */
+        public ElasticsearchReporter.Builder retry(int maxRetries, long initialBackoff, long maxBackoff, TimeUnit backoffUnit) {
+            clientBuilder.retry(maxRetries, initialBackoff, maxBackoff, backoffUnit);
+            return this;
+        }
+
+        /**
+         * Fail fast, or spool, after many consecutive failures until a probe request succeeds, default: disabled
+         *
+         * @param failureThreshold Number of consecutive failures opening the breaker
+         * @param openDuration     Time during which requests fail fast before a probe is tried
+         */
+        public ElasticsearchReporter.Builder circuitBreaker(int failureThreshold, long openDuration, TimeUnit openDurationUnit) {
+            clientBuilder.circuitBreaker(failureThreshold, openDuration, openDurationUnit);
+            return this;
+        }
+
+        /**
+         * How metrics are spread across documents, default: a single document containing all metrics
+         */
+        public ElasticsearchReporter.Builder documentLayout(DocumentLayout documentLayout) {
+            clientBuilder.documentLayout(documentLayout);
+            return this;
+        }
+
+        /**
+         * Number of metric name parts shared by metrics in a document with {@link DocumentLayout#PREFIX} layout, default: 1
+         */
+        public ElasticsearchReporter.Builder documentPrefixDepth(int documentPrefixDepth) {
+            clientBuilder.documentPrefixDepth(documentPrefixDepth);
+            return this;
+        }
+
+        /**
+         * Documents larger than this size are split in many documents, 0 to disable, default: disabled
+         */
+        public ElasticsearchReporter.Builder maxDocumentSize(int maxDocumentBytes) {
+            clientBuilder.maxDocumentSize(maxDocumentBytes);
+            return this;
+        }
+
+        /**
+         * Send documents from a background thread through a bounded queue, default: send synchronously
+         *
+         * @param queueCapacity  Maximum number of documents waiting to be sent
+         * @param overflowPolicy What to do when the queue is full
+         */
+        public ElasticsearchReporter.Builder async(int queueCapacity, OverflowPolicy overflowPolicy) {
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException("Queue capacity must be positive");
+            }
+            this.asyncQueueCapacity = queueCapacity;
+            this.asyncOverflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * Maximum time to wait for room in the queue when overflow policy is {@link OverflowPolicy#BLOCK}, default: 1s
+         */
+        public ElasticsearchReporter.Builder asyncBlockTimeout(long timeout, TimeUnit timeUnit) {
+            this.asyncBlockTimeoutMs = timeUnit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Send documents in batches using the bulk API, default: one request per document
+         *
+         * @param maxActions Maximum number of documents in a bulk request
+         * @param maxBytes   Maximum size in bytes of documents in a bulk request
+         * @param linger     Maximum time a document waits before being sent
+         */
+        public ElasticsearchReporter.Builder bulk(int maxActions, long maxBytes, long linger, TimeUnit lingerUnit) {
+            if (maxActions <= 0 || maxBytes <= 0L) {
+                throw new IllegalArgumentException("Bulk max actions and max bytes must be positive");
+            }
+            this.bulkMaxActions = maxActions;
+            this.bulkMaxBytes = maxBytes;
+            this.bulkLingerMs = lingerUnit.toMillis(linger);
+            return this;
+        }
+
+        /**
+         * Maximum number of times a document rejected by the bulk API is sent again, default: 3
+         */
+        public ElasticsearchReporter.Builder bulkMaxRetries(int maxRetries) {
+            this.bulkMaxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Wait before a document rejected by the bulk API is sent again, default: 1s doubled up to 30s
+         *
+         * @param initialBackoff Wait before the first retry, doubled for each following retry
+         * @param maxBackoff     Maximum wait between two attempts
+         */
+        public ElasticsearchReporter.Builder bulkRetryBackoff(long initialBackoff, long maxBackoff, TimeUnit backoffUnit) {
+            this.bulkInitialBackoffMs = backoffUnit.toMillis(initialBackoff);
+            this.bulkMaxBackoffMs = backoffUnit.toMillis(maxBackoff);
+            return this;
+        }
+
+        /**
+         * Maximum number of normalized metric names kept between reports, 0 to disable, default: 100000
+         */
+        public ElasticsearchReporter.Builder nameCacheSize(int nameCacheSize) {
+            this.nameCacheSize = nameCacheSize;
+            return this;
+        }
+
+        /**
+         * Write documents which could not be sent in local files, and send them again later, default: no spool
+         *
+         * @param directory    Directory containing spool files
+         * @param segmentBytes Size of a spool file, at most {@link DiskSpool#MAX_SEGMENT_BYTES}
+         * @param maxBytes     Maximum disk usage, oldest files are deleted beyond
+         */
+        public ElasticsearchReporter.Builder spool(File directory, long segmentBytes, long maxBytes) {
+            if (segmentBytes <= 0L || maxBytes < segmentBytes) {
+                throw new IllegalArgumentException("Spool segment size must be positive and lower than max size");
+            }
+            if (segmentBytes > DiskSpool.MAX_SEGMENT_BYTES) {
+                throw new IllegalArgumentException("Spool segment size must be at most " + DiskSpool.MAX_SEGMENT_BYTES);
+            }
+            this.spoolDirectory = directory;
+            this.spoolSegmentBytes = segmentBytes;
+            this.spoolMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Time between two attempts to send spooled documents, default: 30s
+         */
+        public ElasticsearchReporter.Builder spoolReplayInterval(long interval, TimeUnit intervalUnit) {
+            this.spoolReplayIntervalMs = intervalUnit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Only report metrics whose count or value changed since last report, default: report all metrics
+         *
+         * @param fullSnapshotInterval Time between two reports containing all metrics
+         */
+        public ElasticsearchReporter.Builder changedOnly(long fullSnapshotInterval, TimeUnit fullSnapshotIntervalUnit) {
+            this.fullSnapshotIntervalMs = fullSnapshotIntervalUnit.toMillis(fullSnapshotInterval);
+            return this;
+        }
+
+        /**
+         * Snapshot metrics in parallel, registries smaller than the batch size are snapshotted by the reporter thread,
+         * default: all metrics snapshotted by the reporter thread
+         *
+         * @param pool      Pool running snapshots, not shut down when the reporter stops
+         * @param batchSize Number of metrics snapshotted by a single task
+         */
+        public ElasticsearchReporter.Builder parallelSnapshot(ForkJoinPool pool, int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("Snapshot batch size must be positive");
+            }
+            this.snapshotPool = pool;
+            this.snapshotBatchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Report metrics matching a filter at their own interval, instead of the period given to {@link ElasticsearchReporter#start(long, TimeUnit)}.
+         * A metric belongs to the first tier whose filter matches, tiers due at the same time are sent together.
+         */
+        public ElasticsearchReporter.Builder tier(MetricFilter filter, long interval, TimeUnit intervalUnit) {
+            long intervalMs = intervalUnit.toMillis(interval);
+            if (intervalMs <= 0L) {
+                throw new IllegalArgumentException("Tier interval must be at least 1ms");
+            }
+            tiers.add(new Tier(filter, intervalMs));
+            return this;
+        }
+
+        /**
+         * Statistics and percentiles written for histograms and timers, default: {@link SamplingExport#DEFAULT}
+         */
+        public ElasticsearchReporter.Builder samplingExport(SamplingExport samplingExport) {
+            samplingExports.setDefault(samplingExport);
+            return this;
+        }
+
+        /**
+         * Statistics and percentiles written for histograms and timers whose name matches a pattern,
+         * the first matching pattern wins
+         *
+         * @param namePattern Regular expression matching whole metric names, ex: http\\..*
+         */
+        public ElasticsearchReporter.Builder samplingExport(String namePattern, SamplingExport samplingExport) {
+            samplingExports.add(namePattern, samplingExport);
+            return this;
+        }
+
+        /**
+         * Register metrics about the reporter itself: report, snapshot, serialize and send timers,
+         * payload size and metric count histograms, HTTP status and dropped report counters, default: disabled
+         *
+         * @param registry Registry receiving the metrics, may be the reported one
+         * @param prefix   Metric name prefix, ex: elasticsearch-reporter
+         */
+        public ElasticsearchReporter.Builder selfMetrics(MetricRegistry registry, String prefix) {
+            this.metricsRegistry = registry;
+            this.metricsPrefix = prefix;
+            return this;
+        }
+
+        /**
+         * Evaluate gauges concurrently, a report waits for them at most a timeout,
+         * slow or failing gauges are reported with their last value and its age, default: gauges evaluated by reporter thread
+         *
+         * @param threads Number of threads evaluating gauges
+         */
+        public ElasticsearchReporter.Builder gaugeEvaluation(int threads, long timeout, TimeUnit timeoutUnit) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("Gauge evaluation threads must be positive");
+            }
+            this.gaugeThreads = threads;
+            this.gaugeTimeoutMs = timeoutUnit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Sample metrics at each period given to {@link ElasticsearchReporter#start(long, TimeUnit)},
+         * and send a single document per window containing the last, min, max and average value of each field,
+         * and the increase of counts, default: each sample is sent.
+         * Spikes shorter than the window are kept while the number of documents is divided by the number of samples per window.
+         *
+         * @param window Time between two documents, ex: 1 minute with a 1 second period
+         */
+        public ElasticsearchReporter.Builder downsample(long window, TimeUnit windowUnit) {
+            long windowMs = windowUnit.toMillis(window);
+            if (windowMs <= 0L) {
+                throw new IllegalArgumentException("Downsampling window must be at least 1ms");
+            }
+            this.downsampleWindowMs = windowMs;
+            return this;
+        }
+
+        /**
+         * Add to counters, histograms, meters and timers the increase of their count since previous report, named count_delta,
+         * and the rate over this interval, named rate, so that they can be summed instead of derived, default: disabled.
+         * A histogram, meter or timer whose count decreases is considered reset, its delta is its count.
+         * Deltas start at the second report of each metric.
+         */
+        public ElasticsearchReporter.Builder countDeltas() {
+            this.countDeltas = true;
             return this;
         }
 
         public ElasticsearchReporter build() {
-            ElasticsearchClient elasticsearchClient = new ElasticsearchClient(url, username, password, indexPrefix, indexDateFormat, docType);
-            return new ElasticsearchReporter(this.registry, filter, rateUnit, durationUnit, hostname, elasticsearchClient);
+            if (downsampleWindowMs > 0L && (!tiers.isEmpty() || fullSnapshotIntervalMs >= 0L || countDeltas)) {
+                throw new IllegalArgumentException("Downsampling doesn't support tiers, changed only reporting nor count deltas");
+            }
+            if ((bulkMaxActions > 0 || spoolDirectory != null) && !contentFormat.isBulkSupported()) {
+                throw new IllegalArgumentException("Bulk API and spool don't support " + contentFormat + " content format");
+            }
+            ReporterMetrics metrics = metricsRegistry == null ? null : new ReporterMetrics(metricsRegistry, metricsPrefix);
+            clientBuilder.metrics(metrics);
+            ElasticsearchClient elasticsearchClient = clientBuilder.build();
+            if (indexTemplate != null && !indexTemplate.hasIndexPatterns() && elasticsearchClient.getIndexPattern() == null) {
+                elasticsearchClient.close();
+                throw new IllegalArgumentException("Index template patterns are required with a custom index name resolver");
+            }
+            MetricSetSender sender = elasticsearchClient;
+            DiskSpool spool = null;
+            if (spoolDirectory != null) {
+                try {
+                    spool = new DiskSpool(spoolDirectory, spoolSegmentBytes, spoolMaxBytes, metrics);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to open spool " + spoolDirectory, e);
+                }
+            }
+            if (bulkMaxActions > 0) {
+                RetryPolicy bulkRetryPolicy = new RetryPolicy(bulkMaxRetries, bulkInitialBackoffMs, bulkMaxBackoffMs, TimeUnit.MILLISECONDS);
+                sender = new BulkSender(elasticsearchClient, bulkMaxActions, bulkMaxBytes, bulkLingerMs, TimeUnit.MILLISECONDS, bulkRetryPolicy, spool, metrics);
+            }
+            if (spool != null) {
+                sender = new SpoolingSender(sender, elasticsearchClient, spool, bulkMaxActions > 0 ? bulkMaxActions : 100, spoolReplayIntervalMs, TimeUnit.MILLISECONDS, metrics);
+            }
+            if (asyncQueueCapacity > 0) {
+                sender = new AsyncSender(sender, asyncQueueCapacity, asyncOverflowPolicy, asyncBlockTimeoutMs, TimeUnit.MILLISECONDS, metrics);
+                if (metrics != null) {
+                    metrics.registerAsyncSender((AsyncSender) sender);
+                }
+            }
+            return new ElasticsearchReporter(this, elasticsearchClient, sender, metrics);
         }
     }
 
@@ -0,0 +1,177 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.codahale.metrics.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates gauges concurrently, a report waits for them at most a timeout.
+ * A gauge which is too slow or fails is replaced by its last value, along with the age of this value.
+ * A gauge still being evaluated is not evaluated again, so that a stuck gauge can not use up the threads.
+ */
+public class GaugeEvaluator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GaugeEvaluator.class);
+    /**
+     * Gauges not seen for this time are forgotten
+     */
+    private static final long FORGET_MS = TimeUnit.HOURS.toMillis(1L);
+
+    private final ExecutorService executor;
+    private final long timeoutNanos;
+    private final ReporterMetrics metrics;
+    private final Map<String, GaugeState> states = new ConcurrentHashMap<>();
+
+    /**
+     * @param threads Number of threads evaluating gauges
+     * @param timeout Maximum time a report waits for gauges
+     * @param metrics Self instrumentation (null allowed)
+     */
+    public GaugeEvaluator(int threads, long timeout, TimeUnit timeoutUnit, ReporterMetrics metrics) {
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "elasticsearch-reporter-gauge-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timeoutNanos = timeoutUnit.toNanos(timeout);
+        this.metrics = metrics;
+    }
+
+    private static class GaugeState {
+        private volatile Object value;
+        private volatile long valueTimeMs;
+        private volatile long evaluationNanos;
+        /**
+         * Only accessed by reporting thread
+         */
+        private Future<?> pending;
+        private long lastSeenMs;
+    }
+
+    private class Evaluation implements Runnable {
+        private final String name;
+        private final Gauge gauge;
+        private final GaugeState state;
+
+        private Evaluation(String name, Gauge gauge, GaugeState state) {
+            this.name = name;
+            this.gauge = gauge;
+            this.state = state;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                Object value = gauge.getValue();
+                state.value = value;
+                state.valueTimeMs = System.currentTimeMillis();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to evaluate gauge {}", name, e);
+                if (metrics != null) {
+                    metrics.recordGaugeFailure();
+                }
+            } finally {
+                state.evaluationNanos = System.nanoTime() - start;
+                if (metrics != null) {
+                    metrics.recordGaugeEvaluation(state.evaluationNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluate gauges, not thread safe
+     *
+     * @param values Gauge values, null when a gauge never returned a value
+     * @param agesMs Age of each value, 0 when the gauge was evaluated in time
+     */
+    public void evaluate(List<String> names, List<Gauge> gauges, Object[] values, long[] agesMs) {
+        long startNanos = System.nanoTime();
+        long startMs = System.currentTimeMillis();
+        GaugeState[] gaugeStates = new GaugeState[names.size()];
+        for (int i = 0; i < gaugeStates.length; i++) {
+            GaugeState state = states.get(names.get(i));
+            if (state == null) {
+                state = new GaugeState();
+                states.put(names.get(i), state);
+            }
+            state.lastSeenMs = startMs;
+            if (state.pending == null || state.pending.isDone()) {
+                try {
+                    state.pending = executor.submit(new Evaluation(names.get(i), gauges.get(i), state));
+                } catch (RejectedExecutionException e) {
+                    state.pending = null;
+                }
+            }
+            gaugeStates[i] = state;
+        }
+        long deadlineNanos = startNanos + timeoutNanos;
+        for (int i = 0; i < gaugeStates.length; i++) {
+            GaugeState state = gaugeStates[i];
+            if (state.pending != null && !state.pending.isDone()) {
+                try {
+                    state.pending.get(Math.max(0L, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    LOGGER.debug("Gauge {} evaluation timed out", names.get(i));
+                    if (metrics != null) {
+                        metrics.recordGaugeTimeout();
+                    }
+                } catch (ExecutionException e) {
+                    // Already logged by evaluation
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    deadlineNanos = startNanos;
+                }
+            }
+            values[i] = state.value;
+            agesMs[i] = state.valueTimeMs >= startMs ? 0L : startMs - state.valueTimeMs;
+        }
+        forget(startMs);
+    }
+
+    private void forget(long nowMs) {
+        for (Iterator<GaugeState> iterator = states.values().iterator(); iterator.hasNext(); ) {
+            if (nowMs - iterator.next().lastSeenMs > FORGET_MS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Duration of the last evaluation of each gauge, to find slow gauges
+     */
+    public Map<String, Long> getEvaluationTimes(TimeUnit unit) {
+        Map<String, Long> evaluationTimes = new HashMap<>();
+        for (Map.Entry<String, GaugeState> state : states.entrySet()) {
+            evaluationTimes.put(state.getKey(), unit.convert(state.getValue().evaluationNanos, TimeUnit.NANOSECONDS));
+        }
+        return evaluationTimes;
+    }
+
+    /**
+     * Stop evaluation threads, a stuck gauge is interrupted
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.text.DateFormat;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index name made of a prefix, the host name and the formatted timestamp, ex: metrics-web01-2018.01.31
+ */
+public class HostnameIndexNameResolver implements IndexNameResolver {
+    private final String prefix;
+    private final DateFormat dateFormat;
+    private final ConcurrentMap<String, DateIndexNameResolver> resolvers = new ConcurrentHashMap<>();
+
+    /**
+     * @param prefix     Index name prefix, ex: metrics-
+     * @param dateFormat Index name date suffix format, it is copied
+     */
+    public HostnameIndexNameResolver(String prefix, DateFormat dateFormat) {
+        this.prefix = prefix;
+        this.dateFormat = (DateFormat) dateFormat.clone();
+    }
+
+    @Override
+    public String getIndexName(MetricSet metricSet) {
+        String hostname = metricSet.getHostname();
+        DateIndexNameResolver resolver = resolvers.get(hostname);
+        if (resolver == null) {
+            resolver = new DateIndexNameResolver(prefix + hostname.toLowerCase(Locale.ROOT) + "-", dateFormat);
+            DateIndexNameResolver previous = resolvers.putIfAbsent(hostname, resolver);
+            if (previous != null) {
+                resolver = previous;
+            }
+        }
+        return resolver.getIndexName(metricSet.getTimestamp());
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP request with a fixed length body
+ */
+public class HttpRequest {
+    private final String method;
+    private final URL url;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private final byte[] body;
+    private final int bodyLength;
+    private int connectTimeoutMs;
+    private int readTimeoutMs;
+
+    /**
+     * @param method HTTP method, ex: POST
+     * @param url    Full URL, ex: http://localhost:9200/_bulk
+     * @param body   Request body (null allowed)
+     */
+    public HttpRequest(String method, URL url, byte[] body) {
+        this(method, url, body, body == null ? 0 : body.length);
+    }
+
+    /**
+     * @param body       Request body buffer (null allowed), may be reused once the request is executed
+     * @param bodyLength Number of bytes of the buffer to send
+     */
+    public HttpRequest(String method, URL url, byte[] body, int bodyLength) {
+        this.method = method;
+        this.url = url;
+        this.body = body;
+        this.bodyLength = bodyLength;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public HttpRequest setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Body buffer, only the first {@link #getBodyLength()} bytes are sent
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @param connectTimeoutMs Maximum time to open the connection, 0 means infinite
+     * @param readTimeoutMs    Maximum time to wait for response data, 0 means infinite
+     */
+    public HttpRequest setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        return this;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+}
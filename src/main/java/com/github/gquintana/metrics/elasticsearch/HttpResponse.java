@@ -0,0 +1,40 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP response whose body was fully read
+ */
+public class HttpResponse {
+    private final int statusCode;
+    private final String statusMessage;
+    private final byte[] body;
+
+    public HttpResponse(int statusCode, String statusMessage, byte[] body) {
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.body = body;
+    }
+
+    /**
+     * HTTP status, ex: 200
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * HTTP status message, ex: OK
+     */
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getBodyAsString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+}
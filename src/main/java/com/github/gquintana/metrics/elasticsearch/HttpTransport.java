@@ -0,0 +1,14 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sends HTTP requests to Elasticsearch
+ */
+public interface HttpTransport extends Closeable {
+    /**
+     * Send request and read the whole response
+     */
+    HttpResponse execute(HttpRequest request) throws IOException;
+}
@@ -0,0 +1,11 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+/**
+ * Chooses the index a {@link MetricSet} is written to.
+ * Implementations are called concurrently by senders and should return the same
+ * String instance for consecutive metric sets going to the same index, so that
+ * request paths can be reused.
+ */
+public interface IndexNameResolver {
+    String getIndexName(MetricSet metricSet);
+}
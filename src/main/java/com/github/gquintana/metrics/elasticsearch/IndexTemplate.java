@@ -0,0 +1,344 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Composable index template, and optionally index lifecycle policy, installed before metrics are written.
+ * Fields written by {@link MetricSet} are mapped explicitly, instead of being guessed from the first value seen.
+ */
+public class IndexTemplate {
+    /**
+     * Integer fields written by {@link MetricSet} and {@link Downsampler}
+     */
+    static final String LONG_FIELDS = "^count(_delta)?$";
+    /**
+     * Floating point fields written by {@link MetricSet}, and their aggregates written by {@link Downsampler}
+     */
+    static final String DOUBLE_FIELDS = "^(min|max|mean|stddev|median|percentile\\d+(_\\d+)?|rate|rate1m|rate5m|rate15m|ratemean|value)(_min|_max|_avg)?$";
+
+    private final String name;
+    private final List<String> indexPatterns;
+    private final int priority;
+    private final int shards;
+    private final int replicas;
+    private final double scalingFactor;
+    private final boolean sourceEnabled;
+    private final String rolloverAlias;
+    private final String rolloverMaxSize;
+    private final long rolloverMaxAgeMs;
+    private final long deleteAfterMs;
+
+    private IndexTemplate(Builder builder) {
+        this.name = builder.name;
+        if (builder.indexPatterns != null) {
+            this.indexPatterns = builder.indexPatterns;
+        } else if (builder.rolloverAlias != null) {
+            this.indexPatterns = Collections.singletonList(builder.rolloverAlias + "-*");
+        } else {
+            this.indexPatterns = null;
+        }
+        this.priority = builder.priority;
+        this.shards = builder.shards;
+        this.replicas = builder.replicas;
+        this.scalingFactor = builder.scalingFactor;
+        this.sourceEnabled = builder.sourceEnabled;
+        this.rolloverAlias = builder.rolloverAlias;
+        this.rolloverMaxSize = builder.rolloverMaxSize;
+        this.rolloverMaxAgeMs = builder.rolloverMaxAgeMs;
+        this.deleteAfterMs = builder.deleteAfterMs;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Whether index patterns were given, or derived from rollover alias
+     */
+    public boolean hasIndexPatterns() {
+        return indexPatterns != null;
+    }
+
+    /**
+     * Whether an index lifecycle policy, named like the template, is installed
+     */
+    public boolean hasLifecycle() {
+        return rolloverAlias != null || deleteAfterMs > 0L;
+    }
+
+    /**
+     * Write alias when indices are rolled over, null otherwise
+     */
+    public String getRolloverAlias() {
+        return rolloverAlias;
+    }
+
+    /**
+     * Name of the first index behind the rollover alias
+     */
+    public String getInitialIndexName() {
+        return rolloverAlias + "-000001";
+    }
+
+    /**
+     * Body of PUT _index_template/name
+     */
+    public void writeTemplate(JsonGenerator json) throws IOException {
+        writeTemplate(json, null);
+    }
+
+    /**
+     * @param defaultIndexPattern Pattern used when none was given, usually derived from reporter index prefix (null allowed)
+     */
+    void writeTemplate(JsonGenerator json, String defaultIndexPattern) throws IOException {
+        List<String> patterns = indexPatterns;
+        if (patterns == null) {
+            if (defaultIndexPattern == null) {
+                throw new IllegalStateException("Index patterns of template " + name + " are required");
+            }
+            patterns = Collections.singletonList(defaultIndexPattern);
+        }
+        json.writeStartObject();
+        json.writeArrayFieldStart("index_patterns");
+        for (String indexPattern : patterns) {
+            json.writeString(indexPattern);
+        }
+        json.writeEndArray();
+        json.writeNumberField("priority", priority);
+        json.writeObjectFieldStart("template");
+        // Settings
+        json.writeObjectFieldStart("settings");
+        if (shards > 0) {
+            json.writeNumberField("index.number_of_shards", shards);
+        }
+        if (replicas >= 0) {
+            json.writeNumberField("index.number_of_replicas", replicas);
+        }
+        if (hasLifecycle()) {
+            json.writeStringField("index.lifecycle.name", name);
+        }
+        if (rolloverAlias != null) {
+            json.writeStringField("index.lifecycle.rollover_alias", rolloverAlias);
+        }
+        json.writeEndObject();
+        // Mappings
+        json.writeObjectFieldStart("mappings");
+        if (!sourceEnabled) {
+            json.writeObjectFieldStart("_source");
+            json.writeBooleanField("enabled", false);
+            json.writeEndObject();
+        }
+        json.writeArrayFieldStart("dynamic_templates");
+        writeDynamicTemplate(json, "dropwizard_count", "dropwizard.*", LONG_FIELDS, true, "long", "long");
+        String doubleType = scalingFactor > 0D ? "scaled_float" : "double";
+        writeDynamicTemplate(json, "dropwizard_double_from_long", "dropwizard.*", DOUBLE_FIELDS, true, "long", doubleType);
+        writeDynamicTemplate(json, "dropwizard_double", "dropwizard.*", DOUBLE_FIELDS, true, "double", doubleType);
+        // Value histogram is a field of a metric object, never a metric name part
+        String histogramField = MetricSet.VALUE_HISTOGRAM.getValue();
+        writeDynamicTemplate(json, "dropwizard_histogram", "dropwizard.*." + histogramField, histogramField, false, "object", "histogram");
+        writeDynamicTemplate(json, "dropwizard_name", "dropwizard.*", "name", false, "string", "keyword");
+        json.writeEndArray();
+        json.writeObjectFieldStart("properties");
+        json.writeObjectFieldStart("@timestamp");
+        json.writeStringField("type", "date");
+        json.writeEndObject();
+        writeKeywords(json, "metricset", "module", "name");
+        writeKeywords(json, "beat", "name", "hostname");
+        writeKeywords(json, "host", "name");
+        json.writeEndObject();
+        json.writeEndObject();
+        json.writeEndObject();
+        json.writeObjectFieldStart("_meta");
+        json.writeStringField("description", "Dropwizard metrics");
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    private void writeDynamicTemplate(JsonGenerator json, String templateName, String pathMatch, String match, boolean regex, String mappingType, String type) throws IOException {
+        json.writeStartObject();
+        json.writeObjectFieldStart(templateName);
+        json.writeStringField("path_match", pathMatch);
+        if (regex) {
+            json.writeStringField("match_pattern", "regex");
+        }
+        json.writeStringField("match", match);
+        json.writeStringField("match_mapping_type", mappingType);
+        json.writeObjectFieldStart("mapping");
+        json.writeStringField("type", type);
+        if (type.equals("scaled_float")) {
+            json.writeNumberField("scaling_factor", scalingFactor);
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    private static void writeKeywords(JsonGenerator json, String objectName, String... fieldNames) throws IOException {
+        json.writeObjectFieldStart(objectName);
+        json.writeObjectFieldStart("properties");
+        for (String fieldName : fieldNames) {
+            json.writeObjectFieldStart(fieldName);
+            json.writeStringField("type", "keyword");
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    /**
+     * Body of PUT _ilm/policy/name
+     */
+    public void writePolicy(JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeObjectFieldStart("policy");
+        json.writeObjectFieldStart("phases");
+        if (rolloverAlias != null) {
+            json.writeObjectFieldStart("hot");
+            json.writeObjectFieldStart("actions");
+            json.writeObjectFieldStart("rollover");
+            if (rolloverMaxSize != null) {
+                json.writeStringField("max_size", rolloverMaxSize);
+            }
+            if (rolloverMaxAgeMs > 0L) {
+                json.writeStringField("max_age", rolloverMaxAgeMs + "ms");
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        if (deleteAfterMs > 0L) {
+            json.writeObjectFieldStart("delete");
+            json.writeStringField("min_age", deleteAfterMs + "ms");
+            json.writeObjectFieldStart("actions");
+            json.writeObjectFieldStart("delete");
+            json.writeEndObject();
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    /**
+     * Body of PUT initial-index, creating the write alias
+     */
+    public void writeInitialIndex(JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeObjectFieldStart("aliases");
+        json.writeObjectFieldStart(rolloverAlias);
+        json.writeBooleanField("is_write_index", true);
+        json.writeEndObject();
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    /**
+     * @param name Template name, ex: metrics
+     */
+    public static Builder builder(String name) {
+        return new Builder(name);
+    }
+
+    /**
+     * Builder of {@link IndexTemplate}
+     */
+    public static class Builder {
+        private final String name;
+        private List<String> indexPatterns;
+        private int priority = 100;
+        private int shards;
+        private int replicas = -1;
+        private double scalingFactor;
+        private boolean sourceEnabled = true;
+        private String rolloverAlias;
+        private String rolloverMaxSize;
+        private long rolloverMaxAgeMs;
+        private long deleteAfterMs;
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Names of indices using this template,
+         * default: reporter index prefix followed by *, or rollover alias followed by -*
+         */
+        public Builder indexPatterns(String... indexPatterns) {
+            this.indexPatterns = Arrays.asList(indexPatterns);
+            return this;
+        }
+
+        /**
+         * Template priority when many templates match an index, default: 100
+         */
+        public Builder priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * Number of primary shards, default: cluster default
+         */
+        public Builder shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * Number of replicas, default: cluster default
+         */
+        public Builder replicas(int replicas) {
+            this.replicas = replicas;
+            return this;
+        }
+
+        /**
+         * Store floating point fields as scaled_float, ex: 100 keeps 2 decimals, default: double
+         */
+        public Builder scaledFloat(double scalingFactor) {
+            this.scalingFactor = scalingFactor;
+            return this;
+        }
+
+        /**
+         * Disable _source to save disk space, documents can then neither be displayed nor reindexed, default: enabled
+         */
+        public Builder sourceEnabled(boolean sourceEnabled) {
+            this.sourceEnabled = sourceEnabled;
+            return this;
+        }
+
+        /**
+         * Write in an alias and roll over to a new index when the current one is too big or too old, default: no rollover
+         *
+         * @param alias   Write alias, metrics are written in this alias instead of date based indices
+         * @param maxSize Maximum index size, ex: 50gb (null allowed)
+         * @param maxAge  Maximum index age (0 to disable)
+         */
+        public Builder rollover(String alias, String maxSize, long maxAge, TimeUnit maxAgeUnit) {
+            this.rolloverAlias = alias;
+            this.rolloverMaxSize = maxSize;
+            this.rolloverMaxAgeMs = maxAgeUnit.toMillis(maxAge);
+            return this;
+        }
+
+        /**
+         * Delete indices older than given age, default: keep indices
+         */
+        public Builder deleteAfter(long age, TimeUnit ageUnit) {
+            this.deleteAfterMs = ageUnit.toMillis(age);
+            return this;
+        }
+
+        public IndexTemplate build() {
+            return new IndexTemplate(this);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing table of primitive longs, keyed by metric names hashed to 64 bits,
+ * so that tracking a large registry costs a few bytes per metric.
+ * Each slot holds a fixed number of long values, read and written by slot index.
+ * Not thread-safe.
+ */
+class MetricHashTable {
+    /**
+     * Hash reserved to mark empty slots
+     */
+    private static final long EMPTY = 0L;
+    private long[] keys;
+    private long[][] values;
+    private int size;
+    /**
+     * Whether last looked up metric was missing
+     */
+    private boolean added;
+
+    /**
+     * @param valueCount Number of values stored for each metric
+     */
+    MetricHashTable(int valueCount) {
+        keys = new long[64];
+        values = new long[valueCount][64];
+    }
+
+    /**
+     * Slot of the metric, added when missing.
+     * Slots of other metrics may move, they must be searched again.
+     *
+     * @see #isAdded()
+     */
+    int findOrAdd(String name) {
+        long key = hash(name);
+        int slot = findSlot(keys, key);
+        if (keys[slot] == key) {
+            added = false;
+            return slot;
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            rehash(keys.length * 2, -1, Long.MIN_VALUE);
+            slot = findSlot(keys, key);
+        }
+        keys[slot] = key;
+        for (long[] column : values) {
+            column[slot] = 0L;
+        }
+        size++;
+        added = true;
+        return slot;
+    }
+
+    /**
+     * @return true when last {@link #findOrAdd(String)} added the metric
+     */
+    boolean isAdded() {
+        return added;
+    }
+
+    long get(int column, int slot) {
+        return values[column][slot];
+    }
+
+    void set(int column, int slot, long value) {
+        values[column][slot] = value;
+    }
+
+    /**
+     * Forget metrics whose value in given column is lower than a minimum
+     */
+    void retain(int column, long minValue) {
+        rehash(keys.length, column, minValue);
+    }
+
+    /**
+     * Forget all metrics
+     */
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Slot holding the key, or empty slot where it should be added
+     */
+    private static int findSlot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @param column   Column of values compared to the minimum, -1 to keep all metrics
+     * @param minValue Lowest value of metrics kept
+     */
+    private void rehash(int capacity, int column, long minValue) {
+        long[] oldKeys = keys;
+        long[][] oldValues = values;
+        keys = new long[capacity];
+        values = new long[oldValues.length][capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != EMPTY && (column < 0 || oldValues[column][i] >= minValue)) {
+                int slot = findSlot(keys, key);
+                keys[slot] = key;
+                for (int c = 0; c < values.length; c++) {
+                    values[c][slot] = oldValues[c][i];
+                }
+                size++;
+            }
+        }
+    }
+
+    /**
+     * FNV-1a 64 bits hash, mixed so that low bits are usable as slot index
+     */
+    static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1L : hash;
+    }
+}
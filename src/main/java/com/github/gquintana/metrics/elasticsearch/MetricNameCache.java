@@ -0,0 +1,163 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers metric names split on dots and normalized.
+ * Least recently used names are evicted when the cache is full, so that
+ * registries creating and removing metrics don't make it grow forever.
+ * Parts shared by many names, like "jvm" or "memory", are stored once:
+ * comparing paths from the cache usually boils down to comparing references.
+ * Parts are also kept JSON encoded, so that writing a path doesn't encode it again.
+ */
+public class MetricNameCache {
+    private final int maxSize;
+    private final Map<String, Entry> paths;
+    private final Map<String, SerializedString> parts = new HashMap<>();
+
+    private static class Entry {
+        private final String[] path;
+        private final SerializableString[] serializedPath;
+
+        private Entry(String[] path, SerializableString[] serializedPath) {
+            this.path = path;
+            this.serializedPath = serializedPath;
+        }
+    }
+
+    /**
+     * @param maxSize Maximum number of metric names kept
+     */
+    public MetricNameCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.paths = new LinkedHashMap<String, Entry>(Math.min(maxSize, 1024), 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Normalized path of a metric name, the returned array must not be modified
+     */
+    public synchronized String[] getPath(String name) {
+        return getEntry(name).path;
+    }
+
+    /**
+     * Same as {@link #getPath(String)}, JSON encoded
+     */
+    public synchronized SerializableString[] getSerializedPath(String name) {
+        return getEntry(name).serializedPath;
+    }
+
+    private Entry getEntry(String name) {
+        Entry entry = paths.get(name);
+        if (entry == null) {
+            String[] path = normalizePath(name);
+            SerializableString[] serializedPath = new SerializableString[path.length];
+            if (parts.size() > maxSize) {
+                parts.clear();
+            }
+            for (int i = 0; i < path.length; i++) {
+                SerializedString part = parts.get(path[i]);
+                if (part == null) {
+                    part = new SerializedString(path[i]);
+                    parts.put(path[i], part);
+                }
+                path[i] = part.getValue();
+                serializedPath[i] = part;
+            }
+            entry = new Entry(path, serializedPath);
+            paths.put(name, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * JSON encode each part of a normalized path, without caching
+     */
+    static SerializableString[] serializePath(String[] path) {
+        SerializableString[] serializedPath = new SerializableString[path.length];
+        for (int i = 0; i < path.length; i++) {
+            serializedPath[i] = new SerializedString(path[i]);
+        }
+        return serializedPath;
+    }
+
+    public synchronized int size() {
+        return paths.size();
+    }
+
+    /**
+     * Split metric name on dots and normalize each part, trailing empty parts are removed
+     */
+    public static String[] normalizePath(String name) {
+        if (name.isEmpty()) {
+            return new String[]{""};
+        }
+        int length = name.length();
+        int count = 1;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) == '.') {
+                count++;
+            }
+        }
+        String[] path = new String[count];
+        int start = 0;
+        int index = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || name.charAt(i) == '.') {
+                path[index++] = normalizeName(name, start, i);
+                start = i + 1;
+            }
+        }
+        while (count > 0 && path[count - 1].isEmpty()) {
+            count--;
+        }
+        return count == path.length ? path : Arrays.copyOf(path, count);
+    }
+
+    private static boolean isNormalized(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Lower case ASCII letters, digits and underscores are kept,
+     * upper case ASCII letters are lower cased,
+     * any sequence of other characters is replaced by a single underscore
+     */
+    static String normalizeName(String name, int start, int end) {
+        int i = start;
+        while (i < end && isNormalized(name.charAt(i))) {
+            i++;
+        }
+        if (i == end) {
+            return name.substring(start, end);
+        }
+        StringBuilder normalized = new StringBuilder(end - start);
+        normalized.append(name, start, i);
+        boolean replacing = false;
+        for (; i < end; i++) {
+            char c = name.charAt(i);
+            if (isNormalized(c)) {
+                normalized.append(c);
+                replacing = false;
+            } else if (c >= 'A' && c <= 'Z') {
+                normalized.append((char) (c + ('a' - 'A')));
+                replacing = false;
+            } else if (!replacing) {
+                normalized.append('_');
+                replacing = true;
+            }
+        }
+        return normalized.toString();
+    }
+}
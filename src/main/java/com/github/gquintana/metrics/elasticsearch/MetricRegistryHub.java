@@ -0,0 +1,183 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry exposing metrics of many attached registries, so that a single {@link ElasticsearchReporter},
+ * with its thread, connections and batching, reports them all.
+ * Metrics of an attached registry are filtered and their names are prefixed.
+ * Metrics registered in the hub itself are reported too, they win over attached metrics having the same prefixed name.
+ * Only the metric getters used by reporters, like {@link #getGauges(MetricFilter)}, see attached registries.
+ * <pre>
+ * MetricRegistryHub hub = new MetricRegistryHub();
+ * ElasticsearchReporter.forRegistry(hub).build().start(30, TimeUnit.SECONDS);
+ * hub.attach("tenant1", tenant1Registry);
+ * </pre>
+ */
+public class MetricRegistryHub extends MetricRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricRegistryHub.class);
+    private final List<Attachment> attachments = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registry attached to the hub
+     */
+    private static class Attachment {
+        private final String prefix;
+        private final MetricRegistry registry;
+        private final MetricFilter filter;
+        /**
+         * Prefixed names, so that they are not built at each report
+         */
+        private final Map<String, String> names = new ConcurrentHashMap<>();
+        /**
+         * Prefixed names already taken by a hub metric, so that they are logged once
+         */
+        private final Set<String> clashingNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private Attachment(String prefix, MetricRegistry registry, MetricFilter filter) {
+            this.prefix = prefix;
+            this.registry = registry;
+            this.filter = filter;
+        }
+
+        private String getName(String name) {
+            String prefixedName = names.get(name);
+            if (prefixedName == null) {
+                prefixedName = MetricRegistry.name(prefix, name);
+                names.put(name, prefixedName);
+            }
+            return prefixedName;
+        }
+
+        /**
+         * Add metrics of a given type matching both attachment and reporter filters
+         *
+         * @param filter Reporter filter, applied on prefixed names
+         */
+        private <T extends Metric> void collect(SortedMap<String, T> metrics, Class<T> type, MetricFilter filter) {
+            Map<String, Metric> registryMetrics = registry.getMetrics();
+            if (names.size() > 2 * registryMetrics.size() + 64) {
+                // Forget removed metrics
+                names.clear();
+                clashingNames.clear();
+            }
+            for (Map.Entry<String, Metric> metric : registryMetrics.entrySet()) {
+                if (type.isInstance(metric.getValue()) && this.filter.matches(metric.getKey(), metric.getValue())) {
+                    String name = getName(metric.getKey());
+                    if (!filter.matches(name, metric.getValue())) {
+                        continue;
+                    }
+                    if (metrics.containsKey(name)) {
+                        if (clashingNames.add(name)) {
+                            LOGGER.warn("Metric {} of registry attached with prefix {} is not reported, the hub has a metric with the same name", metric.getKey(), prefix);
+                        }
+                        continue;
+                    }
+                    metrics.put(name, type.cast(metric.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Report all metrics of a registry, see {@link #attach(String, MetricRegistry, MetricFilter)}
+     */
+    public void attach(String prefix, MetricRegistry registry) {
+        attach(prefix, registry, MetricFilter.ALL);
+    }
+
+    /**
+     * Report metrics of a registry, from next report on
+     *
+     * @param prefix Prefix of metric names, unique in the hub, neither starting nor started by another prefix followed by a dot, ex: tenant1
+     * @param filter Select metrics to report, applied on names without prefix
+     * @throws IllegalArgumentException when the prefix clashes with the prefix of an attached registry, ex: tenant1 and tenant1.admin
+     */
+    public synchronized void attach(String prefix, MetricRegistry registry, MetricFilter filter) {
+        for (Attachment attachment : attachments) {
+            if (isClashing(attachment.prefix, prefix)) {
+                throw new IllegalArgumentException("A registry is already attached with prefix " + attachment.prefix + ", clashing with " + prefix);
+            }
+        }
+        attachments.add(new Attachment(prefix, registry, filter));
+    }
+
+    /**
+     * Whether metric names of both prefixes may be the same
+     */
+    private static boolean isClashing(String prefix1, String prefix2) {
+        return prefix1.equals(prefix2) || prefix1.startsWith(prefix2 + ".") || prefix2.startsWith(prefix1 + ".");
+    }
+
+    /**
+     * Stop reporting metrics of a registry
+     *
+     * @return false when no registry was attached with this prefix
+     */
+    public synchronized boolean detach(String prefix) {
+        for (Attachment attachment : attachments) {
+            if (attachment.prefix.equals(prefix)) {
+                return attachments.remove(attachment);
+            }
+        }
+        return false;
+    }
+
+    public int getAttachedCount() {
+        return attachments.size();
+    }
+
+    private <T extends Metric> SortedMap<String, T> collect(SortedMap<String, T> hubMetrics, Class<T> type, MetricFilter filter) {
+        if (attachments.isEmpty()) {
+            return hubMetrics;
+        }
+        SortedMap<String, T> metrics = new TreeMap<>(hubMetrics);
+        for (Attachment attachment : attachments) {
+            attachment.collect(metrics, type, filter);
+        }
+        return Collections.unmodifiableSortedMap(metrics);
+    }
+
+    @Override
+    public SortedMap<String, Gauge> getGauges(MetricFilter filter) {
+        return collect(super.getGauges(filter), Gauge.class, filter);
+    }
+
+    @Override
+    public SortedMap<String, Counter> getCounters(MetricFilter filter) {
+        return collect(super.getCounters(filter), Counter.class, filter);
+    }
+
+    @Override
+    public SortedMap<String, Histogram> getHistograms(MetricFilter filter) {
+        return collect(super.getHistograms(filter), Histogram.class, filter);
+    }
+
+    @Override
+    public SortedMap<String, Meter> getMeters(MetricFilter filter) {
+        return collect(super.getMeters(filter), Meter.class, filter);
+    }
+
+    @Override
+    public SortedMap<String, Timer> getTimers(MetricFilter filter) {
+        return collect(super.getTimers(filter), Timer.class, filter);
+    }
+}
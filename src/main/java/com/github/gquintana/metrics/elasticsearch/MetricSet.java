@@ -9,20 +9,97 @@ import com.codahale.metrics.Metered;
 import com.codahale.metrics.Sampling;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import com.codahale.metrics.WeightedSnapshot;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 /**
- * Metric which be converted to JSON and written in Elasticsearch
+ * Metric which be converted to JSON and written in Elasticsearch.
+ * Values are kept in flat primitive arrays, they are grouped by metric name
+ * only when the document is written.
+ * Field names, metric name parts and the document header are JSON encoded once and reused between reports.
  */
 public class MetricSet {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricSet.class);
+    private static final byte TYPE_INT = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_FLOAT = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    /**
+     * Value is the index of a {@link ValueHistogram} in histograms list
+     */
+    private static final byte TYPE_HISTOGRAM = 4;
+    /**
+     * Long value growing over time, unless reset, like the count of a counter
+     */
+    private static final byte TYPE_COUNT = 5;
+    private static final SerializedString TIMESTAMP = new SerializedString("@timestamp");
+    private static final SerializedString METRICSET = new SerializedString("metricset");
+    private static final SerializedString MODULE = new SerializedString("module");
+    private static final SerializedString NAME = new SerializedString("name");
+    private static final SerializedString BEAT = new SerializedString("beat");
+    private static final SerializedString HOSTNAME = new SerializedString("hostname");
+    private static final SerializedString HOST = new SerializedString("host");
+    private static final SerializedString DROPWIZARD = new SerializedString("dropwizard");
+    private static final SerializedString VALUE = new SerializedString("value");
+    private static final SerializedString COUNT = new SerializedString("count");
+    private static final SerializedString COUNT_DELTA = new SerializedString("count_delta");
+    private static final SerializedString RATE = new SerializedString("rate");
+    private static final SerializedString MIN = new SerializedString("min");
+    private static final SerializedString MAX = new SerializedString("max");
+    private static final SerializedString MEAN = new SerializedString("mean");
+    private static final SerializedString STDDEV = new SerializedString("stddev");
+    private static final SerializedString MEDIAN = new SerializedString("median");
+    /**
+     * Mapped as an Elasticsearch histogram, metric names containing it are dropped
+     */
+    static final SerializedString VALUE_HISTOGRAM = new SerializedString("value_histogram");
+    private static final SerializedString HISTOGRAM_VALUES = new SerializedString("values");
+    private static final SerializedString HISTOGRAM_COUNTS = new SerializedString("counts");
+    private static final SerializedString RATE_1M = new SerializedString("rate1m");
+    private static final SerializedString RATE_5M = new SerializedString("rate5m");
+    private static final SerializedString RATE_15M = new SerializedString("rate15m");
+    private static final SerializedString RATE_MEAN = new SerializedString("ratemean");
+    /**
+     * Field names commonly passed to {@link #addField(String, long)}, they are not encoded again
+     */
+    private static final Map<String, SerializedString> FIELD_NAMES = fieldNames(VALUE, COUNT, COUNT_DELTA, MIN, MAX, MEAN, STDDEV, MEDIAN, VALUE_HISTOGRAM, RATE, RATE_1M, RATE_5M, RATE_15M, RATE_MEAN,
+            new SerializedString("age"));
+    /**
+     * Last hostname encoded, it usually never changes
+     */
+    private static volatile SerializedString serializedHostname;
     private final long timestamp;
     private final String hostname;
-    private final Map<String, Object> metrics = new HashMap<>();
+    private final MetricNameCache nameCache;
+    /**
+     * Metric names and index of their first field
+     */
+    private String[] metricNames = new String[16];
+    private int[] metricFieldStarts = new int[16];
+    private int metricCount;
+    /**
+     * Field names, types and values, floating point values are stored as raw long bits
+     */
+    private SerializableString[] fieldNames = new SerializableString[64];
+    private byte[] fieldTypes = new byte[64];
+    private long[] fieldValues = new long[64];
+    private int fieldCount;
+    private List<ValueHistogram> histograms;
     private static final DurationConverter NOOP_DURATION_CONVERTER = new DurationConverter() {
         @Override
         public long convert(long duration) {
@@ -36,89 +113,364 @@ public class MetricSet {
     };
 
     public MetricSet(long timestamp, String hostname) {
+        this(timestamp, hostname, null);
+    }
+
+    /**
+     * @param nameCache Cache of normalized metric names shared between reports (null allowed)
+     */
+    public MetricSet(long timestamp, String hostname, MetricNameCache nameCache) {
         this.timestamp = timestamp;
         this.hostname = hostname;
+        this.nameCache = nameCache;
+    }
+
+    private static Map<String, SerializedString> fieldNames(SerializedString... names) {
+        Map<String, SerializedString> fieldNames = new HashMap<>();
+        for (SerializedString name : names) {
+            fieldNames.put(name.getValue(), name);
+        }
+        return Collections.unmodifiableMap(fieldNames);
+    }
+
+    private static SerializableString serializeFieldName(String name) {
+        SerializedString fieldName = FIELD_NAMES.get(name);
+        return fieldName == null ? new SerializedString(name) : fieldName;
+    }
+
+    private static SerializableString serializeHostname(String hostname) {
+        SerializedString serialized = serializedHostname;
+        if (serialized == null || !serialized.getValue().equals(hostname)) {
+            serialized = new SerializedString(hostname);
+            serializedHostname = serialized;
+        }
+        return serialized;
     }
 
     /**
-     * All non word characters are forbidden
+     * Metric name split on dots, all non word characters are replaced
      */
-    private static final Pattern REPLACED_CHARS = Pattern.compile("[^\\w.]+");
+    private String[] normalizePath(String name) {
+        return nameCache == null ? MetricNameCache.normalizePath(name) : nameCache.getPath(name);
+    }
 
-    private String normalizeName(String name) {
-        return REPLACED_CHARS.matcher(name).replaceAll("_").toLowerCase();
+    /**
+     * Start a new metric, following fields will belong to it
+     */
+    public void startMetric(String name) {
+        if (metricCount == metricNames.length) {
+            metricNames = Arrays.copyOf(metricNames, metricCount * 2);
+            metricFieldStarts = Arrays.copyOf(metricFieldStarts, metricCount * 2);
+        }
+        metricNames[metricCount] = name;
+        metricFieldStarts[metricCount] = fieldCount;
+        metricCount++;
     }
 
-    private Map<String, Object> resolve(String... path) {
-        Map<String, Object> current = metrics;
-        for (String n : path) {
-            String nn = normalizeName(n);
-            Object o = current.get(nn);
-            if (o instanceof Map) {
-                current = (Map) o;
-            } else if (o == null) {
-                o = new HashMap<>();
-                current.put(nn, o);
-                current = (Map) o;
-            } else {
-                throw new IllegalArgumentException("Duplicate key " + nn);
+    private void addField(SerializableString name, byte type, long value) {
+        if (fieldCount == fieldNames.length) {
+            fieldNames = Arrays.copyOf(fieldNames, fieldCount * 2);
+            fieldTypes = Arrays.copyOf(fieldTypes, fieldCount * 2);
+            fieldValues = Arrays.copyOf(fieldValues, fieldCount * 2);
+        }
+        fieldNames[fieldCount] = name;
+        fieldTypes[fieldCount] = type;
+        fieldValues[fieldCount] = value;
+        fieldCount++;
+    }
+
+    /**
+     * Add a field to current metric
+     */
+    public void addField(String name, int value) {
+        addField(serializeFieldName(name), value);
+    }
+
+    private void addField(SerializableString name, int value) {
+        addField(name, TYPE_INT, value);
+    }
+
+    /**
+     * Add a field to current metric
+     */
+    public void addField(String name, long value) {
+        addField(serializeFieldName(name), value);
+    }
+
+    void addField(SerializableString name, long value) {
+        addField(name, TYPE_LONG, value);
+    }
+
+    /**
+     * Add a cumulative field to current metric, its increase is computed when downsampling
+     */
+    public void addCountField(String name, long value) {
+        addCountField(serializeFieldName(name), value);
+    }
+
+    void addCountField(SerializableString name, long value) {
+        addField(name, TYPE_COUNT, value);
+    }
+
+    /**
+     * Add a field to current metric
+     */
+    public void addField(String name, float value) {
+        addField(serializeFieldName(name), value);
+    }
+
+    private void addField(SerializableString name, float value) {
+        addField(name, TYPE_FLOAT, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Add a field to current metric
+     */
+    public void addField(String name, double value) {
+        addField(serializeFieldName(name), value);
+    }
+
+    void addField(SerializableString name, double value) {
+        addField(name, TYPE_DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    private void addField(SerializableString name, ValueHistogram histogram) {
+        if (histograms == null) {
+            histograms = new ArrayList<>();
+        }
+        addField(name, TYPE_HISTOGRAM, histograms.size());
+        histograms.add(histogram);
+    }
+
+    /**
+     * Fields of a metric, put numbers are added to the metric set
+     */
+    private class MetricFields extends AbstractMap<String, Object> {
+        private final String name;
+        private final Map<String, Object> fields = new LinkedHashMap<>();
+        private int metricIndex = -1;
+
+        private MetricFields(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Object put(String fieldName, Object value) {
+            if (metricIndex < 0 || metricIndex != metricCount - 1) {
+                // Another metric was started in the meantime, metrics with the same name are written in the same object
+                startMetric(name);
+                metricIndex = metricCount - 1;
             }
+            addNumberField(serializeFieldName(fieldName), value);
+            return fields.put(fieldName, value);
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return fields.entrySet();
         }
-        return current;
     }
 
-    public Map<String, Object> resolve(String path) {
-        return resolve(path.split("\\."));
+    /**
+     * Map whose numbers are added as fields of a new metric
+     *
+     * @deprecated Use {@link #startMetric(String)} and {@link #addField(String, long)}
+     */
+    @Deprecated
+    public Map<String, Object> resolve(String name) {
+        return new MetricFields(name);
     }
 
     public void addGauge(String name, Gauge gauge) {
-        resolve(name).put("value", gauge.getValue());
+        addGaugeValue(name, gauge.getValue());
+    }
+
+    /**
+     * Add a gauge whose value was already read, only numbers are written
+     */
+    public void addGaugeValue(String name, Object value) {
+        startMetric(name);
+        addNumberField(VALUE, value);
+    }
+
+    /**
+     * Add a field when value is a number
+     */
+    private void addNumberField(SerializableString name, Object value) {
+        if (value instanceof Integer) {
+            addField(name, ((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            addField(name, ((Long) value).longValue());
+        } else if (value instanceof Float) {
+            addField(name, ((Float) value).floatValue());
+        } else if (value instanceof Double) {
+            addField(name, ((Double) value).doubleValue());
+        }
     }
 
     public void addCounter(String name, Counter counter) {
-        addCounting(resolve(name), counter);
+        addCounter(name, counter.getCount());
+    }
+
+    /**
+     * Add a counter whose count was already read
+     */
+    void addCounter(String name, long count) {
+        startMetric(name);
+        addCountField(COUNT, count);
     }
 
     public void addHistogram(String name, Histogram histogram) {
-        Map<String, Object> metric = resolve(name);
-        addCounting(metric, histogram);
-        addSampling(metric, histogram, NOOP_DURATION_CONVERTER);
+        addHistogram(name, histogram, SamplingExport.DEFAULT);
+    }
+
+    public void addHistogram(String name, Histogram histogram, SamplingExport samplingExport) {
+        addHistogram(name, histogram.getCount(), histogram, samplingExport);
     }
 
-    private void addCounting(Map<String, Object> metric, Counting counting) {
-        metric.put("count", counting.getCount());
+    /**
+     * Add a histogram whose count was already read
+     */
+    void addHistogram(String name, long count, Histogram histogram, SamplingExport samplingExport) {
+        startMetric(name);
+        addCountField(COUNT, count);
+        addSampling(histogram, NOOP_DURATION_CONVERTER, samplingExport);
     }
 
-    private void addSampling(Map<String, Object> metric, Sampling sampling, DurationConverter durationConverter) {
+    private void addCounting(Counting counting) {
+        addCountField(COUNT, counting.getCount());
+    }
+
+    /**
+     * Add count increase since previous report and rate over this interval to current metric
+     *
+     * @param rate Converted rate, ex: events/second
+     */
+    public void addCountDelta(long delta, double rate) {
+        addField(COUNT_DELTA, delta);
+        addField(RATE, rate);
+    }
+
+    private void addSampling(Sampling sampling, DurationConverter durationConverter, SamplingExport samplingExport) {
         Snapshot snapshot = sampling.getSnapshot();
-        metric.put("min", durationConverter.convert(snapshot.getMin()));
-        metric.put("max", durationConverter.convert(snapshot.getMax()));
-        metric.put("mean", durationConverter.convert(snapshot.getMean()));
-        metric.put("stddev", durationConverter.convert(snapshot.getStdDev()));
-        metric.put("median", durationConverter.convert(snapshot.getMedian()));
-        metric.put("percentile75", durationConverter.convert(snapshot.get75thPercentile()));
-        metric.put("percentile95", durationConverter.convert(snapshot.get95thPercentile()));
-        metric.put("percentile99", durationConverter.convert(snapshot.get99thPercentile()));
+        if (samplingExport.isMin()) {
+            addField(MIN, durationConverter.convert(snapshot.getMin()));
+        }
+        if (samplingExport.isMax()) {
+            addField(MAX, durationConverter.convert(snapshot.getMax()));
+        }
+        if (samplingExport.isMean()) {
+            addField(MEAN, durationConverter.convert(snapshot.getMean()));
+        }
+        if (samplingExport.isStddev()) {
+            addField(STDDEV, durationConverter.convert(snapshot.getStdDev()));
+        }
+        if (samplingExport.isMedian()) {
+            addField(MEDIAN, durationConverter.convert(snapshot.getMedian()));
+        }
+        for (int q = 0; q < samplingExport.getQuantileCount(); q++) {
+            addField(samplingExport.getSerializedQuantileFieldName(q), durationConverter.convert(snapshot.getValue(samplingExport.getQuantile(q))));
+        }
+        // Weights of a decaying reservoir sample are not exposed, counting its values would bias the distribution
+        if (samplingExport.isHistogram() && snapshot.size() > 0 && !(snapshot instanceof WeightedSnapshot)) {
+            addField(VALUE_HISTOGRAM, ValueHistogram.of(snapshot.getValues(), durationConverter, samplingExport.getHistogramDigits()));
+        }
     }
 
     public void addMeter(String name, Meter meter, RateConverter rateConverter) {
-        Map<String, Object> metric = resolve(name);
-        addMetered(metric, meter, rateConverter);
+        startMetric(name);
+        addMetered(meter, rateConverter);
+    }
+
+    /**
+     * Add a meter whose count was already read
+     */
+    void addMeter(String name, long count, Meter meter, RateConverter rateConverter) {
+        startMetric(name);
+        addCountField(COUNT, count);
+        addRates(meter, rateConverter);
+    }
+
+    protected void addMetered(Metered metered, RateConverter rateConverter) {
+        addCounting(metered);
+        addRates(metered, rateConverter);
+    }
+
+    private void addRates(Metered metered, RateConverter rateConverter) {
+        addField(RATE_1M, rateConverter.convert(metered.getOneMinuteRate()));
+        addField(RATE_5M, rateConverter.convert(metered.getFiveMinuteRate()));
+        addField(RATE_15M, rateConverter.convert(metered.getFifteenMinuteRate()));
+        addField(RATE_MEAN, rateConverter.convert(metered.getMeanRate()));
     }
 
+    /**
+     * @deprecated Use {@link #addMetered(Metered, RateConverter)}
+     */
+    @Deprecated
     protected void addMetered(Map<String, Object> metric, Metered metered, RateConverter rateConverter) {
-        addCounting(metric, metered);
-        metric.put("count", metered.getCount());
-        metric.put("rate1m", rateConverter.convert(metered.getOneMinuteRate()));
-        metric.put("rate5m", rateConverter.convert(metered.getFiveMinuteRate()));
-        metric.put("rate15m", rateConverter.convert(metered.getFifteenMinuteRate()));
-        metric.put("ratemean", rateConverter.convert(metered.getMeanRate()));
+        metric.put(COUNT.getValue(), metered.getCount());
+        metric.put(RATE_1M.getValue(), rateConverter.convert(metered.getOneMinuteRate()));
+        metric.put(RATE_5M.getValue(), rateConverter.convert(metered.getFiveMinuteRate()));
+        metric.put(RATE_15M.getValue(), rateConverter.convert(metered.getFifteenMinuteRate()));
+        metric.put(RATE_MEAN.getValue(), rateConverter.convert(metered.getMeanRate()));
     }
 
     public void addTimer(String name, Timer timer, DurationConverter durationConverter, RateConverter rateConverter) {
-        Map<String, Object> metric = resolve(name);
-        addSampling(metric, timer, durationConverter);
-        addMetered(metric, timer, rateConverter);
+        addTimer(name, timer, durationConverter, rateConverter, SamplingExport.DEFAULT);
+    }
+
+    public void addTimer(String name, Timer timer, DurationConverter durationConverter, RateConverter rateConverter, SamplingExport samplingExport) {
+        startMetric(name);
+        addSampling(timer, durationConverter, samplingExport);
+        addMetered(timer, rateConverter);
+    }
+
+    /**
+     * Add a timer whose count was already read
+     */
+    void addTimer(String name, long count, Timer timer, DurationConverter durationConverter, RateConverter rateConverter, SamplingExport samplingExport) {
+        startMetric(name);
+        addSampling(timer, durationConverter, samplingExport);
+        addCountField(COUNT, count);
+        addRates(timer, rateConverter);
+    }
+
+    /**
+     * Append all metrics of another metric set
+     */
+    public void addAll(MetricSet other) {
+        if (metricCount + other.metricCount > metricNames.length) {
+            int capacity = Math.max(metricNames.length * 2, metricCount + other.metricCount);
+            metricNames = Arrays.copyOf(metricNames, capacity);
+            metricFieldStarts = Arrays.copyOf(metricFieldStarts, capacity);
+        }
+        if (fieldCount + other.fieldCount > fieldNames.length) {
+            int capacity = Math.max(fieldNames.length * 2, fieldCount + other.fieldCount);
+            fieldNames = Arrays.copyOf(fieldNames, capacity);
+            fieldTypes = Arrays.copyOf(fieldTypes, capacity);
+            fieldValues = Arrays.copyOf(fieldValues, capacity);
+        }
+        System.arraycopy(other.metricNames, 0, metricNames, metricCount, other.metricCount);
+        for (int m = 0; m < other.metricCount; m++) {
+            metricFieldStarts[metricCount + m] = other.metricFieldStarts[m] + fieldCount;
+        }
+        System.arraycopy(other.fieldNames, 0, fieldNames, fieldCount, other.fieldCount);
+        System.arraycopy(other.fieldTypes, 0, fieldTypes, fieldCount, other.fieldCount);
+        System.arraycopy(other.fieldValues, 0, fieldValues, fieldCount, other.fieldCount);
+        if (other.histograms != null) {
+            if (histograms == null) {
+                histograms = new ArrayList<>(other.histograms.size());
+            }
+            int histogramOffset = histograms.size();
+            for (int f = fieldCount; f < fieldCount + other.fieldCount; f++) {
+                if (fieldTypes[f] == TYPE_HISTOGRAM) {
+                    fieldValues[f] += histogramOffset;
+                }
+            }
+            histograms.addAll(other.histograms);
+        }
+        metricCount += other.metricCount;
+        fieldCount += other.fieldCount;
     }
 
     public long getTimestamp() {
@@ -129,51 +481,416 @@ public class MetricSet {
         return hostname;
     }
 
+    public int getMetricCount() {
+        return metricCount;
+    }
+
+    String getMetricName(int metricIndex) {
+        return metricNames[metricIndex];
+    }
+
+    int getFieldStart(int metricIndex) {
+        return metricFieldStarts[metricIndex];
+    }
+
+    int getFieldEnd(int metricIndex) {
+        return metricIndex + 1 < metricCount ? metricFieldStarts[metricIndex + 1] : fieldCount;
+    }
+
+    SerializableString getFieldName(int fieldIndex) {
+        return fieldNames[fieldIndex];
+    }
+
+    boolean isNumberField(int fieldIndex) {
+        return fieldTypes[fieldIndex] != TYPE_HISTOGRAM;
+    }
+
+    boolean isCountField(int fieldIndex) {
+        return fieldTypes[fieldIndex] == TYPE_COUNT;
+    }
+
+    /**
+     * Value of a number field converted to double
+     */
+    double getFieldDouble(int fieldIndex) {
+        long value = fieldValues[fieldIndex];
+        switch (fieldTypes[fieldIndex]) {
+            case TYPE_FLOAT:
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(value);
+            default:
+                return (double) value;
+        }
+    }
+
+    private Object getFieldValue(int fieldIndex) {
+        long value = fieldValues[fieldIndex];
+        switch (fieldTypes[fieldIndex]) {
+            case TYPE_INT:
+                return (int) value;
+            case TYPE_FLOAT:
+                return (float) Double.longBitsToDouble(value);
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(value);
+            case TYPE_HISTOGRAM:
+                ValueHistogram histogram = histograms.get((int) value);
+                double[] values = new double[histogram.size()];
+                long[] counts = new long[histogram.size()];
+                for (int i = 0; i < histogram.size(); i++) {
+                    values[i] = histogram.getValue(i);
+                    counts[i] = histogram.getCount(i);
+                }
+                Map<String, Object> histogramMap = new HashMap<>();
+                histogramMap.put("values", values);
+                histogramMap.put("counts", counts);
+                return histogramMap;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Build a tree of maps containing metric values, normalized metric names are split on dots
+     */
     public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new HashMap<>();
+        for (int m = 0; m < metricCount; m++) {
+            Map<String, Object> metric = resolve(metrics, normalizePath(metricNames[m]));
+            for (int f = metricFieldStarts[m]; f < getFieldEnd(m); f++) {
+                metric.put(fieldNames[f].getValue(), getFieldValue(f));
+            }
+        }
         return metrics;
     }
 
+    private static Map<String, Object> resolve(Map<String, Object> metrics, String[] path) {
+        Map<String, Object> current = metrics;
+        for (String n : path) {
+            Object o = current.get(n);
+            if (o instanceof Map) {
+                current = (Map) o;
+            } else if (o == null) {
+                o = new HashMap<>();
+                current.put(n, o);
+                current = (Map) o;
+            } else {
+                throw new IllegalArgumentException("Duplicate key " + n);
+            }
+        }
+        return current;
+    }
+
     public void write(JsonGenerator json) throws IOException {
+        writeHeader(json);
+        // Metric
+        json.writeFieldName(DROPWIZARD);
+        json.writeStartObject();
+        writeMetrics(json);
+        json.writeEndObject();
+        // End
+        json.writeEndObject();
+    }
+
+    /**
+     * Write a document containing a single metric: its name is a field value instead of a path,
+     * so that documents have a small and fixed set of fields.
+     */
+    public void writeMetric(JsonGenerator json, int metricIndex) throws IOException {
+        writeHeader(json);
+        json.writeFieldName(DROPWIZARD);
         json.writeStartObject();
-        json.writeNumberField("@timestamp", timestamp);
+        json.writeFieldName(NAME);
+        json.writeString(metricNames[metricIndex]);
+        for (int f = metricFieldStarts[metricIndex]; f < getFieldEnd(metricIndex); f++) {
+            writeField(json, f);
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    private void writeHeader(JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeFieldName(TIMESTAMP);
+        json.writeNumber(timestamp);
         // Metric set
-        json.writeObjectFieldStart("metricset");
-        json.writeStringField("module", "dropwizard");
-        json.writeStringField("name", "dropwizard");
+        json.writeFieldName(METRICSET);
+        json.writeStartObject();
+        json.writeFieldName(MODULE);
+        json.writeString(DROPWIZARD);
+        json.writeFieldName(NAME);
+        json.writeString(DROPWIZARD);
         json.writeEndObject();
         // Beat
-        json.writeObjectFieldStart("beat");
-        json.writeStringField("name", "dropwizard");
-        json.writeStringField("hostname", hostname);
+        json.writeFieldName(BEAT);
+        json.writeStartObject();
+        json.writeFieldName(NAME);
+        json.writeString(DROPWIZARD);
+        json.writeFieldName(HOSTNAME);
+        if (hostname == null) {
+            json.writeNull();
+        } else {
+            json.writeString(serializeHostname(hostname));
+        }
         json.writeEndObject();
         // Host
-        json.writeObjectFieldStart("host");
-        json.writeStringField("name", "hostname");
-        json.writeEndObject();
-        // Metric
-        json.writeObjectFieldStart("dropwizard");
-        write(json, metrics);
-        json.writeEndObject();
-        // End
+        json.writeFieldName(HOST);
+        json.writeStartObject();
+        json.writeFieldName(NAME);
+        json.writeString(HOSTNAME);
         json.writeEndObject();
     }
 
-    private void write(JsonGenerator json, Map<String, Object> map) throws IOException {
-        for (Map.Entry<String, Object> mapEntry : map.entrySet()) {
-            if (mapEntry.getValue() instanceof Map) {
-                Map<String, Object> subMap = (Map) mapEntry.getValue();
-                json.writeObjectFieldStart(mapEntry.getKey());
-                write(json, subMap);
+    /**
+     * Write metrics sorted by name, metrics sharing a name prefix are nested in the same object.
+     * Elasticsearch rejects duplicate keys, so when names normalize to the same path (ex: a-b and a_b),
+     * a field already written by a previous metric is dropped,
+     * and a metric whose path goes through a field of another metric (ex: t.count and count field of t) is dropped.
+ * A metric whose path goes through an object named value_histogram is dropped too, such objects are mapped as histograms.
+     */
+    private void writeMetrics(JsonGenerator json) throws IOException {
+        String[][] paths = getPaths();
+        int[] order = getSortedIndexes(paths);
+        int maxDepth = 0;
+        for (String[] path : paths) {
+            maxDepth = Math.max(maxDepth, path.length);
+        }
+        // Range in order of metrics whose fields were written in the open object at each depth,
+        // parent metrics are sorted before their children and metrics with equal paths are adjacent
+        int[] ownerFroms = new int[maxDepth + 1];
+        int[] ownerTos = new int[maxDepth + 1];
+        String[] openPath = new String[0];
+        for (int o = 0; o < metricCount; o++) {
+            int m = order[o];
+            String[] path = paths[m];
+            int common = 0;
+            while (common < openPath.length && common < path.length && openPath[common].equals(path[common])) {
+                common++;
+            }
+            if (isReservedPath(path, common)) {
+                LOGGER.warn("Metric {} dropped, its path contains reserved field {}", metricNames[m], VALUE_HISTOGRAM.getValue());
+                continue;
+            }
+            if (common < path.length && isWrittenField(order, ownerFroms[common], ownerTos[common], path[common])) {
+                // Skipped metric leaves open objects unchanged
+                LOGGER.warn("Metric {} dropped, its path clashes with field {} of another metric", metricNames[m], path[common]);
+                continue;
+            }
+            for (int i = common; i < openPath.length; i++) {
+                json.writeEndObject();
+            }
+            if (common < path.length) {
+                SerializableString[] serializedPath = getSerializedPath(metricNames[m], path);
+                for (int i = common; i < path.length; i++) {
+                    json.writeFieldName(serializedPath[i]);
+                    json.writeStartObject();
+                    ownerFroms[i + 1] = ownerTos[i + 1] = o;
+                }
+            }
+            openPath = path;
+            for (int f = metricFieldStarts[m]; f < getFieldEnd(m); f++) {
+                if (isWrittenField(order, ownerFroms[path.length], ownerTos[path.length], fieldNames[f].getValue())) {
+                    LOGGER.warn("Field {} of metric {} dropped, another metric has the same path", fieldNames[f].getValue(), metricNames[m]);
+                } else {
+                    writeField(json, f);
+                }
+            }
+            ownerTos[path.length] = o + 1;
+        }
+        for (int i = 0; i < openPath.length; i++) {
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Whether the path opens an object named like the value histogram field, which would be mapped as a histogram
+     */
+    private static boolean isReservedPath(String[] path, int from) {
+        for (int i = from; i < path.length; i++) {
+            if (path[i].equals(VALUE_HISTOGRAM.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a field was written by a previous metric in the open object
+     */
+    private boolean isWrittenField(int[] order, int ownerFrom, int ownerTo, String fieldName) {
+        for (int o = ownerFrom; o < ownerTo; o++) {
+            int m = order[o];
+            for (int f = metricFieldStarts[m]; f < getFieldEnd(m); f++) {
+                if (fieldNames[f].getValue().equals(fieldName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private SerializableString[] getSerializedPath(String name, String[] path) {
+        return nameCache == null ? MetricNameCache.serializePath(path) : nameCache.getSerializedPath(name);
+    }
+
+    private String[][] getPaths() {
+        String[][] paths = new String[metricCount][];
+        for (int m = 0; m < metricCount; m++) {
+            paths[m] = normalizePath(metricNames[m]);
+        }
+        return paths;
+    }
+
+    /**
+     * Metric indexes sorted by path
+     */
+    private int[] getSortedIndexes(String[][] paths) {
+        int[] order = new int[metricCount];
+        for (int m = 0; m < metricCount; m++) {
+            order[m] = m;
+        }
+        sort(order, new int[metricCount], 0, metricCount, paths);
+        return order;
+    }
+
+    /**
+     * Split in metric sets of about the same number of metrics, metrics sharing a path prefix stay together when possible
+     */
+    public List<MetricSet> split(int count) {
+        int[] order = getSortedIndexes(getPaths());
+        List<MetricSet> metricSets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int from = (int) ((long) metricCount * i / count);
+            int to = (int) ((long) metricCount * (i + 1) / count);
+            if (from < to) {
+                metricSets.add(select(order, from, to));
+            }
+        }
+        return metricSets;
+    }
+
+    /**
+     * Group metrics by the first parts of their path
+     *
+     * @param depth Number of path parts in the group key, ex: 1 groups jvm.memory.heap with jvm.threads.count
+     */
+    public List<MetricSet> groupByPrefix(int depth) {
+        String[][] paths = getPaths();
+        int[] order = getSortedIndexes(paths);
+        List<MetricSet> metricSets = new ArrayList<>();
+        int from = 0;
+        for (int i = 1; i <= metricCount; i++) {
+            if (i == metricCount || !isSamePrefix(paths[order[from]], paths[order[i]], depth)) {
+                metricSets.add(select(order, from, i));
+                from = i;
+            }
+        }
+        return metricSets;
+    }
+
+    private static boolean isSamePrefix(String[] path1, String[] path2, int depth) {
+        if (Math.min(path1.length, depth) != Math.min(path2.length, depth)) {
+            return false;
+        }
+        for (int i = 0; i < depth && i < path1.length; i++) {
+            if (!path1[i].equals(path2[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy some metrics into a new metric set
+     *
+     * @param metricIndexes Indexes of metrics to copy
+     */
+    private MetricSet select(int[] metricIndexes, int from, int to) {
+        MetricSet metricSet = new MetricSet(timestamp, hostname, nameCache);
+        for (int i = from; i < to; i++) {
+            int m = metricIndexes[i];
+            metricSet.startMetric(metricNames[m]);
+            for (int f = metricFieldStarts[m]; f < getFieldEnd(m); f++) {
+                if (fieldTypes[f] == TYPE_HISTOGRAM) {
+                    metricSet.addField(fieldNames[f], histograms.get((int) fieldValues[f]));
+                } else {
+                    metricSet.addField(fieldNames[f], fieldTypes[f], fieldValues[f]);
+                }
+            }
+        }
+        return metricSet;
+    }
+
+    private void writeField(JsonGenerator json, int fieldIndex) throws IOException {
+        long value = fieldValues[fieldIndex];
+        json.writeFieldName(fieldNames[fieldIndex]);
+        switch (fieldTypes[fieldIndex]) {
+            case TYPE_INT:
+                json.writeNumber((int) value);
+                break;
+            case TYPE_FLOAT:
+                json.writeNumber((float) Double.longBitsToDouble(value));
+                break;
+            case TYPE_DOUBLE:
+                json.writeNumber(Double.longBitsToDouble(value));
+                break;
+            case TYPE_HISTOGRAM:
+                ValueHistogram histogram = histograms.get((int) value);
+                json.writeStartObject();
+                json.writeFieldName(HISTOGRAM_VALUES);
+                json.writeStartArray();
+                for (int i = 0; i < histogram.size(); i++) {
+                    json.writeNumber(histogram.getValue(i));
+                }
+                json.writeEndArray();
+                json.writeFieldName(HISTOGRAM_COUNTS);
+                json.writeStartArray();
+                for (int i = 0; i < histogram.size(); i++) {
+                    json.writeNumber(histogram.getCount(i));
+                }
+                json.writeEndArray();
                 json.writeEndObject();
-            } else if (mapEntry.getValue() instanceof Integer) {
-                json.writeNumberField(mapEntry.getKey(), ((Integer) mapEntry.getValue()).intValue());
-            } else if (mapEntry.getValue() instanceof Long) {
-                json.writeNumberField(mapEntry.getKey(), ((Long) mapEntry.getValue()).longValue());
-            } else if (mapEntry.getValue() instanceof Float) {
-                json.writeNumberField(mapEntry.getKey(), ((Float) mapEntry.getValue()).floatValue());
-            } else if (mapEntry.getValue() instanceof Double) {
-                json.writeNumberField(mapEntry.getKey(), ((Double) mapEntry.getValue()).doubleValue());
+                break;
+            default:
+                json.writeNumber(value);
+                break;
+        }
+    }
+
+    /**
+     * Stable merge sort of metric indexes by path, a parent path comes before its children
+     */
+    private static void sort(int[] order, int[] buffer, int from, int to, String[][] paths) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(order, buffer, from, middle, paths);
+        sort(order, buffer, middle, to, paths);
+        if (comparePaths(paths[order[middle - 1]], paths[order[middle]]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        int left = from, right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && comparePaths(paths[buffer[left]], paths[buffer[right]]) <= 0)) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+
+    private static int comparePaths(String[] path1, String[] path2) {
+        int length = Math.min(path1.length, path2.length);
+        for (int i = 0; i < length; i++) {
+            if (path1[i] == path2[i]) {
+                continue;
+            }
+            int comparison = path1[i].compareTo(path2[i]);
+            if (comparison != 0) {
+                return comparison;
             }
         }
+        return path1.length - path2.length;
     }
 }
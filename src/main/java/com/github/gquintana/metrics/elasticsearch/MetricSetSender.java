@@ -0,0 +1,15 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.io.Closeable;
+
+/**
+ * Delivers {@link MetricSet} documents to Elasticsearch
+ */
+public interface MetricSetSender extends Closeable {
+    /**
+     * Send a document
+     *
+     * @throws ElasticsearchException when the document could not be delivered
+     */
+    void send(MetricSet metricSet);
+}
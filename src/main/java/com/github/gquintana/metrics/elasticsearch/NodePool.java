@@ -0,0 +1,168 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elasticsearch nodes requests are spread across.
+ * A node failing to respond is marked dead and skipped until its backoff elapses,
+ * the backoff doubles each time the node fails again.
+ */
+public class NodePool {
+    /**
+     * Weight of the last response time in the average
+     */
+    private static final double LATENCY_ALPHA = 0.3D;
+
+    private final NodeSelection selection;
+    private final long initialDeadBackoffNanos;
+    private final long maxDeadBackoffNanos;
+    private volatile List<Node> nodes;
+    private int roundRobin;
+
+    /**
+     * Elasticsearch node and its health
+     */
+    public static class Node {
+        private final String url;
+        private int failures;
+        private long deadUntilNanos;
+        private double latencyNanos;
+
+        private Node(String url) {
+            this.url = url;
+        }
+
+        /**
+         * Base URL ending with a slash, ex: http://localhost:9200/
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        private boolean isAlive(long now) {
+            return failures == 0 || now - deadUntilNanos >= 0L;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    /**
+     * @param urls               Node base URLs
+     * @param initialDeadBackoff Time a dead node is skipped after its first failure
+     * @param maxDeadBackoff     Maximum time a dead node is skipped
+     */
+    public NodePool(List<String> urls, NodeSelection selection, long initialDeadBackoff, long maxDeadBackoff, TimeUnit deadBackoffUnit) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one node URL is required");
+        }
+        this.selection = selection;
+        this.initialDeadBackoffNanos = deadBackoffUnit.toNanos(initialDeadBackoff);
+        this.maxDeadBackoffNanos = deadBackoffUnit.toNanos(maxDeadBackoff);
+        setNodes(urls);
+    }
+
+    private static String normalizeUrl(String url) {
+        return url.endsWith("/") ? url : url + "/";
+    }
+
+    /**
+     * Replace node list, for instance after sniffing, the health of known nodes is kept
+     */
+    public synchronized void setNodes(List<String> urls) {
+        Map<String, Node> oldNodes = new HashMap<>();
+        if (this.nodes != null) {
+            for (Node node : this.nodes) {
+                oldNodes.put(node.url, node);
+            }
+        }
+        List<Node> newNodes = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            String normalizedUrl = normalizeUrl(url);
+            Node node = oldNodes.get(normalizedUrl);
+            newNodes.add(node == null ? new Node(normalizedUrl) : node);
+        }
+        this.nodes = Collections.unmodifiableList(newNodes);
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Choose a node among alive ones, when they are all dead the one which should be resurrected first is returned
+     */
+    public synchronized Node next() {
+        long now = System.nanoTime();
+        List<Node> currentNodes = nodes;
+        Node selected = null;
+        int alive = 0;
+        for (int i = 0; i < currentNodes.size(); i++) {
+            Node node = selection == NodeSelection.ROUND_ROBIN ? currentNodes.get((roundRobin + i) % currentNodes.size()) : currentNodes.get(i);
+            if (!node.isAlive(now)) {
+                continue;
+            }
+            alive++;
+            if (selection == NodeSelection.ROUND_ROBIN) {
+                selected = node;
+                roundRobin = (roundRobin + i + 1) % currentNodes.size();
+                break;
+            } else if (selected == null || node.latencyNanos < selected.latencyNanos) {
+                selected = node;
+            }
+        }
+        if (alive == 0) {
+            for (Node node : currentNodes) {
+                if (selected == null || node.deadUntilNanos - selected.deadUntilNanos < 0L) {
+                    selected = node;
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Node responded
+     */
+    public synchronized void markAlive(Node node, long latencyNanos) {
+        node.failures = 0;
+        node.latencyNanos = node.latencyNanos == 0D ? latencyNanos : LATENCY_ALPHA * latencyNanos + (1D - LATENCY_ALPHA) * node.latencyNanos;
+    }
+
+    /**
+     * Node failed to respond, skip it for a while
+     */
+    public synchronized void markDead(Node node) {
+        long backoff = initialDeadBackoffNanos << Math.min(node.failures, 30);
+        if (backoff <= 0L || backoff > maxDeadBackoffNanos) {
+            backoff = maxDeadBackoffNanos;
+        }
+        node.failures++;
+        node.deadUntilNanos = System.nanoTime() + backoff;
+    }
+
+    /**
+     * Number of nodes currently skipped
+     */
+    public synchronized int getDeadCount() {
+        long now = System.nanoTime();
+        int dead = 0;
+        for (Node node : nodes) {
+            if (!node.isAlive(now)) {
+                dead++;
+            }
+        }
+        return dead;
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+/**
+ * How the {@link NodePool} chooses the node receiving the next request
+ */
+public enum NodeSelection {
+    /**
+     * Each alive node in turn
+     */
+    ROUND_ROBIN,
+    /**
+     * Alive node having the lowest average response time
+     */
+    LEAST_LATENCY
+}
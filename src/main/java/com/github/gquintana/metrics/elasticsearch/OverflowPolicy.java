@@ -0,0 +1,19 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+/**
+ * What to do when the {@link AsyncSender} queue is full
+ */
+public enum OverflowPolicy {
+    /**
+     * Remove the oldest queued document to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * Discard the new document
+     */
+    DROP_NEWEST,
+    /**
+     * Wait for room in the queue, discard the new document after block timeout
+     */
+    BLOCK
+}
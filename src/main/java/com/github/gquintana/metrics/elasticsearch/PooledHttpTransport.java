@@ -0,0 +1,353 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/1.1 transport keeping sockets open between requests.
+ * Idle connections are kept in a pool, bounded in size, and closed after an idle timeout.
+ */
+public class PooledHttpTransport implements HttpTransport {
+    private final int maxIdleConnections;
+    private final long idleTimeoutNanos;
+    private final Deque<Connection> idleConnections = new ArrayDeque<>();
+    private boolean closed;
+
+    /**
+     * @param maxIdleConnections Maximum number of open sockets kept in pool
+     * @param idleTimeout        Time after which an unused socket is closed
+     */
+    public PooledHttpTransport(int maxIdleConnections, long idleTimeout, TimeUnit idleTimeoutUnit) {
+        this.maxIdleConnections = maxIdleConnections;
+        this.idleTimeoutNanos = idleTimeoutUnit.toNanos(idleTimeout);
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        String route = getRoute(request.getUrl());
+        Connection connection = acquire(route);
+        boolean reused = connection != null;
+        if (!reused) {
+            connection = new Connection(request, route);
+        }
+        HttpResponse response;
+        try {
+            response = connection.exchange(request);
+        } catch (IOException e) {
+            connection.close();
+            if (!reused || !connection.isStale(e)) {
+                // Server may have received the request, sending it again could index it twice
+                throw e;
+            }
+            // Pooled socket was closed by server in the meantime, try again with a new one
+            connection = new Connection(request, route);
+            try {
+                response = connection.exchange(request);
+            } catch (IOException e2) {
+                connection.close();
+                throw e2;
+            }
+        }
+        if (connection.keepAlive) {
+            release(connection);
+        } else {
+            connection.close();
+        }
+        return response;
+    }
+
+    private static String getRoute(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + getPort(url);
+    }
+
+    private static int getPort(URL url) {
+        return url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+    }
+
+    private synchronized Connection acquire(String route) {
+        closeExpired(System.nanoTime());
+        Iterator<Connection> iterator = idleConnections.iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (connection.route.equals(route)) {
+                iterator.remove();
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void release(Connection connection) {
+        if (closed) {
+            connection.close();
+            return;
+        }
+        long now = System.nanoTime();
+        connection.lastUsedNanos = now;
+        idleConnections.addFirst(connection);
+        while (idleConnections.size() > maxIdleConnections) {
+            idleConnections.removeLast().close();
+        }
+        closeExpired(now);
+    }
+
+    private void closeExpired(long now) {
+        Iterator<Connection> iterator = idleConnections.descendingIterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (now - connection.lastUsedNanos < idleTimeoutNanos) {
+                break;
+            }
+            iterator.remove();
+            connection.close();
+        }
+    }
+
+    /**
+     * Number of open sockets waiting in the pool
+     */
+    public synchronized int getIdleConnectionCount() {
+        return idleConnections.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Connection connection : idleConnections) {
+            connection.close();
+        }
+        idleConnections.clear();
+    }
+
+    /**
+     * Connection closed by server before any response byte
+     */
+    private static class ClosedWithoutResponseException extends EOFException {
+        private ClosedWithoutResponseException() {
+            super("Connection closed by server");
+        }
+    }
+
+    /**
+     * Socket to an Elasticsearch node
+     */
+    private static class Connection {
+        private final String route;
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        private boolean keepAlive;
+        private long lastUsedNanos;
+        /**
+         * Whether some bytes of current request reached the socket
+         */
+        private boolean written;
+
+        private Connection(HttpRequest request, String route) throws IOException {
+            this.route = route;
+            URL url = request.getUrl();
+            String host = url.getHost();
+            int port = getPort(url);
+            Socket plainSocket = SocketFactory.getDefault().createSocket();
+            try {
+                plainSocket.connect(new InetSocketAddress(host, port), request.getConnectTimeoutMs());
+                plainSocket.setSoTimeout(request.getReadTimeoutMs());
+                if ("https".equalsIgnoreCase(url.getProtocol())) {
+                    SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(plainSocket, host, port, true);
+                    SSLParameters sslParameters = sslSocket.getSSLParameters();
+                    sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslSocket.setSSLParameters(sslParameters);
+                    sslSocket.startHandshake();
+                    this.socket = sslSocket;
+                } else {
+                    this.socket = plainSocket;
+                }
+            } catch (IOException e) {
+                plainSocket.close();
+                throw e;
+            }
+            this.socket.setTcpNoDelay(true);
+            this.input = new BufferedInputStream(socket.getInputStream());
+            this.output = new BufferedOutputStream(new FilterOutputStream(socket.getOutputStream()) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                    written = true;
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    written = true;
+                }
+            });
+        }
+
+        /**
+         * Whether a failed exchange on a pooled connection means the server closed it before processing the request:
+         * nothing could be written, or the connection was closed without any response.
+         * Read timeouts are never considered stale, the request may have been processed.
+         */
+        private boolean isStale(IOException e) {
+            return !written || e instanceof ClosedWithoutResponseException;
+        }
+
+        private HttpResponse exchange(HttpRequest request) throws IOException {
+            written = false;
+            socket.setSoTimeout(request.getReadTimeoutMs());
+            writeRequest(request);
+            return readResponse(request);
+        }
+
+        private void writeRequest(HttpRequest request) throws IOException {
+            URL url = request.getUrl();
+            StringBuilder head = new StringBuilder(256);
+            String path = url.getFile().isEmpty() ? "/" : url.getFile();
+            head.append(request.getMethod()).append(' ').append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(url.getHost());
+            if (url.getPort() >= 0) {
+                head.append(':').append(url.getPort());
+            }
+            head.append("\r\n");
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            byte[] body = request.getBody();
+            head.append("Content-Length: ").append(request.getBodyLength()).append("\r\n");
+            head.append("Connection: keep-alive\r\n\r\n");
+            output.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (body != null) {
+                output.write(body, 0, request.getBodyLength());
+            }
+            output.flush();
+        }
+
+        private HttpResponse readResponse(HttpRequest request) throws IOException {
+            boolean interim = false;
+            while (true) {
+                String statusLine = readLine();
+                if (statusLine == null) {
+                    throw interim ? new EOFException("Connection closed by server") : new ClosedWithoutResponseException();
+                }
+                String[] statusParts = statusLine.split(" ", 3);
+                if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/")) {
+                    throw new IOException("Invalid status line " + statusLine);
+                }
+                int statusCode = Integer.parseInt(statusParts[1]);
+                keepAlive = statusParts[0].equals("HTTP/1.1");
+                long contentLength = -1L;
+                boolean chunked = false;
+                String line;
+                while ((line = readLine()) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        contentLength = Long.parseLong(value);
+                    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        chunked = value.toLowerCase().contains("chunked");
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+                    }
+                }
+                if (statusCode / 100 == 1) {
+                    // Interim response, like 100 Continue
+                    interim = true;
+                    continue;
+                }
+                byte[] body;
+                if (request.getMethod().equals("HEAD") || statusCode == 204 || statusCode == 304) {
+                    body = new byte[0];
+                } else if (chunked) {
+                    body = readChunkedBody();
+                } else if (contentLength >= 0) {
+                    body = readBody(contentLength);
+                } else {
+                    keepAlive = false;
+                    body = UrlConnectionTransport.readFully(input);
+                }
+                return new HttpResponse(statusCode, statusParts.length > 2 ? statusParts[2] : "", body);
+            }
+        }
+
+        private byte[] readBody(long length) throws IOException {
+            byte[] body = new byte[(int) length];
+            int offset = 0;
+            while (offset < body.length) {
+                int read = input.read(body, offset, body.length - offset);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of response body");
+                }
+                offset += read;
+            }
+            return body;
+        }
+
+        private byte[] readChunkedBody() throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                String sizeLine = readLine();
+                if (sizeLine == null) {
+                    throw new EOFException("Unexpected end of chunked response body");
+                }
+                int semicolon = sizeLine.indexOf(';');
+                int size = Integer.parseInt((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+                if (size == 0) {
+                    // Skip trailers
+                    String line;
+                    while ((line = readLine()) != null && !line.isEmpty()) {
+                    }
+                    return body.toByteArray();
+                }
+                body.write(readBody(size));
+                readLine();
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = input.read()) >= 0) {
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics about the reporter itself: time spent in each phase, payload sizes and failures.
+ */
+public class ReporterMetrics {
+    private final Timer report;
+    private final Timer snapshot;
+    private final Timer serialize;
+    private final Timer send;
+    private final Histogram payloadBytes;
+    private final Histogram metricCount;
+    private final Counter status2xx;
+    private final Counter status4xx;
+    private final Counter status5xx;
+    private final Counter statusOther;
+    private final Counter connectionErrors;
+    private final Counter droppedReports;
+    private final Timer gaugeEvaluation;
+    private final Counter gaugeTimeouts;
+    private final Counter gaugeFailures;
+    private final MetricRegistry registry;
+    private final String prefix;
+
+    /**
+     * @param registry Registry receiving the metrics
+     * @param prefix   Metric name prefix, ex: elasticsearch-reporter
+     */
+    public ReporterMetrics(MetricRegistry registry, String prefix) {
+        this.registry = registry;
+        this.prefix = prefix;
+        this.report = registry.timer(MetricRegistry.name(prefix, "report"));
+        this.snapshot = registry.timer(MetricRegistry.name(prefix, "snapshot"));
+        this.serialize = registry.timer(MetricRegistry.name(prefix, "serialize"));
+        this.send = registry.timer(MetricRegistry.name(prefix, "send"));
+        this.payloadBytes = registry.histogram(MetricRegistry.name(prefix, "payload-bytes"));
+        this.metricCount = registry.histogram(MetricRegistry.name(prefix, "metric-count"));
+        this.status2xx = registry.counter(MetricRegistry.name(prefix, "http", "2xx"));
+        this.status4xx = registry.counter(MetricRegistry.name(prefix, "http", "4xx"));
+        this.status5xx = registry.counter(MetricRegistry.name(prefix, "http", "5xx"));
+        this.statusOther = registry.counter(MetricRegistry.name(prefix, "http", "other"));
+        this.connectionErrors = registry.counter(MetricRegistry.name(prefix, "http", "errors"));
+        this.droppedReports = registry.counter(MetricRegistry.name(prefix, "reports", "dropped"));
+        this.gaugeEvaluation = registry.timer(MetricRegistry.name(prefix, "gauges", "evaluation"));
+        this.gaugeTimeouts = registry.counter(MetricRegistry.name(prefix, "gauges", "timeouts"));
+        this.gaugeFailures = registry.counter(MetricRegistry.name(prefix, "gauges", "failures"));
+    }
+
+    /**
+     * Whole report: snapshot and send, or enqueue when sending asynchronously
+     */
+    public void recordReport(long durationNanos) {
+        report.update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordSnapshot(long durationNanos, int metricCount) {
+        snapshot.update(durationNanos, TimeUnit.NANOSECONDS);
+        this.metricCount.update(metricCount);
+    }
+
+    public void recordSerialize(long durationNanos) {
+        serialize.update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * HTTP request, including retries
+     */
+    public void recordSend(long durationNanos, int payloadBytes) {
+        send.update(durationNanos, TimeUnit.NANOSECONDS);
+        this.payloadBytes.update(payloadBytes);
+    }
+
+    /**
+     * Response of a single HTTP attempt
+     */
+    public void recordStatus(int statusCode) {
+        if (statusCode >= 200 && statusCode < 300) {
+            status2xx.inc();
+        } else if (statusCode >= 400 && statusCode < 500) {
+            status4xx.inc();
+        } else if (statusCode >= 500) {
+            status5xx.inc();
+        } else {
+            statusOther.inc();
+        }
+    }
+
+    /**
+     * HTTP attempt which got no response
+     */
+    public void recordConnectionError() {
+        connectionErrors.inc();
+    }
+
+    /**
+     * Report, or document of a report, which could not be sent nor spooled
+     */
+    public void recordDroppedReport() {
+        droppedReports.inc();
+    }
+
+    /**
+     * Reports, or documents, discarded all at once
+     */
+    public void recordDroppedReports(long count) {
+        droppedReports.inc(count);
+    }
+
+    /**
+     * Evaluation of a single gauge by {@link GaugeEvaluator}
+     */
+    public void recordGaugeEvaluation(long durationNanos) {
+        gaugeEvaluation.update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gauge replaced by its last value because it was too slow
+     */
+    public void recordGaugeTimeout() {
+        gaugeTimeouts.inc();
+    }
+
+    public void recordGaugeFailure() {
+        gaugeFailures.inc();
+    }
+
+    /**
+     * Expose asynchronous sender queue as gauges, replacing those of a previously built sender
+     */
+    void registerAsyncSender(final AsyncSender asyncSender) {
+        registerGauge(MetricRegistry.name(prefix, "async", "queue-size"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return asyncSender.getQueueSize();
+            }
+        });
+        registerGauge(MetricRegistry.name(prefix, "async", "dropped"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return asyncSender.getDroppedCount();
+            }
+        });
+        registerGauge(MetricRegistry.name(prefix, "async", "failed"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return asyncSender.getFailedCount();
+            }
+        });
+    }
+
+    /**
+     * Register a gauge, registry rejects names already registered
+     */
+    private void registerGauge(String name, Gauge<?> gauge) {
+        // Reporters built concurrently share the registry
+        synchronized (registry) {
+            registry.remove(name);
+            registry.register(name, gauge);
+        }
+    }
+}
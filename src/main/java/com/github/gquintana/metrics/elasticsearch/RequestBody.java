@@ -0,0 +1,166 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Buffer receiving a request body.
+ * Once the body grows beyond the compression threshold,
+ * what was written so far and everything written afterwards goes through a gzip stream.
+ * The body can be {@link #reset()} and written again, buffers and deflater are then reused.
+ */
+class RequestBody extends OutputStream {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private final int compressionLevel;
+    private final int compressionThreshold;
+    private final Buffer buffer = new Buffer(1024);
+    /**
+     * Compressed body, lazily created
+     */
+    private Buffer gzipBuffer;
+    private Deflater deflater;
+    private DeflaterOutputStream deflaterOutput;
+    private final CRC32 crc = new CRC32();
+    private boolean compressed;
+    private boolean closed;
+
+    /**
+     * @param compressionLevel     Deflate level, from 1 (fast) to 9 (small)
+     * @param compressionThreshold Size in bytes from which the body is compressed, negative to disable compression
+     */
+    RequestBody(int compressionLevel, int compressionThreshold) {
+        this.compressionLevel = compressionLevel;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Byte array output stream exposing its internal array, to avoid copies
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        private Buffer(int size) {
+            super(size);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (compressed) {
+            deflaterOutput.write(b);
+            crc.update(b);
+        } else {
+            buffer.write(b);
+            checkThreshold();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (compressed) {
+            deflaterOutput.write(bytes, offset, length);
+            crc.update(bytes, offset, length);
+        } else {
+            buffer.write(bytes, offset, length);
+            checkThreshold();
+        }
+    }
+
+    private void checkThreshold() throws IOException {
+        if (compressionThreshold >= 0 && buffer.size() >= compressionThreshold) {
+            if (deflater == null) {
+                gzipBuffer = new Buffer(Math.max(1024, buffer.size()));
+                deflater = new Deflater(compressionLevel, true);
+                deflaterOutput = new DeflaterOutputStream(gzipBuffer, deflater, 8192);
+            }
+            gzipBuffer.write(GZIP_HEADER);
+            compressed = true;
+            write(buffer.array(), 0, buffer.size());
+        }
+    }
+
+    /**
+     * Finish compression, if any, the stream can not be written anymore until reset
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (compressed) {
+            deflaterOutput.finish();
+            writeIntLE(gzipBuffer, (int) crc.getValue());
+            writeIntLE(gzipBuffer, (int) deflater.getBytesRead());
+        }
+    }
+
+    private static void writeIntLE(OutputStream output, int value) throws IOException {
+        output.write(value);
+        output.write(value >>> 8);
+        output.write(value >>> 16);
+        output.write(value >>> 24);
+    }
+
+    /**
+     * Empty the body so that it can be written again
+     */
+    public void reset() {
+        buffer.reset();
+        if (deflater != null) {
+            gzipBuffer.reset();
+            deflater.reset();
+            crc.reset();
+        }
+        compressed = false;
+        closed = false;
+    }
+
+    /**
+     * Release deflater native memory, the body can not be used anymore
+     */
+    public void free() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Whether the body was gzipped
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Internal array, only the first {@link #size()} bytes are meaningful
+     */
+    public byte[] array() {
+        return compressed ? gzipBuffer.array() : buffer.array();
+    }
+
+    public int size() {
+        return compressed ? gzipBuffer.size() : buffer.size();
+    }
+
+    /**
+     * Memory retained by this body
+     */
+    public int capacity() {
+        return buffer.capacity() + (gzipBuffer == null ? 0 : gzipBuffer.capacity());
+    }
+
+    public byte[] toByteArray() {
+        return compressed ? gzipBuffer.toByteArray() : buffer.toByteArray();
+    }
+}
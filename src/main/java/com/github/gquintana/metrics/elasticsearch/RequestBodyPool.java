@@ -0,0 +1,45 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reusable request bodies, so that steady state reporting doesn't allocate new buffers and deflaters.
+ * Bodies which grew too large are not kept.
+ */
+class RequestBodyPool {
+    private final int compressionLevel;
+    private final int compressionThreshold;
+    private final BlockingQueue<RequestBody> bodies;
+    private final int maxBodyBytes;
+
+    /**
+     * @param size         Maximum number of idle bodies, 0 to disable pooling
+     * @param maxBodyBytes Maximum memory retained by an idle body
+     */
+    RequestBodyPool(int compressionLevel, int compressionThreshold, int size, int maxBodyBytes) {
+        this.compressionLevel = compressionLevel;
+        this.compressionThreshold = compressionThreshold;
+        this.bodies = size > 0 ? new ArrayBlockingQueue<RequestBody>(size) : null;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public RequestBody acquire() {
+        RequestBody body = bodies == null ? null : bodies.poll();
+        return body == null ? new RequestBody(compressionLevel, compressionThreshold) : body;
+    }
+
+    public void release(RequestBody body) {
+        if (bodies != null && body.capacity() <= maxBodyBytes) {
+            body.reset();
+            if (bodies.offer(body)) {
+                return;
+            }
+        }
+        body.free();
+    }
+
+    int getIdleCount() {
+        return bodies == null ? 0 : bodies.size();
+    }
+}
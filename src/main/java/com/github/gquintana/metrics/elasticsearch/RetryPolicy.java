@@ -0,0 +1,55 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a failed request is sent again and how long to wait before.
+ * Backoff grows exponentially and is randomized, so that many reporters don't retry all at once.
+ */
+public class RetryPolicy {
+    /**
+     * Never retry
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0L, 0L, TimeUnit.MILLISECONDS);
+
+    private final int maxRetries;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+
+    /**
+     * @param maxRetries     Maximum number of times a request is sent again
+     * @param initialBackoff Wait before the first retry, doubled for each following retry
+     * @param maxBackoff     Maximum wait between two attempts
+     */
+    public RetryPolicy(int maxRetries, long initialBackoff, long maxBackoff, TimeUnit backoffUnit) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMs = backoffUnit.toMillis(initialBackoff);
+        this.maxBackoffMs = backoffUnit.toMillis(maxBackoff);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Too many requests, bad gateway, service unavailable and gateway timeout are worth retrying
+     */
+    public boolean isRetryable(int statusCode) {
+        return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Time to wait before given retry, a random value between half and all of the exponential backoff
+     *
+     * @param retry Retry number, starting at 0
+     */
+    public long getBackoffMs(int retry) {
+        long backoff = initialBackoffMs << Math.min(retry, 30);
+        if (backoff <= 0L || backoff > maxBackoffMs) {
+            backoff = maxBackoffMs;
+        }
+        long half = backoff / 2L;
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1L);
+    }
+}
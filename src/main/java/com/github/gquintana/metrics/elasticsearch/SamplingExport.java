@@ -0,0 +1,165 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.math.BigDecimal;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Statistics and percentiles written for histograms and timers
+ */
+public class SamplingExport {
+    public enum Statistic {
+        MIN, MAX, MEAN, STDDEV, MEDIAN
+    }
+
+    /**
+     * Min, max, mean, stddev, median, 75th, 95th and 99th percentiles
+     */
+    public static final SamplingExport DEFAULT = builder()
+            .statistics(Statistic.values())
+            .percentiles(0.75D, 0.95D, 0.99D)
+            .build();
+
+    private final boolean min;
+    private final boolean max;
+    private final boolean mean;
+    private final boolean stddev;
+    private final boolean median;
+    private final double[] quantiles;
+    private final SerializedString[] quantileFieldNames;
+    private final int histogramDigits;
+
+    private SamplingExport(Builder builder) {
+        this.min = builder.statistics.contains(Statistic.MIN);
+        this.max = builder.statistics.contains(Statistic.MAX);
+        this.mean = builder.statistics.contains(Statistic.MEAN);
+        this.stddev = builder.statistics.contains(Statistic.STDDEV);
+        this.median = builder.statistics.contains(Statistic.MEDIAN);
+        this.quantiles = builder.quantiles;
+        this.quantileFieldNames = new SerializedString[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++) {
+            quantileFieldNames[i] = new SerializedString(getQuantileFieldName(quantiles[i]));
+        }
+        this.histogramDigits = builder.histogramDigits;
+    }
+
+    /**
+     * Field name of a quantile, ex: percentile99 for 0.99, percentile99_9 for 0.999
+     */
+    static String getQuantileFieldName(double quantile) {
+        return "percentile" + BigDecimal.valueOf(quantile).movePointRight(2).stripTrailingZeros().toPlainString().replace('.', '_');
+    }
+
+    public boolean isMin() {
+        return min;
+    }
+
+    public boolean isMax() {
+        return max;
+    }
+
+    public boolean isMean() {
+        return mean;
+    }
+
+    public boolean isStddev() {
+        return stddev;
+    }
+
+    public boolean isMedian() {
+        return median;
+    }
+
+    public int getQuantileCount() {
+        return quantiles.length;
+    }
+
+    public double getQuantile(int index) {
+        return quantiles[index];
+    }
+
+    public String getQuantileFieldName(int index) {
+        return quantileFieldNames[index].getValue();
+    }
+
+    SerializableString getSerializedQuantileFieldName(int index) {
+        return quantileFieldNames[index];
+    }
+
+    /**
+     * Whether sampled values are written as an Elasticsearch histogram field
+     */
+    public boolean isHistogram() {
+        return histogramDigits > 0;
+    }
+
+    /**
+     * Number of significant digits kept in histogram bucket values
+     */
+    public int getHistogramDigits() {
+        return histogramDigits;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder of {@link SamplingExport}, nothing is exported by default
+     */
+    public static class Builder {
+        private final Set<Statistic> statistics = EnumSet.noneOf(Statistic.class);
+        private double[] quantiles = new double[0];
+        private int histogramDigits;
+
+        private Builder() {
+        }
+
+        public Builder statistics(Statistic... statistics) {
+            for (Statistic statistic : statistics) {
+                this.statistics.add(statistic);
+            }
+            return this;
+        }
+
+        /**
+         * @param quantiles Quantiles between 0 and 1, ex: 0.999 for the 99.9th percentile
+         */
+        public Builder percentiles(double... quantiles) {
+            for (double quantile : quantiles) {
+                if (quantile < 0D || quantile > 1D) {
+                    throw new IllegalArgumentException("Invalid quantile " + quantile);
+                }
+            }
+            this.quantiles = quantiles.clone();
+            return this;
+        }
+
+        /**
+         * Write sampled values as an Elasticsearch histogram field named value_histogram,
+         * so that percentiles can be aggregated across hosts.
+         * Values are rounded to keep the number of buckets small.
+         * Counts are numbers of values in the reservoir sample, not numbers of recorded events,
+         * they give the shape of the distribution, not its volume.
+         * Only reservoirs sampling values with equal weights, like {@link com.codahale.metrics.UniformReservoir}
+         * or {@link com.codahale.metrics.SlidingTimeWindowReservoir}, are exported:
+         * nothing is written for the default {@link com.codahale.metrics.ExponentiallyDecayingReservoir}.
+         *
+         * @param significantDigits Number of significant digits of bucket values, ex: 2 rounds 1234 to 1200
+         */
+        public Builder histogram(int significantDigits) {
+            if (significantDigits <= 0) {
+                throw new IllegalArgumentException("Histogram significant digits must be positive");
+            }
+            this.histogramDigits = significantDigits;
+            return this;
+        }
+
+        public SamplingExport build() {
+            return new SamplingExport(this);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses the {@link SamplingExport} of a metric: the first pattern matching its name, or the default one
+ */
+class SamplingExportResolver {
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final List<SamplingExport> samplingExports = new ArrayList<>();
+    private SamplingExport defaultSamplingExport = SamplingExport.DEFAULT;
+
+    void setDefault(SamplingExport samplingExport) {
+        this.defaultSamplingExport = samplingExport;
+    }
+
+    /**
+     * @param namePattern Regular expression matching whole metric names
+     */
+    void add(String namePattern, SamplingExport samplingExport) {
+        patterns.add(Pattern.compile(namePattern));
+        samplingExports.add(samplingExport);
+    }
+
+    SamplingExport get(String metricName) {
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(metricName).matches()) {
+                return samplingExports.get(i);
+            }
+        }
+        return defaultSamplingExport;
+    }
+}
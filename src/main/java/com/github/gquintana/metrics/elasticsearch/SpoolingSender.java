@@ -0,0 +1,186 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes metric sets which could not be sent to a {@link DiskSpool},
+ * and periodically replays spooled documents, oldest first, using the bulk API.
+ */
+public class SpoolingSender implements MetricSetSender {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpoolingSender.class);
+
+    private final MetricSetSender delegate;
+    private final ElasticsearchClient client;
+    private final DiskSpool spool;
+    private final int replayBatchSize;
+    /**
+     * Self instrumentation, null when disabled
+     */
+    private final ReporterMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    /**
+     * Segment being replayed and positions of its documents already indexed or dropped,
+     * so that a replay interrupted by a failure or a rejection doesn't index them twice
+     */
+    private long replaySegmentId = -1L;
+    private final BitSet replayed = new BitSet();
+
+    /**
+     * @param delegate        Sender used for fresh metric sets
+     * @param client          Client used to encode failed metric sets and replay spooled documents
+     * @param replayBatchSize Maximum number of documents in a replay bulk request
+     * @param replayInterval  Time between two replay attempts
+     */
+    public SpoolingSender(MetricSetSender delegate, ElasticsearchClient client, DiskSpool spool, int replayBatchSize, long replayInterval, TimeUnit replayIntervalUnit) {
+        this(delegate, client, spool, replayBatchSize, replayInterval, replayIntervalUnit, null);
+    }
+
+    /**
+     * @param metrics Self instrumentation, documents which could not be spooled are counted as dropped reports (null allowed)
+     */
+    public SpoolingSender(MetricSetSender delegate, ElasticsearchClient client, DiskSpool spool, int replayBatchSize, long replayInterval, TimeUnit replayIntervalUnit, ReporterMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.client = client;
+        this.spool = spool;
+        this.replayBatchSize = replayBatchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "elasticsearch-reporter-spool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, replayInterval, replayInterval, replayIntervalUnit);
+    }
+
+    @Override
+    public void send(MetricSet metricSet) {
+        try {
+            delegate.send(metricSet);
+        } catch (BulkRejectionException e) {
+            // Other documents were indexed
+            LOGGER.warn("Failed to write metrics in Elasticsearch, spooling rejected ones", e);
+            for (Document document : e.getDocuments()) {
+                spool(document);
+            }
+        } catch (ElasticsearchException e) {
+            LOGGER.warn("Failed to write metrics in Elasticsearch, spooling them", e);
+            for (Document document : client.encodeDocuments(metricSet)) {
+                spool(document);
+            }
+        }
+    }
+
+    private void spool(Document document) {
+        try {
+            spool.append(document);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to spool metrics for {}", document.getIndex(), e);
+            if (metrics != null) {
+                metrics.recordDroppedReport();
+            }
+        }
+    }
+
+    /**
+     * Send spooled documents, oldest first, stops at first failure or rejection
+     *
+     * @return true when the spool was emptied
+     */
+    boolean replay() {
+        try {
+            long segmentId;
+            while ((segmentId = spool.getOldestSegmentId()) >= 0L) {
+                if (segmentId != replaySegmentId) {
+                    replaySegmentId = segmentId;
+                    replayed.clear();
+                }
+                if (!replaySegment(spool.readSegment(segmentId))) {
+                    // Cluster is busy, segment is kept and rejected documents are sent again later
+                    return false;
+                }
+                spool.deleteSegment(segmentId);
+            }
+            return true;
+        } catch (ElasticsearchException e) {
+            LOGGER.debug("Failed to replay spooled metrics", e);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read spooled metrics", e);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to replay spooled metrics", e);
+        }
+        return false;
+    }
+
+    /**
+     * Send documents of the replayed segment not indexed yet, in batches
+     *
+     * @return false when a document was rejected with a retryable status
+     */
+    private boolean replaySegment(List<Document> documents) {
+        int[] positions = new int[replayBatchSize];
+        List<Document> batch = new ArrayList<>(replayBatchSize);
+        int position = replayed.nextClearBit(0);
+        while (position < documents.size()) {
+            batch.clear();
+            for (; position < documents.size() && batch.size() < replayBatchSize; position = replayed.nextClearBit(position + 1)) {
+                positions[batch.size()] = position;
+                batch.add(documents.get(position));
+            }
+            BulkResult result = client.postBulk(batch);
+            boolean rejected = false;
+            for (int i = 0; i < result.size(); i++) {
+                if (result.isRetryable(i)) {
+                    rejected = true;
+                    continue;
+                }
+                if (!result.isSuccess(i)) {
+                    LOGGER.warn("Failed to index spooled metrics in {}: {} {}", batch.get(i).getIndex(), result.getStatus(i), result.getError(i));
+                    if (metrics != null) {
+                        metrics.recordDroppedReport();
+                    }
+                }
+                replayed.set(positions[i]);
+            }
+            if (rejected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop replaying, close delegate sender then the spool
+     */
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            delegate.close();
+        } finally {
+            spool.close();
+        }
+    }
+}
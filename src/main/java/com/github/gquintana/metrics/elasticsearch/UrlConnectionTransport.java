@@ -0,0 +1,61 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+/**
+ * Transport based on {@link HttpURLConnection}.
+ * Connections are never disconnected and responses are fully read,
+ * so that the JDK keep-alive cache can reuse sockets.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+    @Override
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) request.getUrl().openConnection();
+        connection.setRequestMethod(request.getMethod());
+        connection.setConnectTimeout(request.getConnectTimeoutMs());
+        connection.setReadTimeout(request.getReadTimeoutMs());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        byte[] body = request.getBody();
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(request.getBodyLength());
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body, 0, request.getBodyLength());
+            }
+        }
+        int statusCode = connection.getResponseCode();
+        InputStream input = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        return new HttpResponse(statusCode, connection.getResponseMessage(), readFully(input));
+    }
+
+    /**
+     * Drain and close response stream, it gives the connection back to the keep-alive cache
+     */
+    static byte[] readFully(InputStream input) throws IOException {
+        if (input == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
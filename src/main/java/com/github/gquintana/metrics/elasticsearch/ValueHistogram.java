@@ -0,0 +1,82 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import java.util.Arrays;
+
+/**
+ * Sampled values grouped in buckets, written as an Elasticsearch histogram field named value_histogram.
+ * Counts are numbers of sampled values in each bucket.
+ */
+class ValueHistogram {
+    private final double[] values;
+    private final long[] counts;
+    private final int size;
+
+    private ValueHistogram(double[] values, long[] counts, int size) {
+        this.values = values;
+        this.counts = counts;
+        this.size = size;
+    }
+
+    /**
+     * Round values to some significant digits and count equal values
+     *
+     * @param sample Sampled values, ex: {@link com.codahale.metrics.Snapshot#getValues()}
+     */
+    static ValueHistogram of(long[] sample, DurationConverter durationConverter, int significantDigits) {
+        double[] rounded = new double[sample.length];
+        for (int i = 0; i < sample.length; i++) {
+            rounded[i] = round(durationConverter.convert((double) sample[i]), significantDigits);
+        }
+        if (!isSorted(rounded)) {
+            Arrays.sort(rounded);
+        }
+        double[] values = new double[rounded.length];
+        long[] counts = new long[rounded.length];
+        int size = 0;
+        for (double value : rounded) {
+            if (size > 0 && values[size - 1] == value) {
+                counts[size - 1]++;
+            } else {
+                values[size] = value;
+                counts[size] = 1L;
+                size++;
+            }
+        }
+        return new ValueHistogram(values, counts, size);
+    }
+
+    private static boolean isSorted(double[] values) {
+        for (int i = 1; i < values.length; i++) {
+            if (values[i - 1] > values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static double round(double value, int significantDigits) {
+        if (value == 0D || Double.isNaN(value) || Double.isInfinite(value)) {
+            return value;
+        }
+        int magnitude = (int) Math.floor(Math.log10(Math.abs(value)));
+        int scale = significantDigits - 1 - magnitude;
+        if (scale >= 0) {
+            double factor = Math.pow(10D, scale);
+            return Math.round(value * factor) / factor;
+        }
+        double factor = Math.pow(10D, -scale);
+        return Math.round(value / factor) * factor;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public long getCount(int index) {
+        return counts[index];
+    }
+}
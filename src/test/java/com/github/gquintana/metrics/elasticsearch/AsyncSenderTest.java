@@ -0,0 +1,148 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class AsyncSenderTest {
+    /**
+     * Sender blocked until latch is released
+     */
+    private static class BlockingSender implements MetricSetSender {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final List<MetricSet> sent = new CopyOnWriteArrayList<>();
+        private final boolean interruptible;
+        private volatile boolean closed;
+
+        private BlockingSender() {
+            this(true);
+        }
+
+        /**
+         * @param interruptible Whether interrupting the sender thread stops waiting for the latch
+         */
+        private BlockingSender(boolean interruptible) {
+            this.interruptible = interruptible;
+        }
+
+        @Override
+        public void send(MetricSet metricSet) {
+            started.countDown();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (interruptible) {
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(metricSet);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+
+    private final MetricRegistry registry = new MetricRegistry();
+
+    private AsyncSender fillQueue(BlockingSender delegate, OverflowPolicy overflowPolicy, MetricSet[] metricSets) throws InterruptedException {
+        AsyncSender sender = new AsyncSender(delegate, 2, overflowPolicy, 10L, TimeUnit.MILLISECONDS, new ReporterMetrics(registry, "reporter"));
+        sender.send(metricSets[0]);
+        // Wait for first document to be taken by sender thread
+        delegate.started.await(1L, TimeUnit.SECONDS);
+        for (int i = 1; i < metricSets.length; i++) {
+            sender.send(metricSets[i]);
+        }
+        return sender;
+    }
+
+    private static MetricSet[] metricSets(int count) {
+        MetricSet[] metricSets = new MetricSet[count];
+        for (int i = 0; i < count; i++) {
+            metricSets[i] = new MetricSet(i, "localhost");
+        }
+        return metricSets;
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        BlockingSender delegate = new BlockingSender();
+        MetricSet[] metricSets = metricSets(5);
+        AsyncSender sender = fillQueue(delegate, OverflowPolicy.DROP_OLDEST, metricSets);
+        assertThat(sender.getQueuedCount(), equalTo(5L));
+        assertThat(sender.getDroppedCount(), equalTo(2L));
+        delegate.latch.countDown();
+        sender.close();
+        assertThat(sender.getSentCount(), equalTo(3L));
+        assertThat(delegate.sent.get(0), sameInstance(metricSets[0]));
+        assertThat(delegate.sent.get(1), sameInstance(metricSets[3]));
+        assertThat(delegate.sent.get(2), sameInstance(metricSets[4]));
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        BlockingSender delegate = new BlockingSender();
+        MetricSet[] metricSets = metricSets(5);
+        AsyncSender sender = fillQueue(delegate, OverflowPolicy.DROP_NEWEST, metricSets);
+        assertThat(sender.getQueuedCount(), equalTo(3L));
+        assertThat(sender.getDroppedCount(), equalTo(2L));
+        assertThat(registry.counter("reporter.reports.dropped").getCount(), equalTo(2L));
+        delegate.latch.countDown();
+        sender.close();
+        assertThat(sender.getSentCount(), equalTo(3L));
+        assertThat(delegate.sent.get(1), sameInstance(metricSets[1]));
+        assertThat(delegate.sent.get(2), sameInstance(metricSets[2]));
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        BlockingSender delegate = new BlockingSender();
+        AsyncSender sender = fillQueue(delegate, OverflowPolicy.BLOCK, metricSets(4));
+        assertThat(sender.getQueuedCount(), equalTo(3L));
+        assertThat(sender.getDroppedCount(), equalTo(1L));
+        delegate.latch.countDown();
+        sender.close();
+        assertThat(sender.getSentCount(), equalTo(3L));
+    }
+
+    @Test
+    public void testCloseInterrupted() throws Exception {
+        BlockingSender delegate = new BlockingSender();
+        AsyncSender sender = fillQueue(delegate, OverflowPolicy.BLOCK, metricSets(3));
+        sender.close();
+        assertThat(delegate.closed, equalTo(true));
+        // Document being sent when interrupted, others stay in the queue and are dropped
+        assertThat(delegate.sent.size(), equalTo(1));
+        assertThat(sender.getQueueSize(), equalTo(0));
+        assertThat(registry.counter("reporter.reports.dropped").getCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testCloseStuck() throws Exception {
+        BlockingSender delegate = new BlockingSender(false);
+        AsyncSender sender = fillQueue(delegate, OverflowPolicy.BLOCK, metricSets(2));
+        sender.close();
+        // Sender thread still uses the delegate
+        assertThat(delegate.closed, equalTo(false));
+        delegate.latch.countDown();
+    }
+}
@@ -0,0 +1,193 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BulkSenderTest {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Client rejecting the first document of each bulk request with given status
+     */
+    private static class RejectingClient extends ElasticsearchClient {
+        private final int rejectStatus;
+        private final List<Integer> bulkSizes = new ArrayList<>();
+
+        private RejectingClient(int rejectStatus) {
+            super("http://localhost:9200", null, null, "metrics", new SimpleDateFormat("yyyy.MM.dd"), null);
+            this.rejectStatus = rejectStatus;
+        }
+
+        @Override
+        public BulkResult postBulk(List<Document> documents) {
+            bulkSizes.add(documents.size());
+            int[] statuses = new int[documents.size()];
+            String[] errors = new String[documents.size()];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = 201;
+            }
+            statuses[0] = rejectStatus;
+            errors[0] = "rejected";
+            return new BulkResult(statuses, errors);
+        }
+    }
+
+    /**
+     * Client failing each bulk request with given status
+     */
+    private static class FailingClient extends ElasticsearchClient {
+        private final int failStatus;
+        private int requestCount;
+
+        private FailingClient(int failStatus) {
+            super("http://localhost:9200", null, null, "metrics", new SimpleDateFormat("yyyy.MM.dd"), null);
+            this.failStatus = failStatus;
+        }
+
+        @Override
+        public BulkResult postBulk(List<Document> documents) {
+            requestCount++;
+            throw new ElasticsearchException("Request failed", failStatus);
+        }
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        String response = "{\"took\":30,\"errors\":true,\"items\":["
+                + "{\"index\":{\"_index\":\"metrics\",\"_id\":\"1\",\"status\":201,\"result\":\"created\",\"_shards\":{\"total\":2}}},"
+                + "{\"index\":{\"_index\":\"metrics\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue full\"}}},"
+                + "{\"index\":{\"_index\":\"metrics\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}}"
+                + "]}";
+        try (JsonParser parser = new JsonFactory().createParser(response)) {
+            BulkResult result = BulkResult.parse(parser, 4);
+            assertThat(result.hasErrors(), equalTo(true));
+            assertThat(result.isSuccess(0), equalTo(true));
+            assertThat(result.getError(0), nullValue());
+            assertThat(result.getStatus(1), equalTo(429));
+            assertThat(result.isRetryable(1), equalTo(true));
+            assertThat(result.getError(1), equalTo("es_rejected_execution_exception: queue full"));
+            assertThat(result.isRetryable(2), equalTo(false));
+            // Missing item
+            assertThat(result.isSuccess(3), equalTo(false));
+        }
+    }
+
+    @Test
+    public void testBatchByCount() {
+        RejectingClient client = new RejectingClient(201);
+        BulkSender sender = new BulkSender(client, 3, 1024L * 1024L, 1L, TimeUnit.HOURS, 2);
+        for (int i = 0; i < 7; i++) {
+            sender.send(new MetricSet(i, "localhost"));
+        }
+        assertThat(client.bulkSizes.size(), equalTo(2));
+        sender.close();
+        assertThat(client.bulkSizes.size(), equalTo(3));
+        assertThat(client.bulkSizes.get(2), equalTo(1));
+    }
+
+    @Test
+    public void testBatchByLinger() throws InterruptedException {
+        RejectingClient client = new RejectingClient(201);
+        BulkSender sender = new BulkSender(client, 100, 1024L * 1024L, 10L, TimeUnit.MILLISECONDS, 2);
+        sender.send(new MetricSet(0L, "localhost"));
+        sender.send(new MetricSet(1L, "localhost"));
+        for (int i = 0; i < 100 && client.bulkSizes.isEmpty(); i++) {
+            Thread.sleep(10L);
+        }
+        assertThat(client.bulkSizes.size(), equalTo(1));
+        assertThat(client.bulkSizes.get(0), equalTo(2));
+        sender.close();
+    }
+
+    @Test
+    public void testRetryRejected() throws InterruptedException {
+        RejectingClient client = new RejectingClient(429);
+        RetryPolicy retryPolicy = new RetryPolicy(1, 20L, 20L, TimeUnit.MILLISECONDS);
+        BulkSender sender = new BulkSender(client, 2, 1024L * 1024L, 1L, TimeUnit.HOURS, retryPolicy, null);
+        sender.send(new MetricSet(0L, "localhost"));
+        sender.send(new MetricSet(1L, "localhost"));
+        // First document waits for backoff
+        assertThat(client.bulkSizes.size(), equalTo(1));
+        for (int i = 0; i < 100 && client.bulkSizes.size() < 2; i++) {
+            Thread.sleep(10L);
+        }
+        assertThat(client.bulkSizes.size(), equalTo(2));
+        // Then given up
+        sender.close();
+        assertThat(client.bulkSizes.size(), equalTo(2));
+    }
+
+    @Test
+    public void testCloseSendsRetriesThenSpools() throws IOException {
+        RejectingClient client = new RejectingClient(429);
+        DiskSpool spool = new DiskSpool(temporaryFolder.getRoot(), 1024L, 1024L * 1024L);
+        RetryPolicy retryPolicy = new RetryPolicy(2, 1L, 1L, TimeUnit.HOURS);
+        BulkSender sender = new BulkSender(client, 2, 1024L * 1024L, 1L, TimeUnit.HOURS, retryPolicy, spool);
+        sender.send(new MetricSet(0L, "localhost"));
+        sender.send(new MetricSet(1L, "localhost"));
+        sender.send(new MetricSet(2L, "localhost"));
+        assertThat(client.bulkSizes.size(), equalTo(1));
+        // Retries don't wait for backoff, each request rejects one document until retries are exhausted
+        sender.close();
+        assertThat(client.bulkSizes, equalTo(Arrays.asList(2, 2, 1, 1)));
+        assertThat(spool.readSegment(spool.getOldestSegmentId()).size(), equalTo(1));
+        spool.close();
+    }
+
+    @Test
+    public void testNotRetryBadRequest() {
+        RejectingClient client = new RejectingClient(400);
+        MetricRegistry registry = new MetricRegistry();
+        BulkSender sender = new BulkSender(client, 2, 1024L * 1024L, 1L, TimeUnit.HOURS, new RetryPolicy(1, 1L, 1L, TimeUnit.SECONDS), null,
+                new ReporterMetrics(registry, "reporter"));
+        sender.send(new MetricSet(0L, "localhost"));
+        sender.send(new MetricSet(1L, "localhost"));
+        sender.close();
+        assertThat(client.bulkSizes.size(), equalTo(1));
+        assertThat(registry.counter("reporter.reports.dropped").getCount(), equalTo(1L));
+    }
+
+    @Test
+    public void testNotRetryRejectedRequest() {
+        FailingClient client = new FailingClient(413);
+        MetricRegistry registry = new MetricRegistry();
+        BulkSender sender = new BulkSender(client, 2, 1024L * 1024L, 1L, TimeUnit.HOURS, new RetryPolicy(1, 1L, 1L, TimeUnit.SECONDS), null,
+                new ReporterMetrics(registry, "reporter"));
+        sender.send(new MetricSet(0L, "localhost"));
+        sender.send(new MetricSet(1L, "localhost"));
+        sender.close();
+        assertThat(client.requestCount, equalTo(1));
+        assertThat(registry.counter("reporter.reports.dropped").getCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testCloseTimeoutSpools() throws IOException {
+        FailingClient client = new FailingClient(503);
+        DiskSpool spool = new DiskSpool(temporaryFolder.getRoot(), 1024L, 1024L * 1024L);
+        RetryPolicy retryPolicy = new RetryPolicy(Integer.MAX_VALUE, 1L, 1L, TimeUnit.HOURS);
+        BulkSender sender = new BulkSender(client, 2, 1024L * 1024L, 1L, TimeUnit.HOURS, retryPolicy, spool);
+        sender.send(new MetricSet(0L, "localhost"));
+        sender.send(new MetricSet(1L, "localhost"));
+        // Cluster is down and retries are never exhausted, close gives up after its timeout
+        sender.close();
+        assertThat(client.requestCount > 1, equalTo(true));
+        assertThat(spool.readSegment(spool.getOldestSegmentId()).size(), equalTo(2));
+        spool.close();
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class ChangeTrackerTest {
+    @Test
+    public void testUpdate() {
+        ChangeTracker changeTracker = new ChangeTracker();
+        assertThat(changeTracker.update("counter", 1L), equalTo(true));
+        assertThat(changeTracker.update("counter", 1L), equalTo(false));
+        assertThat(changeTracker.update("counter", 2L), equalTo(true));
+        assertThat(changeTracker.update("other", 2L), equalTo(true));
+        changeTracker.clear();
+        assertThat(changeTracker.size(), equalTo(0));
+        assertThat(changeTracker.update("counter", 2L), equalTo(true));
+    }
+
+    @Test
+    public void testResize() {
+        ChangeTracker changeTracker = new ChangeTracker();
+        for (int i = 0; i < 10000; i++) {
+            assertThat(changeTracker.update("metric." + i, i), equalTo(true));
+        }
+        assertThat(changeTracker.size(), equalTo(10000));
+        for (int i = 0; i < 10000; i++) {
+            assertThat(changeTracker.update("metric." + i, i), equalTo(false));
+        }
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertThat(ChangeTracker.fingerprint(12), equalTo(12L));
+        assertThat(ChangeTracker.fingerprint(0.5D), not(equalTo(ChangeTracker.fingerprint(0.25D))));
+        assertThat(ChangeTracker.fingerprint(null), equalTo(0L));
+    }
+}
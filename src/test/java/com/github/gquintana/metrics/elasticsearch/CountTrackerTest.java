@@ -0,0 +1,38 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class CountTrackerTest {
+    @Test
+    public void testUpdate() {
+        CountTracker countTracker = new CountTracker();
+        assertThat(countTracker.update("meter", 10L, 1000L, true), equalTo(false));
+        assertThat(countTracker.update("meter", 15L, 3000L, true), equalTo(true));
+        assertThat(countTracker.getDelta(), equalTo(5L));
+        assertThat(countTracker.getIntervalMs(), equalTo(2000L));
+        // Reset
+        assertThat(countTracker.update("meter", 3L, 4000L, true), equalTo(true));
+        assertThat(countTracker.getDelta(), equalTo(3L));
+        // Counters may decrease
+        countTracker.update("counter", 10L, 1000L, false);
+        assertThat(countTracker.update("counter", 7L, 2000L, false), equalTo(true));
+        assertThat(countTracker.getDelta(), equalTo(-3L));
+    }
+
+    @Test
+    public void testExpire() {
+        CountTracker countTracker = new CountTracker();
+        for (int i = 0; i < 1000; i++) {
+            countTracker.update("metric." + i, i, i, true);
+        }
+        assertThat(countTracker.size(), equalTo(1000));
+        countTracker.expire(500L);
+        assertThat(countTracker.size(), equalTo(500));
+        assertThat(countTracker.update("metric.100", 200L, 2000L, true), equalTo(false));
+        assertThat(countTracker.update("metric.600", 700L, 2000L, true), equalTo(true));
+        assertThat(countTracker.getDelta(), equalTo(100L));
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class DateIndexNameResolverTest {
+    private static SimpleDateFormat dateFormat(String pattern, Locale locale) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(pattern, locale);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("Europe/Paris"));
+        return dateFormat;
+    }
+
+    @Test
+    public void testLikeDateFormat() {
+        String[] patterns = {"yyyy.MM.dd", "yyyy.MM", "yyyy", "yyyy.'w'ww", "YYYY.ww", "yyyy.MM.'W'W", "yyyy.MM.dd.HH", "yyyy.MM.dd.HH.mm", "yyyy.DDD"};
+        Locale[] locales = {Locale.US, Locale.FRANCE};
+        Random random = new Random(42L);
+        for (String pattern : patterns) {
+            for (Locale locale : locales) {
+                SimpleDateFormat expectedFormat = dateFormat(pattern, locale);
+                DateIndexNameResolver resolver = new DateIndexNameResolver("metrics-", dateFormat(pattern, locale));
+                long timestamp = 1500000000000L;
+                for (int i = 0; i < 20000; i++) {
+                    // Mostly small steps forward, sometimes back in time
+                    timestamp += random.nextInt(10) == 0 ? -random.nextInt(86400000) : random.nextInt(7200000);
+                    String expected = "metrics-" + expectedFormat.format(new Date(timestamp));
+                    assertThat(pattern + " " + locale + " " + timestamp, resolver.getIndexName(timestamp), equalTo(expected));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCached() {
+        DateIndexNameResolver resolver = new DateIndexNameResolver("metrics-", dateFormat("yyyy.MM.dd", Locale.US));
+        String indexName = resolver.getIndexName(1500000000000L);
+        assertThat(resolver.getIndexName(1500000001000L), sameInstance(indexName));
+    }
+
+    @Test
+    public void testGranularity() {
+        assertThat(DateIndexNameResolver.getGranularity("yyyy.MM.dd"), equalTo(DateIndexNameResolver.getGranularity("'Hms'yyyy.MM.dd")));
+        assertThat(DateIndexNameResolver.getGranularity("YYYY"), equalTo(DateIndexNameResolver.getGranularity("yyyy.ww")));
+        assertThat(DateIndexNameResolver.getGranularity("yyyy.MM.dd.Z"), equalTo(DateIndexNameResolver.getGranularity("yyyy.MM.dd.HH")));
+    }
+
+    @Test
+    public void testHostname() {
+        HostnameIndexNameResolver resolver = new HostnameIndexNameResolver("metrics-", dateFormat("yyyy.MM", Locale.US));
+        assertThat(resolver.getIndexName(new MetricSet(1500000000000L, "Web01")), equalTo("metrics-web01-2017.07"));
+        assertThat(resolver.getIndexName(new MetricSet(1500000000000L, "web02")), equalTo("metrics-web02-2017.07"));
+    }
+}
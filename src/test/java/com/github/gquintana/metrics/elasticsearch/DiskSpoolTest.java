@@ -0,0 +1,87 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class DiskSpoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Document document(int i) {
+        return new Document("metrics-" + i, ("{\"value\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        try (DiskSpool spool = new DiskSpool(folder.getRoot(), 1024L, 1024L * 1024L)) {
+            spool.append(document(1));
+            spool.append(document(2));
+            long segmentId = spool.getOldestSegmentId();
+            List<Document> documents = spool.readSegment(segmentId);
+            assertThat(documents.size(), equalTo(2));
+            assertThat(documents.get(1).getIndex(), equalTo("metrics-2"));
+            assertThat(new String(documents.get(1).getSource(), StandardCharsets.UTF_8), equalTo("{\"value\":2}"));
+            // Following documents go to a new segment
+            spool.append(document(3));
+            spool.deleteSegment(segmentId);
+            assertThat(spool.readSegment(spool.getOldestSegmentId()).get(0).getIndex(), equalTo("metrics-3"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSegmentTooLarge() throws IOException {
+        new DiskSpool(folder.getRoot(), DiskSpool.MAX_SEGMENT_BYTES + 1L, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testEvictOldestSegment() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        try (DiskSpool spool = new DiskSpool(folder.getRoot(), 64L, 128L, new ReporterMetrics(registry, "reporter"))) {
+            for (int i = 0; i < 20; i++) {
+                spool.append(document(i));
+            }
+            assertThat(spool.getSize() <= 128L, equalTo(true));
+            assertThat(spool.getEvictedSegmentCount() > 0L, equalTo(true));
+            assertThat(spool.readSegment(spool.getOldestSegmentId()).get(0).getIndex().equals("metrics-0"), equalTo(false));
+            // Evicted documents are counted as dropped
+            long keptCount = 0L;
+            while (!spool.isEmpty()) {
+                long segmentId = spool.getOldestSegmentId();
+                keptCount += spool.readSegment(segmentId).size();
+                spool.deleteSegment(segmentId);
+            }
+            assertThat(registry.counter("reporter.reports.dropped").getCount(), equalTo(20L - keptCount));
+        }
+    }
+
+    @Test
+    public void testReopenAndTruncated() throws IOException {
+        try (DiskSpool spool = new DiskSpool(folder.getRoot(), 1024L, 1024L * 1024L)) {
+            spool.append(document(1));
+            spool.append(document(2));
+        }
+        File[] files = folder.getRoot().listFiles();
+        assertThat(files.length, equalTo(1));
+        // Simulate a crash during last write
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            file.setLength(file.length() - 3L);
+        }
+        try (DiskSpool spool = new DiskSpool(folder.getRoot(), 1024L, 1024L * 1024L)) {
+            assertThat(spool.isEmpty(), equalTo(false));
+            List<Document> documents = spool.readSegment(spool.getOldestSegmentId());
+            assertThat(documents.size(), equalTo(1));
+            assertThat(documents.get(0).getIndex(), equalTo("metrics-1"));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DownsamplerTest {
+    private static MetricSet sample(long count, double value) {
+        MetricSet metricSet = new MetricSet(0L, "localhost");
+        metricSet.addCounter("requests", count);
+        metricSet.addField("total", count);
+        metricSet.startMetric("heap.used");
+        metricSet.addField("value", value);
+        metricSet.addCountField("gc", count * 2L);
+        return metricSet;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> get(Map<String, Object> metrics, String... path) {
+        Map<String, Object> current = metrics;
+        for (String name : path) {
+            current = (Map<String, Object>) current.get(name);
+        }
+        return current;
+    }
+
+    @Test
+    public void testFlush() {
+        Downsampler downsampler = new Downsampler();
+        downsampler.add(sample(10L, 5D));
+        downsampler.add(sample(12L, 9D));
+        downsampler.add(sample(15L, 1D));
+        MetricSet metricSet = new MetricSet(0L, "localhost");
+        downsampler.flush(metricSet);
+        Map<String, Object> metrics = metricSet.getMetrics();
+        Map<String, Object> heap = get(metrics, "heap", "used");
+        assertThat((Double) heap.get("value"), equalTo(1D));
+        assertThat((Double) heap.get("value_min"), equalTo(1D));
+        assertThat((Double) heap.get("value_max"), equalTo(9D));
+        assertThat((Double) heap.get("value_avg"), equalTo(5D));
+        Map<String, Object> requests = get(metrics, "requests");
+        assertThat((Long) requests.get("count"), equalTo(15L));
+        assertThat((Long) requests.get("count_delta"), equalTo(5L));
+        assertThat(requests.get("count_min"), nullValue());
+        // Only fields added as counts are cumulative
+        assertThat((Double) requests.get("total_min"), equalTo(10D));
+        assertThat(requests.get("total_delta"), nullValue());
+        assertThat((Long) heap.get("gc_delta"), equalTo(10L));
+    }
+
+    @Test
+    public void testCountDeltaAcrossWindows() {
+        Downsampler downsampler = new Downsampler();
+        downsampler.add(sample(10L, 0D));
+        downsampler.flush(new MetricSet(0L, "localhost"));
+        // Delta starts from last count of previous window, a reset counts from 0
+        downsampler.add(sample(14L, 0D));
+        downsampler.add(sample(3L, 0D));
+        MetricSet metricSet = new MetricSet(0L, "localhost");
+        downsampler.flush(metricSet);
+        assertThat((Long) get(metricSet.getMetrics(), "requests").get("count_delta"), equalTo(7L));
+    }
+
+    @Test
+    public void testForgetMissingMetrics() {
+        Downsampler downsampler = new Downsampler();
+        downsampler.add(sample(10L, 0D));
+        downsampler.flush(new MetricSet(0L, "localhost"));
+        assertThat(downsampler.size(), equalTo(2));
+        MetricSet metricSet = new MetricSet(0L, "localhost");
+        downsampler.flush(metricSet);
+        assertThat(metricSet.getMetricCount(), equalTo(0));
+        assertThat(downsampler.size(), equalTo(0));
+    }
+}
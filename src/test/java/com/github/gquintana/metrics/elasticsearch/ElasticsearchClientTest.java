@@ -0,0 +1,350 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ElasticsearchClientTest {
+    private ElasticsearchStub stub;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new ElasticsearchStub();
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    private ElasticsearchClient.Builder clientBuilder() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return ElasticsearchClient.builder()
+                .url(stub.getUrl())
+                .indexPrefix("metrics")
+                .indexDateFormat(dateFormat)
+                .docType("doc");
+    }
+
+    private static MetricSet metricSet(long count) {
+        Counter counter = new Counter();
+        counter.inc(count);
+        MetricSet metricSet = new MetricSet(0L, "localhost");
+        metricSet.addCounter("counter", counter);
+        return metricSet;
+    }
+
+    @Test
+    public void testPostDocument() {
+        try (ElasticsearchClient client = clientBuilder().build()) {
+            client.postDocument(metricSet(12L));
+        }
+        ElasticsearchStub.Request request = stub.getRequests().get(0);
+        assertThat(request.method, equalTo("POST"));
+        assertThat(request.path, equalTo("/metrics-1970.01.01/doc"));
+        assertThat(request.contentEncoding, nullValue());
+        assertThat(request.body, containsString("\"counter\":{\"count\":12}"));
+    }
+
+    @Test
+    public void testPostDocumentCompressed() {
+        try (ElasticsearchClient client = clientBuilder().compression(6, 100).build()) {
+            client.postDocument(metricSet(12L));
+        }
+        ElasticsearchStub.Request request = stub.getRequests().get(0);
+        assertThat(request.contentEncoding, equalTo("gzip"));
+        assertThat(request.body, containsString("\"counter\":{\"count\":12}"));
+    }
+
+    @Test
+    public void testPostDocumentBelowCompressionThreshold() {
+        try (ElasticsearchClient client = clientBuilder().compression(6, 10000).build()) {
+            client.postDocument(metricSet(12L));
+        }
+        assertThat(stub.getRequests().get(0).contentEncoding, nullValue());
+    }
+
+    @Test
+    public void testPostBulk() {
+        stub.respond(200, "{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":429,\"error\":{\"type\":\"rejected\",\"reason\":\"busy\"}}}]}");
+        BulkResult result;
+        try (ElasticsearchClient client = clientBuilder().compression(1, 0).build()) {
+            result = client.postBulk(Arrays.asList(client.encode(metricSet(1L)), client.encode(metricSet(2L))));
+        }
+        assertThat(result.isSuccess(0), equalTo(true));
+        assertThat(result.isRetryable(1), equalTo(true));
+        ElasticsearchStub.Request request = stub.getRequests().get(0);
+        assertThat(request.path, equalTo("/_bulk"));
+        assertThat(request.contentType, containsString("application/x-ndjson"));
+        String[] lines = request.body.split("\n");
+        assertThat(lines.length, equalTo(4));
+        assertThat(lines[0], equalTo("{\"index\":{\"_index\":\"metrics-1970.01.01\",\"_type\":\"doc\"}}"));
+        assertThat(lines[3], containsString("\"counter\":{\"count\":2}"));
+    }
+
+    @Test
+    public void testPostBulkSmile() throws IOException {
+        stub.respond(200, "{\"errors\":false,\"items\":[{\"index\":{\"status\":201}}]}");
+        BulkResult result;
+        try (ElasticsearchClient client = clientBuilder().contentFormat(ContentFormat.SMILE).build()) {
+            result = client.postBulk(Arrays.asList(client.encode(metricSet(3L))));
+        }
+        assertThat(result.isSuccess(0), equalTo(true));
+        ElasticsearchStub.Request request = stub.getRequests().get(0);
+        assertThat(request.contentType, equalTo("application/smile"));
+        // Action and document lines are separated by 0xFF
+        JsonFactory smileFactory = ContentFormat.SMILE.createFactory();
+        byte[] bytes = request.bytes;
+        int separator = indexOf(bytes, 0);
+        assertThat(bytes[bytes.length - 1], equalTo((byte) 0xFF));
+        try (JsonParser parser = smileFactory.createParser(bytes, 0, separator)) {
+            assertThat(parser.nextToken(), equalTo(JsonToken.START_OBJECT));
+            assertThat(parser.nextFieldName(), equalTo("index"));
+        }
+        try (JsonParser parser = smileFactory.createParser(bytes, separator + 1, bytes.length - separator - 2)) {
+            assertThat(findLong(parser, "count"), equalTo(3L));
+        }
+    }
+
+    @Test
+    public void testSendCbor() throws IOException {
+        try (ElasticsearchClient client = clientBuilder().contentFormat(ContentFormat.CBOR).documentLayout(DocumentLayout.METRIC).build()) {
+            client.send(metricSet(4L));
+        }
+        // No bulk API, one request per document
+        assertThat(stub.getRequests().size(), equalTo(1));
+        ElasticsearchStub.Request request = stub.getRequests().get(0);
+        assertThat(request.path, equalTo("/metrics-1970.01.01/doc"));
+        assertThat(request.contentType, equalTo("application/cbor"));
+        try (JsonParser parser = ContentFormat.CBOR.createFactory().createParser(request.bytes)) {
+            assertThat(findLong(parser, "count"), equalTo(4L));
+        }
+    }
+
+    private static int indexOf(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == (byte) 0xFF) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long findLong(JsonParser parser, String fieldName) throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            if (token == JsonToken.FIELD_NAME && parser.getCurrentName().equals(fieldName)) {
+                parser.nextToken();
+                return parser.getLongValue();
+            }
+        }
+        return -1L;
+    }
+
+    @Test(expected = ElasticsearchException.class)
+    public void testPostDocumentFailed() {
+        stub.respond(400, "{\"error\":\"bad request\"}");
+        try (ElasticsearchClient client = clientBuilder().build()) {
+            client.postDocument(metricSet(12L));
+        }
+    }
+
+    @Test
+    public void testPostDocumentRetried() {
+        stub.respond(503, "{\"error\":\"unavailable\"}");
+        stub.respond(429, "{\"error\":\"busy\"}");
+        try (ElasticsearchClient client = clientBuilder().retry(2, 1L, 10L, TimeUnit.MILLISECONDS).build()) {
+            client.postDocument(metricSet(12L));
+        }
+        assertThat(stub.getRequests().size(), equalTo(3));
+    }
+
+    @Test
+    public void testPostDocumentRetriesExhausted() {
+        stub.respond(503, "{\"error\":\"unavailable\"}");
+        stub.respond(503, "{\"error\":\"unavailable\"}");
+        try (ElasticsearchClient client = clientBuilder().retry(1, 1L, 10L, TimeUnit.MILLISECONDS).build()) {
+            client.postDocument(metricSet(12L));
+            fail("Exception expected");
+        } catch (ElasticsearchException e) {
+            assertThat(e.getMessage(), containsString("503"));
+        }
+        assertThat(stub.getRequests().size(), equalTo(2));
+    }
+
+    @Test
+    public void testCircuitBreaker() throws InterruptedException {
+        stub.respond(503, "{\"error\":\"unavailable\"}");
+        stub.respond(503, "{\"error\":\"unavailable\"}");
+        try (ElasticsearchClient client = clientBuilder().circuitBreaker(2, 50L, TimeUnit.MILLISECONDS).build()) {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    client.postDocument(metricSet(i));
+                    fail("Exception expected");
+                } catch (ElasticsearchException e) {
+                    // Expected
+                }
+            }
+            // Third request failed fast
+            assertThat(stub.getRequests().size(), equalTo(2));
+            assertThat(client.getCircuitBreaker().getState(), equalTo(CircuitBreaker.State.OPEN));
+            Thread.sleep(60L);
+            // Probe succeeds
+            client.postDocument(metricSet(4L));
+            assertThat(client.getCircuitBreaker().getState(), equalTo(CircuitBreaker.State.CLOSED));
+        }
+        assertThat(stub.getRequests().size(), equalTo(3));
+    }
+
+    private static String unusedUrl() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return "http://localhost:" + serverSocket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testFailover() throws IOException {
+        String deadUrl = unusedUrl();
+        try (ElasticsearchStub stub2 = new ElasticsearchStub();
+             ElasticsearchClient client = clientBuilder().urls(deadUrl, stub.getUrl(), stub2.getUrl()).build()) {
+            for (int i = 0; i < 4; i++) {
+                client.postDocument(metricSet(i));
+            }
+            assertThat(stub.getRequests().size(), equalTo(2));
+            assertThat(stub2.getRequests().size(), equalTo(2));
+            assertThat(client.getNodePool().getDeadCount(), equalTo(1));
+        }
+    }
+
+    @Test
+    public void testFailoverUnavailable() throws IOException {
+        stub.respond(503, "{\"error\":\"unavailable\"}");
+        try (ElasticsearchStub stub2 = new ElasticsearchStub();
+             ElasticsearchClient client = clientBuilder().urls(stub.getUrl(), stub2.getUrl()).build()) {
+            client.postDocument(metricSet(1L));
+            assertThat(stub.getRequests().size(), equalTo(1));
+            assertThat(stub2.getRequests().size(), equalTo(1));
+        }
+    }
+
+    @Test
+    public void testSniffNodes() throws IOException {
+        try (ElasticsearchStub stub2 = new ElasticsearchStub();
+             ElasticsearchClient client = clientBuilder().build()) {
+            String address = stub2.getUrl().substring("http://".length());
+            stub.respond(200, "{\"_nodes\":{\"total\":1},\"cluster_name\":\"test\",\"nodes\":{\"abc\":{\"name\":\"node1\","
+                    + "\"roles\":[\"data\"],\"http\":{\"bound_address\":[\"0.0.0.0:9200\"],\"publish_address\":\"" + address + "\"}}}}");
+            client.sniffNodes();
+            client.postDocument(metricSet(1L));
+            assertThat(stub.getRequests().get(0).method, equalTo("GET"));
+            assertThat(stub.getRequests().get(0).path, equalTo("/_nodes/http"));
+            assertThat(stub.getRequests().size(), equalTo(1));
+            assertThat(stub2.getRequests().size(), equalTo(1));
+        }
+    }
+
+    @Test
+    public void testParseNodes() throws IOException {
+        String response = "{\"nodes\":{\"a\":{\"http\":{\"publish_address\":\"10.0.0.1:9200\"}},"
+                + "\"b\":{\"http\":{\"publish_address\":\"es2.local/10.0.0.2:9201\"}},\"c\":{\"roles\":[\"master\"]}}}";
+        try (JsonParser parser = new JsonFactory().createParser(response)) {
+            assertThat(ElasticsearchClient.parseNodes(parser, "https"), equalTo(Arrays.asList("https://10.0.0.1:9200/", "https://es2.local:9201/")));
+        }
+    }
+
+    private static MetricSet metricSet(int metricCount) {
+        MetricSet metricSet = new MetricSet(0L, "localhost");
+        for (int i = 0; i < metricCount; i++) {
+            Counter counter = new Counter();
+            counter.inc(i);
+            metricSet.addCounter("group" + (i % 3) + ".counter" + i, counter);
+        }
+        return metricSet;
+    }
+
+    @Test
+    public void testSendDocumentPerMetric() {
+        stub.respond(200, "{\"errors\":false,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":201}},{\"index\":{\"status\":201}}]}");
+        try (ElasticsearchClient client = clientBuilder().documentLayout(DocumentLayout.METRIC).build()) {
+            client.send(metricSet(3));
+        }
+        ElasticsearchStub.Request request = stub.getRequests().get(0);
+        assertThat(request.path, equalTo("/_bulk"));
+        String[] lines = request.body.split("\n");
+        assertThat(lines.length, equalTo(6));
+        assertThat(lines[3], containsString("\"dropwizard\":{\"name\":\"group1.counter1\",\"count\":1}"));
+    }
+
+    @Test
+    public void testSendDocumentPerMetricRetried() {
+        stub.respond(200, "{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":429}},{\"index\":{\"status\":400}}]}");
+        stub.respond(200, "{\"errors\":false,\"items\":[{\"index\":{\"status\":201}}]}");
+        MetricRegistry registry = new MetricRegistry();
+        try (ElasticsearchClient client = clientBuilder().documentLayout(DocumentLayout.METRIC).retry(1, 1L, 10L, TimeUnit.MILLISECONDS)
+                .metrics(new ReporterMetrics(registry, "reporter")).build()) {
+            client.send(metricSet(3));
+        }
+        assertThat(stub.getRequests().size(), equalTo(2));
+        // Only the rejected document is sent again, the bad one is dropped
+        assertThat(stub.getRequests().get(1).body.split("\n").length, equalTo(2));
+        assertThat(registry.counter("reporter.reports.dropped").getCount(), equalTo(1L));
+    }
+
+    @Test
+    public void testSendDocumentPerMetricRetriesExhausted() {
+        stub.respond(200, "{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":429}},{\"index\":{\"status\":201}}]}");
+        try (ElasticsearchClient client = clientBuilder().documentLayout(DocumentLayout.METRIC).build()) {
+            client.send(metricSet(3));
+            fail("Exception expected");
+        } catch (BulkRejectionException e) {
+            assertThat(e.getStatusCode(), equalTo(429));
+            assertThat(e.getDocuments().size(), equalTo(1));
+        }
+        assertThat(stub.getRequests().size(), equalTo(1));
+    }
+
+    @Test
+    public void testEncodeDocumentsPerPrefix() {
+        try (ElasticsearchClient client = clientBuilder().documentLayout(DocumentLayout.PREFIX).build()) {
+            List<Document> documents = client.encodeDocuments(metricSet(30));
+            assertThat(documents.size(), equalTo(3));
+        }
+    }
+
+    @Test
+    public void testEncodeDocumentsMaxSize() {
+        try (ElasticsearchClient client = clientBuilder().maxDocumentSize(1000).build()) {
+            MetricSet metricSet = metricSet(200);
+            int fullSize = client.encode(metricSet).getSize();
+            List<Document> documents = client.encodeDocuments(metricSet);
+            assertThat(documents.size() >= fullSize / 1000, equalTo(true));
+            int metricCount = 0;
+            for (Document document : documents) {
+                assertThat(document.getSize() <= 1000, equalTo(true));
+                metricCount += new String(document.getSource(), StandardCharsets.UTF_8).split("\"count\"").length - 1;
+            }
+            assertThat(metricCount, equalTo(200));
+        }
+    }
+}
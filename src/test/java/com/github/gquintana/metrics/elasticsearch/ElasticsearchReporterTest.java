@@ -0,0 +1,344 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class ElasticsearchReporterTest {
+    private ElasticsearchStub stub;
+    private final MetricRegistry registry = new MetricRegistry();
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new ElasticsearchStub();
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    @Test
+    public void testChangedOnly() throws IOException {
+        Counter counter = registry.counter("counter");
+        Timer timer = registry.timer("timer");
+        final int[] gaugeValue = {1};
+        registry.register("gauge", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return gaugeValue[0];
+            }
+        });
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .changedOnly(1L, TimeUnit.HOURS)
+                .build();
+        // Full snapshot
+        reporter.report();
+        assertThat(stub.getRequests().size(), equalTo(1));
+        assertThat(stub.getRequests().get(0).body, containsString("\"timer\""));
+        // Nothing changed
+        reporter.report();
+        assertThat(stub.getRequests().size(), equalTo(1));
+        // Counter and gauge changed
+        counter.inc();
+        gaugeValue[0] = 2;
+        reporter.report();
+        assertThat(stub.getRequests().size(), equalTo(2));
+        String body = stub.getRequests().get(1).body;
+        assertThat(body, containsString("\"counter\":{\"count\":1}"));
+        assertThat(body, containsString("\"gauge\":{\"value\":2}"));
+        assertThat(body, not(containsString("\"timer\"")));
+        reporter.stop();
+    }
+
+    @Test
+    public void testIndexTemplate() throws IOException {
+        registry.counter("counter");
+        IndexTemplate indexTemplate = IndexTemplate.builder("metrics")
+                .rollover("metrics", "10gb", 1L, TimeUnit.DAYS)
+                .deleteAfter(30L, TimeUnit.DAYS)
+                .build();
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .indexTemplate(indexTemplate)
+                .build();
+        stub.respond(200, "{\"acknowledged\":true}")
+                .respond(200, "{\"acknowledged\":true}")
+                .respond(404, "{}");
+        reporter.report();
+        reporter.report();
+        assertThat(stub.getRequests().size(), equalTo(6));
+        assertThat(stub.getRequests().get(0).method, equalTo("PUT"));
+        assertThat(stub.getRequests().get(0).path, equalTo("/_ilm/policy/metrics"));
+        assertThat(stub.getRequests().get(0).body, containsString("\"max_size\":\"10gb\""));
+        assertThat(stub.getRequests().get(1).method, equalTo("PUT"));
+        assertThat(stub.getRequests().get(1).path, equalTo("/_index_template/metrics"));
+        assertThat(stub.getRequests().get(1).body, containsString("\"index.lifecycle.rollover_alias\":\"metrics\""));
+        assertThat(stub.getRequests().get(2).path, equalTo("/_alias/metrics"));
+        assertThat(stub.getRequests().get(3).method, equalTo("PUT"));
+        assertThat(stub.getRequests().get(3).path, equalTo("/metrics-000001"));
+        assertThat(stub.getRequests().get(3).body, containsString("\"is_write_index\":true"));
+        // Metrics written in alias, template installed once
+        assertThat(stub.getRequests().get(4).path, equalTo("/metrics"));
+        assertThat(stub.getRequests().get(5).path, equalTo("/metrics"));
+        reporter.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTierTickTooSmall() throws IOException {
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .tier(MetricFilter.ALL, 1001L, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            reporter.start(1L, TimeUnit.MINUTES);
+        } finally {
+            reporter.stop();
+        }
+    }
+
+    @Test
+    public void testIndexTemplateRejected() throws IOException {
+        registry.counter("counter");
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .indexPrefix("metrics")
+                .indexTemplate(IndexTemplate.builder("metrics").build())
+                .build();
+        stub.respond(400, "{}");
+        reporter.report();
+        reporter.report();
+        // Template not installed again
+        assertThat(stub.getRequests().size(), equalTo(3));
+        assertThat(stub.getRequests().get(0).path, equalTo("/_index_template/metrics"));
+        assertThat(stub.getRequests().get(0).body, containsString("\"index_patterns\":[\"metrics-*\"]"));
+        assertThat(stub.getRequests().get(1).method, equalTo("POST"));
+        reporter.stop();
+    }
+
+    @Test
+    public void testSamplingExportPattern() throws IOException {
+        registry.timer("http.get").update(1L, TimeUnit.MILLISECONDS);
+        registry.timer("db.query").update(1L, TimeUnit.MILLISECONDS);
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .samplingExport("http\\..*", SamplingExport.builder().percentiles(0.999D).build())
+                .build();
+        reporter.report();
+        String body = stub.getRequests().get(0).body;
+        assertThat(body, containsString("\"get\":{\"percentile99_9\":"));
+        assertThat(body, containsString("\"query\":{\"min\":"));
+        reporter.stop();
+    }
+
+    @Test
+    public void testTiers() throws IOException {
+        registry.counter("jvm.threads");
+        registry.counter("http.requests");
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .tier(new MetricFilter() {
+                    @Override
+                    public boolean matches(String name, Metric metric) {
+                        return name.startsWith("jvm.");
+                    }
+                }, 1L, TimeUnit.HOURS)
+                .build();
+        // All tiers due on first report
+        reporter.report();
+        assertThat(stub.getRequests().get(0).body, containsString("\"jvm\""));
+        assertThat(stub.getRequests().get(0).body, containsString("\"http\""));
+        // JVM tier not due anymore
+        reporter.report();
+        assertThat(stub.getRequests().size(), equalTo(2));
+        assertThat(stub.getRequests().get(1).body, not(containsString("\"jvm\"")));
+        assertThat(stub.getRequests().get(1).body, containsString("\"http\""));
+        reporter.stop();
+    }
+
+    @Test
+    public void testCountDeltas() throws Exception {
+        Counter counter = registry.counter("counter");
+        counter.inc();
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .countDeltas()
+                .build();
+        // No delta on first report
+        reporter.report();
+        assertThat(stub.getRequests().get(0).body, containsString("\"counter\":{\"count\":1}"));
+        counter.inc(2L);
+        Thread.sleep(10L);
+        reporter.report();
+        assertThat(stub.getRequests().get(1).body, containsString("\"counter\":{\"count\":3,\"count_delta\":2,\"rate\":"));
+        reporter.stop();
+    }
+
+    @Test
+    public void testDownsample() throws IOException {
+        registry.counter("counter");
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .downsample(1L, TimeUnit.HOURS)
+                .build();
+        // Samples are kept until the window is over
+        reporter.report();
+        reporter.report();
+        assertThat(stub.getRequests().size(), equalTo(0));
+        reporter.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDownsampleChangedOnly() throws IOException {
+        ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .downsample(1L, TimeUnit.MINUTES)
+                .changedOnly(1L, TimeUnit.HOURS)
+                .build();
+    }
+
+    @Test
+    public void testSelfMetrics() throws IOException {
+        registry.counter("counter");
+        MetricRegistry selfRegistry = new MetricRegistry();
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .selfMetrics(selfRegistry, "reporter")
+                .retry(0, 1L, 1L, TimeUnit.MILLISECONDS)
+                .build();
+        reporter.report();
+        stub.respond(400, "{}");
+        reporter.report();
+        assertThat(selfRegistry.timer("reporter.report").getCount(), equalTo(2L));
+        assertThat(selfRegistry.timer("reporter.snapshot").getCount(), equalTo(2L));
+        assertThat(selfRegistry.timer("reporter.serialize").getCount(), equalTo(2L));
+        assertThat(selfRegistry.timer("reporter.send").getCount(), equalTo(2L));
+        assertThat(selfRegistry.histogram("reporter.metric-count").getSnapshot().getMax(), equalTo(1L));
+        assertThat(selfRegistry.histogram("reporter.payload-bytes").getSnapshot().getMin() > 0L, equalTo(true));
+        assertThat(selfRegistry.counter("reporter.http.2xx").getCount(), equalTo(1L));
+        assertThat(selfRegistry.counter("reporter.http.4xx").getCount(), equalTo(1L));
+        assertThat(selfRegistry.counter("reporter.reports.dropped").getCount(), equalTo(1L));
+        reporter.stop();
+    }
+
+    @Test
+    public void testSelfMetricsRebuilt() throws IOException {
+        MetricRegistry selfRegistry = new MetricRegistry();
+        for (int i = 0; i < 2; i++) {
+            ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                    .url(stub.getUrl())
+                    .async(10, OverflowPolicy.DROP_NEWEST)
+                    .selfMetrics(selfRegistry, "reporter")
+                    .build();
+            reporter.stop();
+        }
+        assertThat(selfRegistry.getGauges().get("reporter.async.queue-size").getValue(), equalTo((Object) 0));
+    }
+
+    @Test
+    public void testGaugeEvaluation() throws Exception {
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final int[] calls = {0};
+        registry.register("slow", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                if (++calls[0] > 1) {
+                    try {
+                        unblock.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return calls[0];
+            }
+        });
+        registry.register("fast", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 7;
+            }
+        });
+        registry.register("failing", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                throw new IllegalStateException("Failing gauge");
+            }
+        });
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .gaugeEvaluation(2, 100L, TimeUnit.MILLISECONDS)
+                .build();
+        reporter.report();
+        assertThat(stub.getRequests().get(0).body, containsString("\"slow\":{\"value\":1}"));
+        assertThat(stub.getRequests().get(0).body, not(containsString("\"failing\"")));
+        Thread.sleep(5L);
+        // Slow gauge times out, its last value is reused
+        reporter.report();
+        String body = stub.getRequests().get(1).body;
+        assertThat(body, containsString("\"fast\":{\"value\":7}"));
+        assertThat(body, containsString("\"slow\":{\"value\":1,\"age\":"));
+        unblock.countDown();
+        assertThat(reporter.getGaugeEvaluator().getEvaluationTimes(TimeUnit.MILLISECONDS).keySet().size(), equalTo(3));
+        reporter.stop();
+    }
+
+    @Test
+    public void testChangedOnlyFullSnapshot() throws IOException {
+        registry.counter("counter");
+        ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .changedOnly(0L, TimeUnit.HOURS)
+                .build();
+        reporter.report();
+        reporter.report();
+        assertThat(stub.getRequests().size(), equalTo(2));
+        assertThat(stub.getRequests().get(1).body, containsString("\"counter\":{\"count\":0}"));
+        reporter.stop();
+    }
+
+    @Test
+    public void testParallelSnapshot() throws IOException {
+        for (int i = 0; i < 500; i++) {
+            String prefix = "group" + (i % 7) + (i % 3 == 0 ? "" : ".sub" + (i % 5));
+            registry.counter(prefix + ".counter" + i).inc(i);
+            registry.histogram(prefix + ".histogram" + i).update(i);
+            registry.timer(prefix + ".timer" + i).update(i, TimeUnit.MILLISECONDS);
+        }
+        registry.counter("group1").inc();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ElasticsearchReporter sequentialReporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .build();
+        ElasticsearchReporter parallelReporter = ElasticsearchReporter.forRegistry(registry)
+                .url(stub.getUrl())
+                .parallelSnapshot(pool, 10)
+                .build();
+        sequentialReporter.report();
+        parallelReporter.report();
+        sequentialReporter.stop();
+        parallelReporter.stop();
+        pool.shutdown();
+        // Timestamp and mean rates depend on report time
+        String timeDependent = "\"(@timestamp|ratemean)\":[0-9.E-]+";
+        String sequentialBody = stub.getRequests().get(0).body.replaceAll(timeDependent, "");
+        String parallelBody = stub.getRequests().get(1).body.replaceAll(timeDependent, "");
+        assertThat(parallelBody, equalTo(sequentialBody));
+    }
+}
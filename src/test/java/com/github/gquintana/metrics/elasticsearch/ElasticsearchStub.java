@@ -0,0 +1,111 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fake Elasticsearch node recording requests and sending canned responses
+ */
+public class ElasticsearchStub implements AutoCloseable {
+    private final HttpServer server;
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+    private final Queue<Response> responses = new ConcurrentLinkedQueue<>();
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final String contentType;
+        public final String contentEncoding;
+        public final String body;
+        /**
+         * Uncompressed body, for binary content formats
+         */
+        public final byte[] bytes;
+
+        private Request(String method, String path, String contentType, String contentEncoding, byte[] bytes) {
+            this.method = method;
+            this.path = path;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = new String(bytes, StandardCharsets.UTF_8);
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Response {
+        private final int status;
+        private final String body;
+
+        private Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    public ElasticsearchStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleExchange(exchange);
+            }
+        });
+        server.start();
+    }
+
+    private void handleExchange(HttpExchange exchange) throws IOException {
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        byte[] body = UrlConnectionTransport.readFully(exchange.getRequestBody());
+        if ("gzip".equals(contentEncoding)) {
+            try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                body = UrlConnectionTransport.readFully(input);
+            }
+        }
+        requests.add(new Request(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                exchange.getRequestHeaders().getFirst("Content-Type"), contentEncoding, body));
+        Response response = responses.poll();
+        if (response == null) {
+            response = new Response(201, "{\"result\":\"created\"}");
+        }
+        byte[] responseBody = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(response.status, responseBody.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(responseBody);
+        }
+    }
+
+    /**
+     * Queue a response for a future request, default response is 201 Created
+     */
+    public ElasticsearchStub respond(int status, String body) {
+        responses.add(new Response(status, body));
+        return this;
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public List<Request> getRequests() {
+        return requests;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class IndexTemplateTest {
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private String writeTemplate(IndexTemplate indexTemplate) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator json = jsonFactory.createGenerator(writer)) {
+            indexTemplate.writeTemplate(json, "metricbeat-dropwizard-*");
+        }
+        return writer.toString();
+    }
+
+    @Test
+    public void testWriteTemplate() throws IOException {
+        String template = writeTemplate(IndexTemplate.builder("metrics").shards(1).replicas(0).build());
+        assertThat(template, containsString("\"index_patterns\":[\"metricbeat-dropwizard-*\"]"));
+        assertThat(template, containsString("\"index.number_of_shards\":1,\"index.number_of_replicas\":0"));
+        assertThat(template, containsString("\"match\":\"^count(_delta)?$\",\"match_mapping_type\":\"long\",\"mapping\":{\"type\":\"long\"}"));
+        assertThat(template, containsString("\"match_mapping_type\":\"double\",\"mapping\":{\"type\":\"double\"}"));
+        assertThat(template, containsString("\"dropwizard_histogram\":{\"path_match\":\"dropwizard.*.value_histogram\",\"match\":\"value_histogram\","
+                + "\"match_mapping_type\":\"object\",\"mapping\":{\"type\":\"histogram\"}}"));
+        assertThat(template, not(containsString("_source")));
+        assertThat(template, not(containsString("lifecycle")));
+    }
+
+    @Test
+    public void testWriteTemplateScaledFloat() throws IOException {
+        String template = writeTemplate(IndexTemplate.builder("metrics")
+                .indexPatterns("metrics-*", "other-*")
+                .scaledFloat(100D)
+                .sourceEnabled(false)
+                .deleteAfter(7L, TimeUnit.DAYS)
+                .build());
+        assertThat(template, containsString("\"index_patterns\":[\"metrics-*\",\"other-*\"]"));
+        assertThat(template, containsString("{\"type\":\"scaled_float\",\"scaling_factor\":100.0}"));
+        assertThat(template, containsString("\"_source\":{\"enabled\":false}"));
+        assertThat(template, containsString("\"index.lifecycle.name\":\"metrics\""));
+        assertThat(template, not(containsString("rollover_alias")));
+    }
+
+    @Test
+    public void testDoubleFields() {
+        String[] doubleFields = {"min", "max", "mean", "stddev", "median", "percentile75", "percentile99_9", "rate", "rate1m", "ratemean", "value",
+                "value_min", "percentile99_max", "mean_avg"};
+        for (String field : doubleFields) {
+            assertThat(field, field.matches(IndexTemplate.DOUBLE_FIELDS), equalTo(true));
+        }
+        assertThat("count".matches(IndexTemplate.DOUBLE_FIELDS), equalTo(false));
+        assertThat("minimum".matches(IndexTemplate.DOUBLE_FIELDS), equalTo(false));
+        assertThat("count_delta".matches(IndexTemplate.DOUBLE_FIELDS), equalTo(false));
+        assertThat("count_delta".matches(IndexTemplate.LONG_FIELDS), equalTo(true));
+    }
+}
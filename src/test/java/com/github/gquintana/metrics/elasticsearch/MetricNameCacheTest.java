@@ -0,0 +1,67 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.fasterxml.jackson.core.SerializableString;
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class MetricNameCacheTest {
+    private static final Pattern REPLACED_CHARS = Pattern.compile("[^\\w.]+");
+
+    /**
+     * Former regex based implementation
+     */
+    private static String[] regexNormalizePath(String name) {
+        String[] path = name.split("\\.");
+        for (int i = 0; i < path.length; i++) {
+            path[i] = REPLACED_CHARS.matcher(path[i]).replaceAll("_").toLowerCase();
+        }
+        return path;
+    }
+
+    @Test
+    public void testNormalizePathLikeRegex() {
+        String[] names = {"jvm.memory.heap", "JVM.Memory.Heap-Used", "http.requests{method=GET, status=200}",
+                "a..b", ".a", "a.b.", "a.b..", "", "com.example.Service$Inner.call()", "été.über--count",
+                "pools.PS-Eden-Space.usage", "thread_count", "x.😀y"};
+        for (String name : names) {
+            assertArrayEquals(name, regexNormalizePath(name), MetricNameCache.normalizePath(name));
+        }
+    }
+
+    @Test
+    public void testCache() {
+        MetricNameCache cache = new MetricNameCache(2);
+        String[] path = cache.getPath("jvm.threads.count");
+        assertArrayEquals(new String[]{"jvm", "threads", "count"}, path);
+        assertThat(cache.getPath("jvm.threads.count"), sameInstance(path));
+        cache.getPath("b");
+        cache.getPath("jvm.threads.count");
+        // Evicts "b", least recently used
+        cache.getPath("c");
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.getPath("jvm.threads.count"), sameInstance(path));
+        String[] bPath = cache.getPath("b");
+        assertThat(cache.getPath("c"), not(sameInstance(bPath)));
+    }
+
+    @Test
+    public void testSerializedPath() {
+        MetricNameCache cache = new MetricNameCache(10);
+        SerializableString[] path = cache.getSerializedPath("JVM.Threads.count");
+        assertThat(path.length, equalTo(3));
+        assertThat(path[0].getValue(), equalTo("jvm"));
+        assertThat(path[2].getValue(), equalTo("count"));
+        assertThat(cache.getSerializedPath("JVM.Threads.count"), sameInstance(path));
+        // Parts are shared
+        SerializableString[] otherPath = cache.getSerializedPath("jvm.memory");
+        assertThat(otherPath[0], sameInstance(path[0]));
+        assertThat(cache.getPath("jvm.memory")[0], sameInstance(path[0].getValue()));
+    }
+}
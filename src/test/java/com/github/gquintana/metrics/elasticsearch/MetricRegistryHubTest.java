@@ -0,0 +1,122 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SortedMap;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class MetricRegistryHubTest {
+    @Test
+    public void testAttach() {
+        MetricRegistryHub hub = new MetricRegistryHub();
+        hub.counter("hub.count");
+        MetricRegistry registry1 = new MetricRegistry();
+        Counter requests = registry1.counter("requests");
+        registry1.meter("ignored");
+        MetricRegistry registry2 = new MetricRegistry();
+        registry2.counter("requests");
+        registry2.counter("private.requests");
+        hub.attach("tenant1", registry1);
+        hub.attach("tenant2", registry2, new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return !name.startsWith("private.");
+            }
+        });
+        SortedMap<String, Counter> counters = hub.getCounters();
+        assertThat(new ArrayList<>(counters.keySet()), equalTo(Arrays.asList("hub.count", "tenant1.requests", "tenant2.requests")));
+        assertThat(counters.get("tenant1.requests"), sameInstance(requests));
+        assertThat(hub.getMeters().size(), equalTo(1));
+        // Reporter filter sees prefixed names
+        assertThat(hub.getCounters(new MetricFilter() {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return name.startsWith("tenant2.");
+            }
+        }).keySet().size(), equalTo(1));
+        assertThat(hub.detach("tenant1"), equalTo(true));
+        assertThat(hub.detach("tenant1"), equalTo(false));
+        assertThat(hub.getCounters().size(), equalTo(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAttachSamePrefix() {
+        MetricRegistryHub hub = new MetricRegistryHub();
+        hub.attach("tenant", new MetricRegistry());
+        hub.attach("tenant", new MetricRegistry());
+    }
+
+    @Test
+    public void testAttachDottedPrefix() {
+        MetricRegistryHub hub = new MetricRegistryHub();
+        hub.attach("tenant", new MetricRegistry());
+        hub.attach("tenant1", new MetricRegistry());
+        for (String prefix : Arrays.asList("tenant.admin", "tenant1.admin")) {
+            try {
+                hub.attach(prefix, new MetricRegistry());
+                fail("Clashing prefix " + prefix);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        hub.detach("tenant");
+        hub.detach("tenant1");
+        hub.attach("tenant.admin", new MetricRegistry());
+        try {
+            hub.attach("tenant", new MetricRegistry());
+            fail("Clashing prefix tenant");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertThat(hub.getAttachedCount(), equalTo(1));
+    }
+
+    @Test
+    public void testHubMetricWins() {
+        MetricRegistryHub hub = new MetricRegistryHub();
+        Counter hubRequests = hub.counter("tenant1.requests");
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("requests");
+        registry.counter("errors");
+        hub.attach("tenant1", registry);
+        SortedMap<String, Counter> counters = hub.getCounters();
+        assertThat(new ArrayList<>(counters.keySet()), equalTo(Arrays.asList("tenant1.errors", "tenant1.requests")));
+        assertThat(counters.get("tenant1.requests"), sameInstance(hubRequests));
+    }
+
+    @Test
+    public void testReport() throws IOException {
+        ElasticsearchStub stub = new ElasticsearchStub();
+        try {
+            MetricRegistryHub hub = new MetricRegistryHub();
+            ElasticsearchReporter reporter = ElasticsearchReporter.forRegistry(hub)
+                    .url(stub.getUrl())
+                    .build();
+            for (int i = 0; i < 3; i++) {
+                MetricRegistry registry = new MetricRegistry();
+                registry.counter("requests").inc(i);
+                hub.attach("tenant" + i, registry);
+            }
+            reporter.report();
+            assertThat(stub.getRequests().size(), equalTo(1));
+            String body = stub.getRequests().get(0).body;
+            assertThat(body, containsString("\"tenant0\":{\"requests\":{\"count\":0}}"));
+            assertThat(body, containsString("\"tenant2\":{\"requests\":{\"count\":2}}"));
+            reporter.stop();
+        } finally {
+            stub.close();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import com.codahale.metrics.UniformReservoir;
 import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -17,10 +18,16 @@ import org.junit.rules.TemporaryFolder;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertThat;
 
@@ -143,6 +150,69 @@ public class MetricSetTest {
         writeJson(metricSet, "histogram.json");
     }
 
+    @Test
+    public void testHistogramSamplingExport() throws IOException {
+        Histogram histogram = new Histogram(new UniformReservoir());
+        for (int i = 1; i <= 1000; i++) {
+            histogram.update(i);
+        }
+        SamplingExport samplingExport = SamplingExport.builder()
+                .statistics(SamplingExport.Statistic.MAX)
+                .percentiles(0.999D)
+                .histogram(1)
+                .build();
+        MetricSet metricSet = new MetricSet(System.currentTimeMillis(), "localhost");
+        metricSet.addHistogram("histogram", histogram, samplingExport);
+        Map<String, Object> metric = (Map<String, Object>) metricSet.getMetrics().get("histogram");
+        assertThat(metric.keySet(), equalTo((Set<String>) new HashSet<>(Arrays.asList("count", "max", "percentile99_9", "value_histogram"))));
+        assertThat(Math.floor((Double) metric.get("percentile99_9")), equalTo(999D));
+        // 1 significant digit: 1..9, 10..90, 100..900, 1000
+        Map<String, Object> valueHistogram = (Map<String, Object>) metric.get("value_histogram");
+        double[] values = (double[]) valueHistogram.get("values");
+        long[] counts = (long[]) valueHistogram.get("counts");
+        assertThat(values.length, equalTo(28));
+        assertThat(values[0], equalTo(1D));
+        assertThat(values[9], equalTo(10D));
+        assertThat(counts[9], equalTo(5L));
+        assertThat(values[27], equalTo(1000D));
+        long total = 0L;
+        for (long count : counts) {
+            total += count;
+        }
+        assertThat(total, equalTo(1000L));
+        writeJson(metricSet, "histogram-export.json");
+    }
+
+    @Test
+    public void testHistogramSamplingExportWeighted() {
+        Histogram histogram = new MetricRegistry().histogram("histogram");
+        histogram.update(1);
+        SamplingExport samplingExport = SamplingExport.builder().histogram(1).build();
+        MetricSet metricSet = new MetricSet(System.currentTimeMillis(), "localhost");
+        metricSet.addHistogram("histogram", histogram, samplingExport);
+        Map<String, Object> metric = (Map<String, Object>) metricSet.getMetrics().get("histogram");
+        assertThat(metric.containsKey("value_histogram"), equalTo(false));
+    }
+
+    @Test
+    public void testHistogramNames() throws IOException {
+        Histogram histogram = new Histogram(new UniformReservoir());
+        histogram.update(1);
+        MetricSet metricSet = counters("cache.histogram.hits", "cache.value_histogram");
+        metricSet.addHistogram("cache.histogram", histogram, SamplingExport.builder().statistics().histogram(1).build());
+        // Metric named like the value histogram field is dropped, otherwise it would be mapped as a histogram
+        assertThat(write(metricSet), containsString("\"dropwizard\":{\"cache\":{\"histogram\":{\"count\":1,\"value_histogram\":{\"values\":[1.0],\"counts\":[1]},"
+                + "\"hits\":{\"count\":0}}}}"));
+    }
+
+    @Test
+    public void testQuantileFieldName() {
+        assertThat(SamplingExport.getQuantileFieldName(0.5D), equalTo("percentile50"));
+        assertThat(SamplingExport.getQuantileFieldName(0.99D), equalTo("percentile99"));
+        assertThat(SamplingExport.getQuantileFieldName(0.999D), equalTo("percentile99_9"));
+        assertThat(SamplingExport.getQuantileFieldName(0.9999D), equalTo("percentile99_99"));
+    }
+
     @Test
     public void testTimer() throws IOException {
         MetricRegistry registry = new MetricRegistry();
@@ -159,6 +229,109 @@ public class MetricSetTest {
         writeJson(metricSet, "timer.json");
     }
 
+    @Test
+    public void testWriteNested() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        Counter counter = registry.counter("jvm.threads");
+        counter.inc(3L);
+        MetricSet metricSet = new MetricSet(1000L, "localhost");
+        metricSet.addCounter("jvm.threads", counter);
+        metricSet.addGauge("jvm.memory.non-heap", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return 2L;
+            }
+        });
+        metricSet.addGauge("JVM.memory.heap", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return 1.5D;
+            }
+        });
+        metricSet.addGauge("jvm", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return 0;
+            }
+        });
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = new JsonFactory().createGenerator(writer)) {
+            metricSet.write(generator);
+        }
+        assertThat(writer.toString(), containsString("\"dropwizard\":{\"jvm\":{\"value\":0,\"memory\":{\"heap\":{\"value\":1.5},\"non_heap\":{\"value\":2}},\"threads\":{\"count\":3}}}"));
+        assertThat(get(metricSet, Long.class, "jvm", "memory", "non_heap", "value"), equalTo(2L));
+    }
+
+    private static MetricSet counters(String... names) {
+        MetricSet metricSet = new MetricSet(1000L, "localhost");
+        for (int i = 0; i < names.length; i++) {
+            Counter counter = new Counter();
+            counter.inc(i);
+            metricSet.addCounter(names[i], counter);
+        }
+        return metricSet;
+    }
+
+    private static String write(MetricSet metricSet) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = new JsonFactory().createGenerator(writer)) {
+            metricSet.write(generator);
+        }
+        return writer.toString();
+    }
+
+    @Test
+    public void testWriteClashingNames() throws IOException {
+        MetricSet metricSet = counters("a-b", "a_b", "A.B", "t", "t.count", "t.count.x", "t.other");
+        metricSet.addCountDelta(5L, 1.0D);
+        assertThat(write(metricSet), containsString("\"dropwizard\":{\"a\":{\"b\":{\"count\":2}},\"a_b\":{\"count\":0},"
+                + "\"t\":{\"count\":3,\"other\":{\"count\":6,\"count_delta\":5,\"rate\":1.0}}}"));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testResolve() throws IOException {
+        MetricSet metricSet = new MetricSet(1000L, "localhost");
+        Map<String, Object> metric = metricSet.resolve("http.requests");
+        metric.put("count", 3L);
+        metricSet.addCounter("jvm.threads", new Counter());
+        metric.put("ratio", 0.5D);
+        metric.put("status", "up");
+        assertThat(metric.get("count"), equalTo((Object) 3L));
+        assertThat(write(metricSet), containsString("\"dropwizard\":{\"http\":{\"requests\":{\"count\":3,\"ratio\":0.5}},\"jvm\":{\"threads\":{\"count\":0}}}"));
+    }
+
+    @Test
+    public void testGroupByPrefix() throws IOException {
+        MetricSet metricSet = counters("jvm.threads", "http.requests", "jvm.memory.heap", "http", "gc");
+        List<MetricSet> groups = metricSet.groupByPrefix(1);
+        assertThat(groups.size(), equalTo(3));
+        assertThat(write(groups.get(0)), containsString("\"dropwizard\":{\"gc\":{\"count\":4}}"));
+        assertThat(write(groups.get(1)), containsString("\"dropwizard\":{\"http\":{\"count\":3,\"requests\":{\"count\":1}}}"));
+        assertThat(write(groups.get(2)), containsString("\"dropwizard\":{\"jvm\":{\"memory\":{\"heap\":{\"count\":2}},\"threads\":{\"count\":0}}}"));
+        assertThat(metricSet.groupByPrefix(2).size(), equalTo(5));
+    }
+
+    @Test
+    public void testSplit() throws IOException {
+        MetricSet metricSet = counters("a.b", "a.c", "b", "c.d", "c.e");
+        List<MetricSet> chunks = metricSet.split(2);
+        assertThat(chunks.size(), equalTo(2));
+        assertThat(chunks.get(0).getMetricCount() + chunks.get(1).getMetricCount(), equalTo(5));
+        assertThat(write(chunks.get(0)), containsString("\"dropwizard\":{\"a\":{\"b\":{\"count\":0},\"c\":{\"count\":1}}}"));
+        assertThat(metricSet.split(10).size(), equalTo(5));
+    }
+
+    @Test
+    public void testWriteMetric() throws IOException {
+        MetricSet metricSet = counters("jvm.threads", "HTTP.requests");
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = new JsonFactory().createGenerator(writer)) {
+            metricSet.writeMetric(generator, 1);
+        }
+        assertThat(writer.toString(), containsString("\"dropwizard\":{\"name\":\"HTTP.requests\",\"count\":1}}"));
+    }
+
     private <T> T get(MetricSet metricSet, Class<T> type, String... path) {
         Map<String, Object> map = metricSet.getMetrics();
         for (int i = 0; i < path.length - 1; i++) {
@@ -0,0 +1,75 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class NodePoolTest {
+    private static NodePool nodePool(NodeSelection selection, long deadBackoffMs) {
+        return new NodePool(Arrays.asList("http://node1:9200", "http://node2:9200/", "http://node3:9200"), selection, deadBackoffMs, deadBackoffMs * 4L, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testRoundRobin() {
+        NodePool nodePool = nodePool(NodeSelection.ROUND_ROBIN, 1000L);
+        assertThat(nodePool.next().getUrl(), equalTo("http://node1:9200/"));
+        assertThat(nodePool.next().getUrl(), equalTo("http://node2:9200/"));
+        assertThat(nodePool.next().getUrl(), equalTo("http://node3:9200/"));
+        assertThat(nodePool.next().getUrl(), equalTo("http://node1:9200/"));
+    }
+
+    @Test
+    public void testSkipDeadNode() throws InterruptedException {
+        NodePool nodePool = nodePool(NodeSelection.ROUND_ROBIN, 50L);
+        NodePool.Node node2 = nodePool.getNodes().get(1);
+        nodePool.markDead(node2);
+        assertThat(nodePool.getDeadCount(), equalTo(1));
+        for (int i = 0; i < 4; i++) {
+            assertThat(nodePool.next().getUrl().equals(node2.getUrl()), equalTo(false));
+        }
+        // Resurrected after backoff
+        Thread.sleep(60L);
+        assertThat(nodePool.getDeadCount(), equalTo(0));
+        nodePool.next();
+        assertThat(nodePool.next(), sameInstance(node2));
+    }
+
+    @Test
+    public void testAllDead() {
+        NodePool nodePool = nodePool(NodeSelection.ROUND_ROBIN, 1000L);
+        NodePool.Node node1 = nodePool.getNodes().get(0);
+        NodePool.Node node2 = nodePool.getNodes().get(1);
+        NodePool.Node node3 = nodePool.getNodes().get(2);
+        nodePool.markDead(node1);
+        nodePool.markDead(node2);
+        nodePool.markDead(node2);
+        nodePool.markDead(node3);
+        // First to be resurrected
+        assertThat(nodePool.next(), sameInstance(node1));
+    }
+
+    @Test
+    public void testLeastLatency() {
+        NodePool nodePool = nodePool(NodeSelection.LEAST_LATENCY, 1000L);
+        nodePool.markAlive(nodePool.getNodes().get(0), 30000000L);
+        nodePool.markAlive(nodePool.getNodes().get(1), 10000000L);
+        nodePool.markAlive(nodePool.getNodes().get(2), 20000000L);
+        assertThat(nodePool.next(), sameInstance(nodePool.getNodes().get(1)));
+        assertThat(nodePool.next(), sameInstance(nodePool.getNodes().get(1)));
+    }
+
+    @Test
+    public void testSetNodesKeepsHealth() {
+        NodePool nodePool = nodePool(NodeSelection.ROUND_ROBIN, 1000L);
+        nodePool.markDead(nodePool.getNodes().get(2));
+        nodePool.setNodes(Arrays.asList("http://node3:9200/", "http://node4:9200/"));
+        assertThat(nodePool.size(), equalTo(2));
+        assertThat(nodePool.getDeadCount(), equalTo(1));
+        assertThat(nodePool.next().getUrl(), equalTo("http://node4:9200/"));
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PooledHttpTransportTest {
+    private HttpServer server;
+    private final Set<Integer> clientPorts = new CopyOnWriteArraySet<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] request = UrlConnectionTransport.readFully(exchange.getRequestBody());
+                byte[] response = ("{\"received\":" + request.length + "}").getBytes(StandardCharsets.UTF_8);
+                boolean chunked = exchange.getRequestURI().getPath().contains("chunked");
+                exchange.sendResponseHeaders(201, chunked ? 0 : response.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(response);
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private HttpRequest request(String path, String body) throws IOException {
+        URL url = new URL("http", "localhost", server.getAddress().getPort(), path);
+        return new HttpRequest("POST", url, body.getBytes(StandardCharsets.UTF_8))
+                .setHeader("Content-Type", "application/json");
+    }
+
+    @Test
+    public void testReuseConnection() throws IOException {
+        try (PooledHttpTransport transport = new PooledHttpTransport(2, 1L, TimeUnit.MINUTES)) {
+            for (int i = 0; i < 3; i++) {
+                HttpResponse response = transport.execute(request("/index/doc", "{\"i\":" + i + "}"));
+                assertThat(response.getStatusCode(), equalTo(201));
+                assertThat(response.getBodyAsString(), equalTo("{\"received\":7}"));
+            }
+            HttpResponse response = transport.execute(request("/index/chunked", "{}"));
+            assertThat(response.getBodyAsString(), equalTo("{\"received\":2}"));
+            assertThat(transport.getIdleConnectionCount(), equalTo(1));
+        }
+        assertThat(clientPorts.size(), equalTo(1));
+    }
+
+    @Test
+    public void testIdleTimeout() throws IOException, InterruptedException {
+        try (PooledHttpTransport transport = new PooledHttpTransport(2, 10L, TimeUnit.MILLISECONDS)) {
+            transport.execute(request("/index/doc", "{}"));
+            Thread.sleep(50L);
+            transport.execute(request("/index/doc", "{}"));
+        }
+        assertThat(clientPorts.size(), equalTo(2));
+    }
+
+    @Test
+    public void testReconnectWhenServerClosedConnection() throws IOException {
+        try (PooledHttpTransport transport = new PooledHttpTransport(2, 1L, TimeUnit.MINUTES)) {
+            transport.execute(request("/index/doc", "{}"));
+            // Restart server: pooled socket is now dead
+            int port = server.getAddress().getPort();
+            server.stop(0);
+            restartServer(port);
+            HttpResponse response = transport.execute(request("/index/doc", "{}"));
+            assertThat(response.getStatusCode(), equalTo(201));
+        }
+    }
+
+    @Test
+    public void testNoRetryOnReadTimeout() throws IOException {
+        final AtomicInteger requestCount = new AtomicInteger();
+        server.createContext("/stall", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                UrlConnectionTransport.readFully(exchange.getRequestBody());
+                if (requestCount.incrementAndGet() > 1) {
+                    // Body accepted, then no response
+                    try {
+                        Thread.sleep(500L);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                exchange.sendResponseHeaders(201, -1);
+                exchange.close();
+            }
+        });
+        try (PooledHttpTransport transport = new PooledHttpTransport(2, 1L, TimeUnit.MINUTES)) {
+            transport.execute(request("/stall", "{}").setTimeouts(1000, 100));
+            try {
+                transport.execute(request("/stall", "{}").setTimeouts(1000, 100));
+                fail("Read timeout expected");
+            } catch (SocketTimeoutException e) {
+                // Expected
+            }
+        }
+        assertThat(requestCount.get(), equalTo(2));
+    }
+
+    private void restartServer(int port) throws IOException {
+        HttpServer previousServer = server;
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                UrlConnectionTransport.readFully(exchange.getRequestBody());
+                exchange.sendResponseHeaders(201, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        previousServer.stop(0);
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class RequestBodyTest {
+    private static String gunzip(RequestBody body) throws IOException {
+        byte[] bytes = Arrays.copyOf(body.array(), body.size());
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            return new String(UrlConnectionTransport.readFully(input), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void testCompressAndReset() throws IOException {
+        RequestBody body = new RequestBody(Deflater.BEST_SPEED, 100);
+        String text = repeat("{\"counter\":{\"count\":12}}\n", 100);
+        body.write(text.getBytes(StandardCharsets.UTF_8));
+        body.close();
+        assertThat(body.isCompressed(), equalTo(true));
+        assertThat(gunzip(body), equalTo(text));
+        byte[] array = body.array();
+        // Reuse body
+        body.reset();
+        String otherText = repeat("{\"meter\":{\"count\":3}}\n", 50);
+        body.write(otherText.getBytes(StandardCharsets.UTF_8));
+        body.close();
+        assertThat(gunzip(body), equalTo(otherText));
+        assertThat(body.array(), sameInstance(array));
+        // Below threshold
+        body.reset();
+        body.write("{}".getBytes(StandardCharsets.UTF_8));
+        body.close();
+        assertThat(body.isCompressed(), equalTo(false));
+        assertThat(new String(body.array(), 0, body.size(), StandardCharsets.UTF_8), equalTo("{}"));
+        body.free();
+    }
+
+    @Test
+    public void testPool() throws IOException {
+        RequestBodyPool pool = new RequestBodyPool(Deflater.BEST_SPEED, -1, 1, 4096);
+        RequestBody body = pool.acquire();
+        body.write(new byte[100]);
+        pool.release(body);
+        assertThat(pool.getIdleCount(), equalTo(1));
+        RequestBody reused = pool.acquire();
+        assertThat(reused, sameInstance(body));
+        assertThat(reused.size(), equalTo(0));
+        // Too large bodies are not kept
+        reused.write(new byte[10000]);
+        pool.release(reused);
+        assertThat(pool.getIdleCount(), equalTo(0));
+    }
+}
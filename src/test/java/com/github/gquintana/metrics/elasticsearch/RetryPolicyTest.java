@@ -0,0 +1,31 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class RetryPolicyTest {
+    @Test
+    public void testBackoff() {
+        RetryPolicy retryPolicy = new RetryPolicy(10, 100L, 1000L, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            long backoff = retryPolicy.getBackoffMs(0);
+            assertThat(backoff >= 50L && backoff <= 100L, equalTo(true));
+            backoff = retryPolicy.getBackoffMs(2);
+            assertThat(backoff >= 200L && backoff <= 400L, equalTo(true));
+            backoff = retryPolicy.getBackoffMs(40);
+            assertThat(backoff >= 500L && backoff <= 1000L, equalTo(true));
+        }
+    }
+
+    @Test
+    public void testRetryable() {
+        assertThat(RetryPolicy.NONE.isRetryable(429), equalTo(true));
+        assertThat(RetryPolicy.NONE.isRetryable(503), equalTo(true));
+        assertThat(RetryPolicy.NONE.isRetryable(500), equalTo(false));
+        assertThat(RetryPolicy.NONE.isRetryable(400), equalTo(false));
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.gquintana.metrics.elasticsearch;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class SpoolingSenderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private ElasticsearchStub stub;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new ElasticsearchStub();
+    }
+
+    @After
+    public void tearDown() {
+        stub.close();
+    }
+
+    private static MetricSet metricSet(long count) {
+        Counter counter = new Counter();
+        counter.inc(count);
+        MetricSet metricSet = new MetricSet(0L, "localhost");
+        metricSet.addCounter("counter", counter);
+        return metricSet;
+    }
+
+    @Test
+    public void testSpoolAndReplay() throws IOException {
+        ElasticsearchClient client = ElasticsearchClient.builder().url(stub.getUrl()).build();
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 1024L * 1024L, 10L * 1024L * 1024L);
+        try (SpoolingSender sender = new SpoolingSender(client, client, spool, 10, 1L, TimeUnit.HOURS)) {
+            stub.respond(503, "{\"error\":\"unavailable\"}");
+            stub.respond(503, "{\"error\":\"unavailable\"}");
+            sender.send(metricSet(1L));
+            sender.send(metricSet(2L));
+            assertThat(spool.isEmpty(), equalTo(false));
+            // Cluster still down
+            stub.respond(503, "{\"error\":\"unavailable\"}");
+            assertThat(sender.replay(), equalTo(false));
+            // Cluster is back
+            stub.respond(200, "{\"errors\":false,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":201}}]}");
+            assertThat(sender.replay(), equalTo(true));
+            assertThat(spool.isEmpty(), equalTo(true));
+        }
+        assertThat(stub.getRequests().size(), equalTo(4));
+        ElasticsearchStub.Request request = stub.getRequests().get(3);
+        assertThat(request.path, equalTo("/_bulk"));
+        String[] lines = request.body.split("\n");
+        assertThat(lines[1], containsString("\"counter\":{\"count\":1}"));
+        assertThat(lines[3], containsString("\"counter\":{\"count\":2}"));
+    }
+
+    @Test
+    public void testReplayKeepsRejected() throws IOException {
+        ElasticsearchClient client = ElasticsearchClient.builder().url(stub.getUrl()).build();
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 1024L * 1024L, 10L * 1024L * 1024L);
+        try (SpoolingSender sender = new SpoolingSender(client, client, spool, 2, 1L, TimeUnit.HOURS)) {
+            spool.append(client.encode(metricSet(1L)));
+            spool.append(client.encode(metricSet(2L)));
+            spool.append(client.encode(metricSet(3L)));
+            spool.append(client.encode(metricSet(4L)));
+            stub.respond(200, "{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":429}}]}");
+            // Replay stops at first rejected batch, segment is kept in place
+            assertThat(sender.replay(), equalTo(false));
+            assertThat(stub.getRequests().size(), equalTo(1));
+            assertThat(spool.readSegment(spool.getOldestSegmentId()).size(), equalTo(4));
+            // Cluster fails, rejected document is not lost
+            stub.respond(503, "{\"error\":\"unavailable\"}");
+            assertThat(sender.replay(), equalTo(false));
+            stub.respond(200, "{\"errors\":false,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":201}}]}");
+            stub.respond(200, "{\"errors\":false,\"items\":[{\"index\":{\"status\":201}}]}");
+            assertThat(sender.replay(), equalTo(true));
+            assertThat(spool.isEmpty(), equalTo(true));
+        }
+        assertThat(stub.getRequests().size(), equalTo(4));
+        String[] lines = stub.getRequests().get(2).body.split("\n");
+        assertThat(lines.length, equalTo(4));
+        assertThat(lines[1], containsString("\"counter\":{\"count\":2}"));
+        assertThat(lines[3], containsString("\"counter\":{\"count\":3}"));
+        assertThat(stub.getRequests().get(3).body, containsString("\"counter\":{\"count\":4}"));
+    }
+
+    @Test
+    public void testSpoolRejectedDocuments() throws IOException {
+        ElasticsearchClient client = ElasticsearchClient.builder().url(stub.getUrl()).documentLayout(DocumentLayout.METRIC).build();
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 1024L * 1024L, 10L * 1024L * 1024L);
+        try (SpoolingSender sender = new SpoolingSender(client, client, spool, 10, 1L, TimeUnit.HOURS)) {
+            MetricSet metricSet = metricSet(1L);
+            metricSet.addCounter("other", new Counter());
+            stub.respond(200, "{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":429}}]}");
+            sender.send(metricSet);
+            List<Document> documents = spool.readSegment(spool.getOldestSegmentId());
+            assertThat(documents.size(), equalTo(1));
+            assertThat(new String(documents.get(0).getSource(), StandardCharsets.UTF_8), containsString("\"name\":\"other\""));
+        }
+    }
+
+    @Test
+    public void testReplayDropsBadRequest() throws IOException {
+        ElasticsearchClient client = ElasticsearchClient.builder().url(stub.getUrl()).build();
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 1024L * 1024L, 10L * 1024L * 1024L);
+        MetricRegistry registry = new MetricRegistry();
+        try (SpoolingSender sender = new SpoolingSender(client, client, spool, 10, 1L, TimeUnit.HOURS, new ReporterMetrics(registry, "reporter"))) {
+            spool.append(client.encode(metricSet(1L)));
+            spool.append(client.encode(metricSet(2L)));
+            stub.respond(200, "{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":400}}]}");
+            assertThat(sender.replay(), equalTo(true));
+            assertThat(spool.isEmpty(), equalTo(true));
+        }
+        assertThat(registry.counter("reporter.reports.dropped").getCount(), equalTo(1L));
+    }
+}